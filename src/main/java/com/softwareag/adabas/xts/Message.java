@@ -13,10 +13,9 @@ import java.util.ArrayList;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.Arrays;
 
 import com.softwareag.adabas.xts.interfaces.ITransmitCallback;
 
@@ -27,14 +26,29 @@ import com.softwareag.adabas.xts.interfaces.ITransmitCallback;
  **/
 public final class Message {
 	private static AtomicInteger currentMessageNo = new AtomicInteger(0);
-	private static ReentrantLock freeLock = new ReentrantLock();
-	private static Message MessagesList = null;
-	private static int  Messages;              // Number of byte buffers allocations
-	private static int  FreedMessages;         // Number of freed buffers available
-	private static long Memory;                // Memory allocated
-	private static long MaxLength = 0;         // Max Length
-	private static long BiggestLength = 0;     // Biggest Length
  	private static byte[] eyecatcher = null;
+	private static final byte[] zeros = new byte[16384]; // copied to clear bodies
+
+	/** Clear the whole body of a new message. **/
+	public static final int ZERO_FULL = 0;
+	/**
+	 * Clear what earlier users of the body may have written, up to the
+	 * largest length or body index they left. The body reads as zeros as
+	 * with ZERO_FULL, unless it was written through <i>body</i> beyond
+	 * both.
+	 **/
+	public static final int ZERO_DIRTY = 1;
+	/** Clear only the length asked for; beyond it the body may hold old data. **/
+	public static final int ZERO_REQUESTED = 2;
+	/** Do not clear, for callers which write the whole length. **/
+	public static final int ZERO_NONE = 3;
+
+	/**
+	 * How newMessage clears the bodies it hands out, one of the ZERO_ values.
+	 * The receive paths, which read the whole length into the body, ask for
+	 * ZERO_DIRTY themselves.
+	 **/
+	public static int zeroing = ZERO_FULL;
 	static {
 		try {
 			eyecatcher = "SAG3".getBytes("UTF8");
@@ -72,11 +86,26 @@ public final class Message {
 	protected byte version;
 
 	/** The XTS header **/
-	protected byte[] header = new byte[32];
+	protected byte[] header = new byte[36];
+
+	/**
+	 * The compression word of the header extension, 0 for none. Set by the
+	 * driver, see {@link com.softwareag.adabas.xts.network.Compression}.
+	 **/
+	public int ext;
 
-	/** The body of the message. **/
+	/** The length of the body before compression, with <i>ext</i>. **/
+	public int extLength;
+
+	/** The body of the message, null for an off-heap message. **/
 	public byte[] body;
 
+	/**
+	 * The body of an off-heap message, null for a message on the heap. The
+	 * position and limit are not used, the body starts at 0.
+	 **/
+	public ByteBuffer buffer;
+
 	/** The source of the message when received. **/
 	public String from;
 
@@ -93,6 +122,10 @@ public final class Message {
 	public Object userval;
 
 	private int bodyIndex;           // index for placing data in body
+	int dirty;                       // the body may be non-zero below this
+	long freedAt;                    // when put into the pool, for trimming
+	Message shared;                  // holder of a shared body, null if private
+	private final AtomicInteger refs = new AtomicInteger(0); // of a holder
 	public String freedBy = null;
 
 	/** Chain for lists. **/
@@ -101,16 +134,17 @@ public final class Message {
 	// ----------------------------------------------------------------------
 	// Constructor
 	// ----------------------------------------------------------------------
-	private Message(final int length) {
-		int final_length = (length/1024)*1024 + 1024;
-		Messages++;
-		body = new byte[final_length];
-		this.length = final_length;
-		Memory += final_length;
-		if (final_length > BiggestLength)
-			BiggestLength = final_length;
-		if (XTStrace.bGlobalVerboseEnabled) 
-			XTStrace.verbose(">>NewMessage=" + Messages + " Length=" + length + " AllocatedLength=" + final_length + " BiggestLength=" + BiggestLength + " Memory=" + Memory + "b Message=" + this);
+	Message(final int capacity) {
+		body = new byte[capacity];
+		this.length = capacity;
+	}
+
+	Message() { // without a body, see share()
+	}
+
+	Message(final ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.length = buffer.capacity();
 	}
 
 	// ----------------------------------------------------------------------
@@ -148,7 +182,7 @@ public final class Message {
 				throw new XTSException("getMessage : Invalid message length received=" + Integer.toString(len) + " perhaps, due to protocol incompatibility",	XTSException.XTS_INVALID_GETMSG_LEN);
 			}
 			/* ============ Allocate buffer ============== */
-			p = newMessage(len - 16); // will be at least 16 in hdr
+			p = newMessage(len - 16, ZERO_DIRTY); // will be at least 16 in hdr
 			/* =========================================== */
 			i.readFully(p.header, 4, 12); // read the first 16 (inc len)
 			if (p.header[4] == 'S' && p.header[5] == 'A' && p.header[6] == 'G') {
@@ -174,6 +208,108 @@ public final class Message {
 // reduce trace	if (XTStrace.bGlobalDebugEnabled) {
 //			XTStrace.dump(">>getMessage Received header:", "getMessage", p.header, p.header.length, true);
 //		}
+		len = setHeader(p, len);
+		if (p.hdrlen > 16) {
+			i.readFully(p.header, 16, p.hdrlen - 16);
+			setHeaderExtension(p);
+		}
+		if (len > 0) {
+			i.readFully(p.body, 0, len);
+		} 
+		else {
+			if (XTStrace.bGlobalDebugEnabled) 
+				XTStrace.debug("getMessage: No message body received len=0");
+		}
+		return setBody(p);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get an XTS message from a buffered XTS input Stream. Called by the
+	 * receive thread, it blocks until an entire message has been received.
+	 * The header is parsed in the buffer of the stream and validated before a
+	 * message is allocated. A body which is already buffered is moved with a
+	 * single copy; the rest, for large messages most of it, is read from the
+	 * socket straight into the body of the message.
+	 ** 
+	 * @param i
+	 *            the XTSinputStream from which to receive the message.
+	 ** @return a message read from the stream.
+	 ** @exception IOException
+	 *                can be thrown as a result of operations on the stream.
+	 **/
+	// ----------------------------------------------------------------------
+	public static Message getMessage(final XTSinputStream i) throws IOException, XTSException {
+		return getMessage(i, 0);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get an XTS message from a buffered XTS input Stream, with an off-heap
+	 * body if it is large. Bodies of control messages stay on the heap.
+	 ** 
+	 * @param i
+	 *            the XTSinputStream from which to receive the message.
+	 ** @param offHeap
+	 *            bodies of at least this length are received into an
+	 *            off-heap buffer, 0 for none.
+	 ** @return a message read from the stream.
+	 ** @exception IOException
+	 *                can be thrown as a result of operations on the stream.
+	 **/
+	// ----------------------------------------------------------------------
+	public static Message getMessage(final XTSinputStream i, final int offHeap) throws IOException, XTSException {
+		i.require(16);
+		int len = i.getInt(0);
+		if (XTStrace.bGlobalDebugEnabled) 
+			XTStrace.debug(">>getMessage Read from XTS Stream length=" + len + " buffered=" + i.buffered());
+		if (len < 12 || len > XTS.maxmsglength) { 
+			XTStrace.warn("getMessage Invalid message length=" + len + " hex=" + XTS.hexof(len) + " perhaps, due to protocol incompatibility");
+			int k = Math.min(i.buffered(), 1024);
+			byte[] b = new byte[k];
+			i.take(b, 0, k);
+			XTStrace.dump("Invalid Message Length:", "getMessage", b, k, true); 
+			throw new XTSException("getMessage : Invalid message length received=" + Integer.toString(len) + " perhaps, due to protocol incompatibility",	XTSException.XTS_INVALID_GETMSG_LEN);
+		}
+		if (i.get(4) != 'S' || i.get(5) != 'A' || i.get(6) != 'G' || i.get(7) >= 0x36) {
+			byte[] b = new byte[16];
+			i.take(b, 0, 16);
+			if (XTStrace.bGlobalWarnEnabled) {
+				StringBuffer sb = XTStrace.dumpToStringBuffer(b[4] == 'S' ? "Invalid header version:" : "Invalid header:", "getMessage", b, 16, true); 
+				XTStrace.error(sb.toString());
+			}
+			throw new XTSException("getMessage : Invalid message header received", XTSException.XTS_INVALID_GETMSG_HDR);
+		}
+		/* ============ Allocate buffer ============== */
+		Message p = (offHeap > 0 && len - 16 >= offHeap && i.getInt(12) >= 0) ? newDirectMessage(len - 16, ZERO_DIRTY)
+				: newMessage(len - 16, ZERO_DIRTY);
+		/* =========================================== */
+		i.take(p.header, 0, 16);
+		len = setHeader(p, len);
+		if (p.hdrlen > 16) {
+			i.readFully(p.header, 16, p.hdrlen - 16);
+			setHeaderExtension(p);
+		}
+		if (len > 0 && p.buffer != null) {
+			i.readFully(p.buffer, len);
+		} else if (len > 0) {
+			int n = Math.min(i.buffered(), len);
+			i.take(p.body, 0, n);
+			if (n < len) {
+				i.readFully(p.body, n, len - n);
+			}
+		} 
+		else {
+			if (XTStrace.bGlobalDebugEnabled) 
+				XTStrace.debug("getMessage: No message body received len=0");
+		}
+		return setBody(p);
+	}
+
+	// ----------------------------------------------------------------------
+	// Take over the first 16 header bytes. Returns the body length.
+	// ----------------------------------------------------------------------
+	private static int setHeader(final Message p, int len) throws XTSException {
 		p.isFresh = false; // it is not fresh
 		p.header[0] = (byte) (len >> 24);
 		p.header[1] = (byte) (len >> 16);
@@ -203,31 +339,50 @@ public final class Message {
 		p.route = 0;
 		p.timeout = 0;
 		p.msgno = 0;
+		p.ext = 0;
+		return len;
+	}
 
-		if (p.hdrlen > 16) {
-			i.readFully(p.header, 16, p.hdrlen - 16);
-			p.msgno = (p.header[16] << 24) | ((p.header[17] & 0xff) << 16) | ((p.header[18] & 0xff) << 8) | (p.header[19] & 0xff);
-			if (p.hdrlen > 20) {
-				p.route = (p.header[20] << 24) | ((p.header[21] & 0xff) << 16) | ((p.header[22] & 0xff) << 8) | (p.header[23] & 0xff);
-				if (p.hdrlen > 24) {
-					p.timeout = (p.header[24] << 24)
-							| ((p.header[25] & 0xff) << 16)
-							| ((p.header[26] & 0xff) << 8)
-							| (p.header[27] & 0xff);
+	// ----------------------------------------------------------------------
+	// Take over the header bytes beyond 16.
+	// ----------------------------------------------------------------------
+	private static void setHeaderExtension(final Message p) {
+		p.msgno = (p.header[16] << 24) | ((p.header[17] & 0xff) << 16) | ((p.header[18] & 0xff) << 8) | (p.header[19] & 0xff);
+		if (p.hdrlen > 20) {
+			p.route = (p.header[20] << 24) | ((p.header[21] & 0xff) << 16) | ((p.header[22] & 0xff) << 8) | (p.header[23] & 0xff);
+			if (p.hdrlen > 24) {
+				p.timeout = (p.header[24] << 24)
+						| ((p.header[25] & 0xff) << 16)
+						| ((p.header[26] & 0xff) << 8)
+						| (p.header[27] & 0xff);
+				if (p.hdrlen >= 36) {
+					p.ext = intAt(p.header, 28);
+					p.extLength = intAt(p.header, 32);
 				}
 			}
 		}
-		if (len > 0) {
-			i.readFully(p.body, 0, len);
-		} 
-		else {
-			if (XTStrace.bGlobalDebugEnabled) 
-				XTStrace.debug("getMessage: No message body received len=0");
-		}
+	}
+
+	private static int intAt(final byte[] b, final int o) {
+		return (b[o] << 24) | ((b[o + 1] & 0xff) << 16) | ((b[o + 2] & 0xff) << 8) | (b[o + 3] & 0xff);
+	}
+
+	private static void putIntAt(final byte[] b, final int o, final int v) {
+		b[o] = (byte) (v >> 24);
+		b[o + 1] = (byte) (v >> 16);
+		b[o + 2] = (byte) (v >> 8);
+		b[o + 3] = (byte) v;
+	}
+
+	// ----------------------------------------------------------------------
+	// Complete a message whose body has been received.
+	// ----------------------------------------------------------------------
+	private static Message setBody(final Message p) {
 		p.nextMessage = null;
-		if ((p.body[0] == 'W') && (p.body[1] == '1')) {
+		if (p.buffer != null ? (p.buffer.get(0) == 'W' && p.buffer.get(1) == '1') : ((p.body[0] == 'W') && (p.body[1] == '1'))) {
 			if (XTStrace.bGlobalDebugEnabled)
 				XTStrace.debug("getMessage: W1 message !!!!!!!!!!!");
+			p.toHeap(); // handled by XTS
 			p.target = -1;
 		}
 		if (XTStrace.bGlobalDebugEnabled) {
@@ -247,65 +402,61 @@ public final class Message {
 	 **/
 	// ----------------------------------------------------------------------
 	public static Message newMessage(final int len) {
-		freeLock.lock();
-//		if (XTStrace.bGlobalDebugEnabled) 
-//			XTStrace.debug(">>get newMessage Length=" + len + " FreedMessages=" + FreedMessages);
-		Message p, head, current, previous=null;
-		try {
-//			if (XTStrace.bGlobalDebugEnabled) 
-//				XTStrace.debug(">>newMessage from MessageList Head=" + MessagesList);
-			if (MessagesList == null) {
-				p = new Message(len);
-//				if (XTStrace.bGlobalDebugEnabled) 
-//					XTStrace.debug("Create newMessage=" + p + " length=" + len);
-			} else {
-				current = MessagesList;
-				while (current != null) {
-//					if (XTStrace.bGlobalDebugEnabled) 
-//						XTStrace.debug("newMessageList=" + current + " ReqLength=" + len + " MessageLength=" + current.body.length);
-					if (current.body.length >= len) {
-						if (current == MessagesList) {
-							// change first to point to next link
-							MessagesList = MessagesList.nextMessage;
-						} else {
-							// bypass the current link
-							previous.nextMessage = current.nextMessage;
-						}
-  						FreedMessages--;
-						if (XTStrace.bGlobalDebugEnabled) 
-							XTStrace.debug("newMessage=" + current + " we got !!a match!! FreedMessages=" + FreedMessages);
-						break;
-					} else {
-						previous = current;
-						// move to next link
-						current = current.nextMessage;
-//						if (XTStrace.bGlobalDebugEnabled) 
-//							XTStrace.debug("newMessage go to next Message="  + current);
-					}
-				}
-				if (current == null) {
-					if (XTStrace.bGlobalDebugEnabled) 
-						XTStrace.debug("No Message in the message list");
-					p = new Message(len);
-				} else {
-					p = current;
-				}
-			}
-			if (!p.isFree.get()) {
-				if (XTStrace.bGlobalErrorEnabled) 
-					XTStrace.error("<<<Got non freed message in during newMessage call>>>");
-				Thread.dumpStack();
-				throw new RuntimeException("Got non freed message in during newMessage call");
-			}
-			p.msgno = currentMessageNo.incrementAndGet();
-			p.nextMessage = null;
-			p.isFree.set(false);
-			if (XTStrace.bGlobalDebugEnabled) 
-				XTStrace.debug("Got newMessage=" + Messages + " " + p + " of size=" + len + " msgno=" + p.msgno);
-		} finally {
-			freeLock.unlock();
+		return init(MessagePool.get(len), len, zeroing);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get a new Message object with the required body capacity, cleared as
+	 * asked.
+	 ** 
+	 * @param len
+	 *            the length of the body of the message.
+	 ** @param zeroing
+	 *            how to clear the body, ZERO_FULL, ZERO_DIRTY, ZERO_REQUESTED
+	 *            or ZERO_NONE.
+	 ** @return a message with body capacity given.
+	 **/
+	// ----------------------------------------------------------------------
+	public static Message newMessage(final int len, final int zeroing) {
+		return init(MessagePool.get(len), len, zeroing);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get a new Message object whose body is kept off the heap, in a pooled
+	 * direct buffer. The body is read and written through the put and get
+	 * methods, through <i>buffer</i> or as a copy from {@link #getBody()};
+	 * <i>body</i> is null. The drivers with XTS framing write and receive
+	 * it without copying it through the heap. The buffer goes back to the
+	 * pool when the message is freed and must not be used after that.
+	 ** 
+	 * @param len
+	 *            the length of the body of the message.
+	 ** @return a message with an off-heap body.
+	 **/
+	// ----------------------------------------------------------------------
+	public static Message newDirectMessage(final int len) {
+		return init(MessagePool.getDirect(len), len, zeroing);
+	}
+
+	/** Get a new off-heap Message object, its body cleared as asked. **/
+	public static Message newDirectMessage(final int len, final int zeroing) {
+		return init(MessagePool.getDirect(len), len, zeroing);
+	}
+
+	private static Message init(final Message p, final int len, final int zeroing) {
+		if (!p.isFree.getAndSet(false)) {
+			if (XTStrace.bGlobalErrorEnabled) 
+				XTStrace.error("<<<Got non freed message in during newMessage call>>>");
+			Thread.dumpStack();
+			throw new RuntimeException("Got non freed message in during newMessage call");
 		}
-		Arrays.fill (p.body, (byte) 0);
+		p.msgno = currentMessageNo.incrementAndGet();
+		p.nextMessage = null;
+		if (XTStrace.bGlobalDebugEnabled) 
+			XTStrace.debug("Got newMessage " + p + " of size=" + len + " msgno=" + p.msgno);
+		clear(p, len, zeroing);
 		p.target = 0;
 		p.route = 0;
 		p.hdrlen = 0;
@@ -314,10 +465,48 @@ public final class Message {
 		p.priority = 0;
 		p.callback = null;
 		p.token = null;
+		p.ext = 0;
 		p.isFresh = true;
 		return p;
 	}
 
+	// ----------------------------------------------------------------------
+	// Clear the body as the zeroing policy asks and note what the new user
+	// may write.
+	// ----------------------------------------------------------------------
+	private static void clear(final Message p, final int len, final int zeroing) {
+		int cap = (p.buffer != null) ? p.buffer.capacity() : p.body.length;
+		int n;
+		switch (zeroing) {
+		case ZERO_FULL:
+			n = cap;
+			break;
+		case ZERO_DIRTY:
+			n = p.dirty; // zeros above
+			break;
+		case ZERO_REQUESTED:
+			n = len;
+			break;
+		default:
+			n = 0;
+		}
+		fill(p, 0, Math.min(n, cap));
+		p.dirty = (zeroing == ZERO_FULL || zeroing == ZERO_DIRTY) ? len : Math.max(p.dirty, len);
+	}
+
+	// Clear a range of the body, copying zeros is faster than Arrays.fill.
+	private static void fill(final Message p, final int from, final int to) {
+		if (p.buffer == null) {
+			for (int i = from; i < to; i += zeros.length) {
+				System.arraycopy(zeros, 0, p.body, i, Math.min(zeros.length, to - i));
+			}
+			return;
+		}
+		for (int i = from; i < to; i += zeros.length) {
+			p.buffer.put(i, zeros, 0, Math.min(zeros.length, to - i));
+		}
+	}
+
 	// ----------------------------------------------------------------------
 	/** Free up a Message clone. **/
 	// ----------------------------------------------------------------------
@@ -329,31 +518,29 @@ public final class Message {
 	/** Free up a Message. **/
 	// ----------------------------------------------------------------------
 	public void freeMessage(final String freedBy) {
-		freeLock.lock();
-
-		try {
-			if (isFree.get()) {
-				if (XTStrace.bGlobalDebugEnabled) 
-					XTStrace.debug(">>freeMessage=" + this + " Length=" + this.length  + " FreedMessages=" + FreedMessages + " <<<Already FreedBy>>>:" + freedBy);
-//				if (XTStrace.bGlobalErrorEnabled) 
-//					XTStrace.error("freeMessage=" + this + " Error Message already freed by=" + this.freedBy);
-//				System.err.println("freeMessage: Error Message already freed by=" + this.freedBy);
-//				Thread.dumpStack();
-				return;
-			}
-			callback = null;
-			target = 0;
-			route = 0;
-			this.freedBy = freedBy;
-			isFree.set(true);
-			nextMessage = MessagesList;
-			FreedMessages++;
-			MessagesList = this;
+		if (!isFree.compareAndSet(false, true)) {
 			if (XTStrace.bGlobalDebugEnabled) 
-				XTStrace.debug(">>freeMessage=" + this + " Length=" + this.length  + " FreedMessages=" + FreedMessages+ " FreedBy:" + freedBy);
-		} finally {
-			freeLock.unlock();
+				XTStrace.debug(">>freeMessage=" + this + " Length=" + this.length + " <<<Already FreedBy>>>:" + freedBy);
+			return;
+		}
+		callback = null;
+		target = 0;
+		route = 0;
+		this.freedBy = freedBy;
+		nextMessage = null;
+		if (shared != null) {
+			Message h = shared;
+			shared = null;
+			body = null;
+			buffer = null;
+			MessagePool.putView(this);
+			release(h);
+		} else {
+			dirty = Math.max(dirty, Math.max(length, bodyIndex));
+			MessagePool.put(this);
 		}
+		if (XTStrace.bGlobalDebugEnabled) 
+			XTStrace.debug(">>freeMessage=" + this + " Length=" + this.length + " FreedBy:" + freedBy);
 	}
 
 	// ----------------------------------------------------------------------
@@ -374,17 +561,49 @@ public final class Message {
 // reduce trace	if (XTStrace.bGlobalDebugEnabled) 
 //			dump("Transport Send", "putMessage", this);
 		o.write(header, 0, hdrlen);
+		putBody(o);
+		o.flush();
+	}
+
+	// ----------------------------------------------------------------------
+	/** Put the body of the message to an XTSoutputStream, without flushing. **/
+	// ----------------------------------------------------------------------
+	public void putBody(final XTSoutputStream o) {
 		if (length > 0) {
-			o.write(body, 0, length);
+			if (buffer != null) {
+				o.write(buffer.slice(0, length));
+			} else {
+				o.write(body, 0, length);
+			}
 		}
-		o.flush();
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get the XTS message as header and body buffers for a gathering write.
+	 * The buffers wrap the message arrays or the off-heap body, nothing is
+	 * copied.
+	 ** 
+	 * @return the header and the body buffer.
+	 **/
+	// ----------------------------------------------------------------------
+	public ByteBuffer[] getBuffers() {
+		if (XTStrace.bGlobalDebugEnabled) 
+			XTStrace.debug(">>getBuffers for gathering write " + this + " route=" + this.route);
+		putHeader();
+		return new ByteBuffer[] { ByteBuffer.wrap(header, 0, hdrlen), (buffer != null) ? buffer.slice(0, length) : ByteBuffer.wrap(body, 0, length) };
 	}
 
 	public void putHeader() {
-		if (route == 0) {
+		if (route == 0 && ext == 0) {
 			hdrlen = 20;
 		} else {
 			hdrlen = 28;
+			if (ext != 0) { // peers which do not know it skip it
+				hdrlen = 36;
+				putIntAt(header, 28, ext);
+				putIntAt(header, 32, extLength);
+			}
 			header[20] = (byte) (route >> 24);
 			header[21] = (byte) (route >> 16);
 			header[22] = (byte) (route >> 8);
@@ -428,6 +647,192 @@ public final class Message {
 		return isFree.get();
 	}
 
+	/** Return true if the body is kept off the heap. **/
+	public boolean isDirect() {
+		return buffer != null;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return the body as an array: the body itself, or a copy of the first
+	 * <i>length</i> bytes of an off-heap body.
+	 **/
+	// ----------------------------------------------------------------------
+	public byte[] getBody() {
+		if (buffer == null) {
+			return body;
+		}
+		byte[] b = new byte[length];
+		buffer.get(0, b, 0, length);
+		return b;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Move an off-heap body onto the heap, for code which works on
+	 * <i>body</i>. The message keeps its identity; the off-heap buffer goes
+	 * back to the pool, or stays with the other messages sharing it.
+	 * Nothing is done for a message on the heap.
+	 **/
+	// ----------------------------------------------------------------------
+	public void toHeap() {
+		if (buffer != null) {
+			own(false);
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get a message which shares the body of this one, for sending the same
+	 * body to several targets without copying it. The new message has the
+	 * header of this one - target, route, callback and so on - which may be
+	 * changed for its recipient. The body of both is read-only from now on:
+	 * the put methods throw IllegalStateException and <i>body</i> must not
+	 * be written. Each message is freed as usual, by the caller or after
+	 * transmission; the body goes back to the pool when the last of them is
+	 * freed.
+	 ** 
+	 * @return a message sharing the body.
+	 **/
+	// ----------------------------------------------------------------------
+	public Message share() {
+		Message h = shared;
+		if (h == null) { // the body moves to a holder which counts its users
+			h = MessagePool.getView();
+			h.body = body;
+			h.buffer = buffer;
+			h.dirty = Math.max(dirty, Math.max(length, bodyIndex));
+			h.refs.set(1);
+			shared = h;
+		}
+		h.refs.incrementAndGet();
+		Message p = MessagePool.getView();
+		p.isFree.set(false);
+		p.shared = h;
+		p.body = body;
+		p.buffer = buffer;
+		p.length = length;
+		p.bodyIndex = 0;
+		p.target = target;
+		p.route = route;
+		p.timeout = timeout;
+		p.ttl = ttl;
+		p.token = token;
+		p.priority = priority;
+		p.version = version;
+		p.msgno = msgno;
+		p.ext = ext;
+		p.extLength = extLength;
+		p.hdrlen = hdrlen;
+		if (p.header.length < hdrlen) {
+			p.header = new byte[hdrlen];
+		}
+		System.arraycopy(header, 0, p.header, 0, hdrlen);
+		p.from = from;
+		p.isFresh = isFresh;
+		p.callback = callback;
+		p.userval = userval;
+		p.nextMessage = null;
+		return p;
+	}
+
+	/** Return true if the body is shared with other messages and read-only. **/
+	public boolean isShared() {
+		return shared != null;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Give the message a private copy of a shared body, so that it can be
+	 * written again. Nothing is done for a body which is not shared.
+	 **/
+	// ----------------------------------------------------------------------
+	public void unshare() {
+		if (shared != null) {
+			own(buffer != null);
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// Copy the body into one of the pool, on or off the heap. A shared body
+	// stays with its holder, a private one goes back to the pool.
+	// ----------------------------------------------------------------------
+	private void own(final boolean direct) {
+		Message q = direct ? MessagePool.getDirect(length) : MessagePool.get(length); // lends its body
+		if (q.buffer != null) {
+			q.buffer.put(0, buffer != null ? buffer : ByteBuffer.wrap(body), 0, length);
+		} else if (buffer != null) {
+			buffer.get(0, q.body, 0, length);
+		} else {
+			System.arraycopy(body, 0, q.body, 0, length);
+		}
+		if (q.dirty > length) {
+			fill(q, length, Math.min(q.dirty, q.buffer != null ? q.buffer.capacity() : q.body.length));
+		}
+		byte[] b = body;
+		ByteBuffer bb = buffer;
+		body = q.body;
+		buffer = q.buffer;
+		q.body = b;
+		q.buffer = bb;
+		q.dirty = dirty;
+		dirty = length;
+		Message h = shared;
+		if (h != null) {
+			shared = null;
+			q.body = null;
+			q.buffer = null;
+			MessagePool.putView(q);
+			release(h);
+		} else {
+			MessagePool.put(q);
+		}
+	}
+
+	// Drop a reference to a shared body, the last one frees it.
+	private static void release(final Message h) {
+		if (h.refs.decrementAndGet() == 0) {
+			MessagePool.put(h);
+		}
+	}
+
+	// The put methods do not write shared bodies.
+	private void writable() {
+		if (shared != null) {
+			throw new IllegalStateException("Message body is shared and read-only, unshare() it first");
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get a new message with the addressing of this one - target, route,
+	 * header and so on - and an empty body, off the heap if this one is.
+	 ** 
+	 * @param len
+	 *            the length of the body.
+	 ** @return the new message.
+	 **/
+	// ----------------------------------------------------------------------
+	public Message cloneHeader(final int len) {
+		Message p = (buffer != null) ? newDirectMessage(len) : newMessage(len);
+		p.target = target;
+		p.route = route;
+		p.timeout = timeout;
+		p.ttl = ttl;
+		p.token = token;
+		p.priority = priority;
+		p.version = version;
+		p.msgno = msgno;
+		p.hdrlen = hdrlen;
+		if (p.header.length < hdrlen) {
+			p.header = new byte[hdrlen];
+		}
+		System.arraycopy(header, 0, p.header, 0, hdrlen);
+		p.from = from;
+		p.isFresh = isFresh;
+		return p;
+	}
+
 	// ----------------------------------------------------------------------
 	/**
 	 * Make a copy of a message.
@@ -437,7 +842,7 @@ public final class Message {
 	public Message cloneMessage() {
 		if (XTStrace.bGlobalDebugEnabled) 
 			XTStrace.debug("cloneMessage=" + this);
-		Message p = newMessage(length);
+		Message p = (buffer != null) ? newDirectMessage(length) : newMessage(length);
 		p.length = length;
 		p.target = target;
 		p.route = route;
@@ -446,13 +851,19 @@ public final class Message {
 		p.token = token;
 		p.priority = priority;
 		p.version = version;
+		p.ext = ext;
+		p.extLength = extLength;
 		// p.msgno=msgno;
 		p.hdrlen = hdrlen;
 		System.arraycopy(header, 0, p.header, 0, hdrlen);
 		p.isFree = new AtomicBoolean(isFree.get());
 		p.callback = callback;
 		p.userval = userval;
-		System.arraycopy(body, 0, p.body, 0, length);
+		if (buffer != null) {
+			p.buffer.put(0, buffer, 0, length);
+		} else {
+			System.arraycopy(body, 0, p.body, 0, length);
+		}
 		return p;
 	}
 
@@ -462,6 +873,12 @@ public final class Message {
 	/** Put a <i>long</i> into the next free bytes in the body. **/
 	// ----------------------------------------------------------------------
 	public void putLong(final long l) {
+		writable();
+		if (buffer != null) {
+			buffer.putLong(bodyIndex, l);
+			bodyIndex += 8;
+			return;
+		}
 		body[bodyIndex++] = (byte) (l >>> 56);
 		body[bodyIndex++] = (byte) (l >>> 48);
 		body[bodyIndex++] = (byte) (l >>> 40);
@@ -476,6 +893,12 @@ public final class Message {
 	/** Put an <i>int</i> into the next free bytes in the body. **/
 	// ----------------------------------------------------------------------
 	public void putInt(final int i) {
+		writable();
+		if (buffer != null) {
+			buffer.putInt(bodyIndex, i);
+			bodyIndex += 4;
+			return;
+		}
 		body[bodyIndex++] = (byte) (i >>> 24);
 		body[bodyIndex++] = (byte) (i >>> 16);
 		body[bodyIndex++] = (byte) (i >>> 8);
@@ -486,6 +909,12 @@ public final class Message {
 	/** Put a <i>short</i> into the next free bytes in the body. **/
 	// ----------------------------------------------------------------------
 	public void putShort(final int i) {
+		writable();
+		if (buffer != null) {
+			buffer.putShort(bodyIndex, (short) i);
+			bodyIndex += 2;
+			return;
+		}
 		body[bodyIndex++] = (byte) (i >>> 8);
 		body[bodyIndex++] = (byte) i;
 	}
@@ -503,6 +932,12 @@ public final class Message {
 	/** Put a <i>byte array</i> into the next free bytes in the body. **/
 	// ----------------------------------------------------------------------
 	public void putBytes(final byte[] b) {
+		writable();
+		if (buffer != null) {
+			buffer.put(bodyIndex, b);
+			bodyIndex += b.length;
+			return;
+		}
 		System.arraycopy(b, 0, body, bodyIndex, b.length);
 		bodyIndex += b.length;
 	}
@@ -511,10 +946,21 @@ public final class Message {
 	/** Put a <i>byte array</i> into the next free bytes in the body. **/
 	// ----------------------------------------------------------------------
 	public void putBytes(final byte[] b, final int pos, final int length, int index) {
+		writable();
+		if (buffer != null) {
+			buffer.put(index, b, pos, length);
+			return;
+		}
 		System.arraycopy(b, pos, body, index, length);
 	}
 
 	public void putBytes(final byte[] b, final int pos, final int length) {
+		writable();
+		if (buffer != null) {
+			buffer.put(bodyIndex, b, pos, length);
+			bodyIndex += length;
+			return;
+		}
 		System.arraycopy(b, pos, body, bodyIndex, length);
 		bodyIndex += length;
 	}
@@ -533,6 +979,11 @@ public final class Message {
 	}
 
 	public void put(final byte b) {
+		writable();
+		if (buffer != null) {
+			buffer.put(bodyIndex++, b);
+			return;
+		}
 		body[bodyIndex++] = b;
 	};
 
@@ -543,6 +994,11 @@ public final class Message {
 	 **/
 	// ----------------------------------------------------------------------
 	public void putLongReverse(final long l) {
+		writable();
+		if (buffer != null) {
+			putLong(Long.reverseBytes(l));
+			return;
+		}
 		body[bodyIndex++] = (byte) l;
 		body[bodyIndex++] = (byte) (l >>> 8);
 		body[bodyIndex++] = (byte) (l >>> 16);
@@ -560,6 +1016,11 @@ public final class Message {
 	 **/
 	// ----------------------------------------------------------------------
 	public void putIntReverse(final int i) {
+		writable();
+		if (buffer != null) {
+			putInt(Integer.reverseBytes(i));
+			return;
+		}
 		body[bodyIndex++] = (byte) i;
 		body[bodyIndex++] = (byte) (i >>> 8);
 		body[bodyIndex++] = (byte) (i >>> 16);
@@ -573,6 +1034,11 @@ public final class Message {
 	 **/
 	// ----------------------------------------------------------------------
 	public void putShortReverse(final int i) {
+		writable();
+		if (buffer != null) {
+			putShort(Short.reverseBytes((short) i));
+			return;
+		}
 		body[bodyIndex++] = (byte) i;
 		body[bodyIndex++] = (byte) (i >>> 8);
 	}
@@ -581,6 +1047,11 @@ public final class Message {
 	/** Get an <i>int</i> from the body. **/
 	// ----------------------------------------------------------------------
 	public int getInt() {
+		if (buffer != null) {
+			int v = buffer.getInt(bodyIndex);
+			bodyIndex += 4;
+			return v;
+		}
 		return (body[bodyIndex++] << 24) | ((body[bodyIndex++] & 0xff) << 16)
 				| ((body[bodyIndex++] & 0xff) << 8)
 				| (body[bodyIndex++] & 0xff);
@@ -590,6 +1061,11 @@ public final class Message {
 	/** Get a <i>long</i> from the body. **/
 	// ----------------------------------------------------------------------
 	public long getLong() {
+		if (buffer != null) {
+			long v = buffer.getLong(bodyIndex);
+			bodyIndex += 8;
+			return v;
+		}
 		return (((long) body[bodyIndex++]) << 56)
 				| (((long) (body[bodyIndex++] & 0xff)) << 48)
 				| (((long) (body[bodyIndex++] & 0xff)) << 40)
@@ -604,6 +1080,11 @@ public final class Message {
 	/** Get a <i>short</i> from the body. **/
 	// ----------------------------------------------------------------------
 	public int getShort() {
+		if (buffer != null) {
+			int v = buffer.getShort(bodyIndex);
+			bodyIndex += 2;
+			return v;
+		}
 		return (body[bodyIndex++] << 8) | (body[bodyIndex++] & 0xff);
 	}
 
@@ -611,6 +1092,9 @@ public final class Message {
 	/** Get a <i>long</i> from the body in Little Endian format. **/
 	// ----------------------------------------------------------------------
 	public long getLongReverse() {
+		if (buffer != null) {
+			return Long.reverseBytes(getLong());
+		}
 		return (body[bodyIndex++] & 0xff) | ((body[bodyIndex++] & 0xff) << 8)
 				| ((body[bodyIndex++] & 0xff) << 16)
 				| (((long) (body[bodyIndex++] & 0xff)) << 24)
@@ -624,6 +1108,9 @@ public final class Message {
 	/** Get an <i>int</i> from the body in Little Endian format. **/
 	// ----------------------------------------------------------------------
 	public int getIntReverse() {
+		if (buffer != null) {
+			return Integer.reverseBytes(getInt());
+		}
 		return (body[bodyIndex++] & 0xff) | ((body[bodyIndex++] & 0xff) << 8)
 				| ((body[bodyIndex++] & 0xff) << 16)
 				| (body[bodyIndex++] << 24);
@@ -633,6 +1120,9 @@ public final class Message {
 	/** Get a <i>short</i> from the body in Little Endian format. **/
 	// ----------------------------------------------------------------------
 	public int getShortReverse() {
+		if (buffer != null) {
+			return Short.reverseBytes((short) getShort());
+		}
 		return (body[bodyIndex++] & 0xff) | (body[bodyIndex++] << 8);
 	}
 
@@ -646,8 +1136,7 @@ public final class Message {
 	// ----------------------------------------------------------------------
 	public byte[] getBytes(final int length) {
 		byte[] b = new byte[length];
-		System.arraycopy(body, bodyIndex, b, 0, length);
-		bodyIndex += length;
+		getBytes(b, length);
 		return b;
 	}
 
@@ -655,6 +1144,11 @@ public final class Message {
 	/** Get  <i> bytes into array. **/
 	// ----------------------------------------------------------------------
 	public void getBytes(final byte[] b, final int length) {
+		if (buffer != null) {
+			buffer.get(bodyIndex, b, 0, length);
+			bodyIndex += length;
+			return;
+		}
 		System.arraycopy(body, bodyIndex, b, 0, length);
 		bodyIndex += length;
 	}
@@ -668,15 +1162,16 @@ public final class Message {
 	 **/
 	// ----------------------------------------------------------------------
 	public void getBytes(final byte[] bytearray) {
-		int i = bytearray.length;
-		System.arraycopy(body, bodyIndex, bytearray, 0, i);
-		bodyIndex += i;
+		getBytes(bytearray, bytearray.length);
 	}
 
 	// ----------------------------------------------------------------------
 	/** Get a <i>byte</i> from the body. **/
 	// ----------------------------------------------------------------------
 	public byte getByte() {
+		if (buffer != null) {
+			return buffer.get(bodyIndex++);
+		}
 		return body[bodyIndex++];
 	}
 
@@ -718,7 +1213,7 @@ public final class Message {
 		if (p.hdrlen > 0) {
 			XTStrace.dump(prefix + " Header:", fct, p.header, p.header.length, true);
 		}
-		XTStrace.dump(prefix + " Body:", fct, p.body, p.length, true);
+		XTStrace.dump(prefix + " Body:", fct, p.getBody(), p.length, true);
 	}
 
 }
@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.softwareag.adabas.xts.helpers.XTSthread;
+
+//----------------------------------------------------------------------
+/**
+ * The pool of free messages. Bodies come in power of two size classes from
+ * 1 KB up, always larger than the length asked for. Each class has a depot
+ * of free messages which threads share without locks; small classes are
+ * also cached per thread in magazines, which are exchanged with the depot
+ * as a whole when they run empty or full.
+ **
+ * A message freed on one thread and taken on another - receive thread and
+ * user thread - thus costs a depot operation only once per magazine. The
+ * magazines of threads which have ended are returned to the depot from time
+ * to time.
+ **
+ * Off-heap bodies, see {@link Message#newDirectMessage(int)}, are direct
+ * buffers in the same size classes, kept with their messages in depots of
+ * their own. The bytes they hold, in use and at most in use, are counted
+ * separately from the heap.
+ **
+ * What the pool keeps is bounded: bodies larger than <i>pooledLimit</i> are
+ * allocated to size and left to the collector when freed, the free bodies of
+ * a class shared between threads are capped at <i>classLimit</i> bytes, and
+ * a background thread releases those unused for <i>idleTime</i>.
+ * {@link #shrink()} releases all of them at once.
+ **/
+//   Maintenance:
+//   Size class message pool
+// ----------------------------------------------------------------------
+public final class MessagePool {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	static final int MIN_SHIFT = 10; // class 0 holds 1 KB bodies
+	static final int CLASSES = 21; // up to 1 GB
+
+	/** Bodies up to this size are cached per thread. **/
+	public static int magazineLimit = 16384;
+	/** The number of messages in a magazine. **/
+	public static int magazineSize = 8;
+	/** Bodies larger than this are allocated to size and not pooled. **/
+	public static int pooledLimit = 1 << 20;
+	/**
+	 * The most bytes of free bodies kept in the depot of a class, heap and
+	 * off-heap each. Bodies freed beyond it are released.
+	 **/
+	public static long classLimit = 64L << 20;
+	/**
+	 * Free bodies unused for this many milliseconds are released, 0 for
+	 * never. Checked every half of it, at most every minute.
+	 **/
+	public static long idleTime = 300000;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final ConcurrentLinkedDeque<Message>[] depot = new ConcurrentLinkedDeque[CLASSES]; // large classes
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final ConcurrentLinkedDeque<Message>[] direct = new ConcurrentLinkedDeque[CLASSES]; // off-heap bodies
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final ConcurrentLinkedDeque<Message[]>[] full = new ConcurrentLinkedDeque[CLASSES]; // full magazines
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static final ConcurrentLinkedDeque<Message[]>[] empty = new ConcurrentLinkedDeque[CLASSES]; // spare magazines
+	static {
+		for (int i = 0; i < CLASSES; i++) {
+			depot[i] = new ConcurrentLinkedDeque<Message>();
+			direct[i] = new ConcurrentLinkedDeque<Message>();
+			full[i] = new ConcurrentLinkedDeque<Message[]>();
+			empty[i] = new ConcurrentLinkedDeque<Message[]>();
+		}
+	}
+
+	private static final AtomicLongArray retained = new AtomicLongArray(CLASSES); // free bytes in depots
+	private static final AtomicLongArray retainedDirect = new AtomicLongArray(CLASSES);
+
+	private static final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+		protected Cache initialValue() {
+			Cache t = new Cache();
+			threads.add(t);
+			return t;
+		}
+	};
+	private static final ConcurrentLinkedQueue<Message> views = new ConcurrentLinkedQueue<Message>(); // without bodies
+	private static final AtomicInteger viewCount = new AtomicInteger();
+	private static final ConcurrentLinkedQueue<Cache> threads = new ConcurrentLinkedQueue<Cache>();
+	private static final AtomicLong nextReclaim = new AtomicLong(0);
+	private static volatile long clock = System.currentTimeMillis(); // freedAt stamps
+	private static Thread trimmer = null;
+
+	private static final LongAdder messages = new LongAdder(); // bodies allocated
+	private static final LongAdder freed = new LongAdder(); // messages in the pool
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+	private static final AtomicLong memory = new AtomicLong(); // bytes of all bodies
+	private static final AtomicLong biggest = new AtomicLong(); // largest body
+	private static final LongAdder released = new LongAdder(); // bodies given up
+	private static final AtomicLong offHeap = new AtomicLong(); // bytes of all off-heap bodies
+	private static final AtomicLong offHeapUsed = new AtomicLong(); // of those in use
+	private static final AtomicLong offHeapPeak = new AtomicLong(); // most in use
+
+	private MessagePool() {
+	}
+
+	// The magazines of a thread, by size class.
+	private static final class Cache {
+		final Message[][] mags = new Message[CLASSES][];
+		final int[] counts = new int[CLASSES];
+		final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+	}
+
+	// ----------------------------------------------------------------------
+	/** Return the size class of a body length. **/
+	// ----------------------------------------------------------------------
+	static int classOf(final int len) {
+		return 32 - Integer.numberOfLeadingZeros(len >> MIN_SHIFT); // capacity above len
+	}
+
+	/** Return the body capacity of a size class. **/
+	static int capacityOf(final int c) {
+		return 1 << (MIN_SHIFT + c);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Take a free message whose body is larger than the given length, or
+	 * allocate one.
+	 **/
+	// ----------------------------------------------------------------------
+	static Message get(final int len) {
+		int c = classOf(len);
+		if (c >= CLASSES || capacityOf(c) > pooledLimit) {
+			return allocate((len / 1024) * 1024 + 1024); // oversized
+		}
+		Message p;
+		if (capacityOf(c) <= magazineLimit) {
+			Cache t = caches.get();
+			if (t.counts[c] == 0) {
+				Message[] m = full[c].pollFirst();
+				if (m == null) {
+					return allocate(capacityOf(c));
+				}
+				retained.addAndGet(c, -(long) m.length * capacityOf(c));
+				if (t.mags[c] != null) {
+					empty[c].offerFirst(t.mags[c]);
+				}
+				t.mags[c] = m;
+				t.counts[c] = m.length;
+			}
+			int i = --t.counts[c];
+			p = t.mags[c][i];
+			t.mags[c][i] = null;
+		} else {
+			p = depot[c].pollFirst();
+			if (p == null) {
+				return allocate(capacityOf(c));
+			}
+			retained.addAndGet(c, -capacityOf(c));
+		}
+		hits.increment();
+		freed.decrement();
+		return p;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Take a free message whose off-heap body is larger than the given
+	 * length, or allocate one.
+	 **/
+	// ----------------------------------------------------------------------
+	static Message getDirect(final int len) {
+		int c = classOf(len);
+		boolean pooled = c < CLASSES && capacityOf(c) <= pooledLimit;
+		Message p = pooled ? direct[c].pollFirst() : null;
+		if (p == null) {
+			p = allocateDirect(pooled ? capacityOf(c) : (len / 1024) * 1024 + 1024);
+		} else {
+			retainedDirect.addAndGet(c, -capacityOf(c));
+			hits.increment();
+			freed.decrement();
+		}
+		long u = offHeapUsed.addAndGet(p.buffer.capacity());
+		long m;
+		while (u > (m = offHeapPeak.get()) && !offHeapPeak.compareAndSet(m, u)) {
+		}
+		return p;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Take a free message without a body, for one which shares the body of
+	 * another.
+	 **/
+	// ----------------------------------------------------------------------
+	static Message getView() {
+		Message p = views.poll();
+		if (p == null) {
+			return new Message();
+		}
+		viewCount.decrementAndGet();
+		return p;
+	}
+
+	/** Return a message without a body to the pool. **/
+	static void putView(final Message p) {
+		if (viewCount.incrementAndGet() > 1024) {
+			viewCount.decrementAndGet();
+			return;
+		}
+		views.offer(p);
+	}
+
+	// ----------------------------------------------------------------------
+	/** Return a freed message to the pool. **/
+	// ----------------------------------------------------------------------
+	static void put(final Message p) {
+		if (p.buffer != null) {
+			putDirect(p);
+			return;
+		}
+		int cap = p.body.length;
+		int c = classOf(cap - 1);
+		if (c >= CLASSES || capacityOf(c) != cap || cap > pooledLimit) {
+			drop(p); // oversized, not from a class
+			return;
+		}
+		p.freedAt = clock;
+		if (cap > magazineLimit) {
+			if (retained.addAndGet(c, cap) > classLimit) {
+				retained.addAndGet(c, -cap);
+				drop(p);
+				return;
+			}
+			freed.increment();
+			depot[c].offerFirst(p);
+			return;
+		}
+		freed.increment();
+		Cache t = caches.get();
+		Message[] m = t.mags[c];
+		if (m == null || t.counts[c] == m.length) {
+			if (m != null && retained.addAndGet(c, (long) m.length * cap) <= classLimit) {
+				full[c].offerFirst(m);
+			} else if (m != null) { // the depot has enough, give them up
+				retained.addAndGet(c, -(long) m.length * cap);
+				for (int i = 0; i < m.length; i++) {
+					drop(m[i]);
+					m[i] = null;
+				}
+				freed.add(-m.length);
+				t.counts[c] = 0;
+				m[t.counts[c]++] = p;
+				return;
+			}
+			m = empty[c].pollFirst();
+			if (m == null || m.length != magazineSize) {
+				m = new Message[Math.max(magazineSize, 1)];
+			}
+			t.mags[c] = m;
+			t.counts[c] = 0;
+		}
+		m[t.counts[c]++] = p;
+	}
+
+	private static void putDirect(final Message p) {
+		int cap = p.buffer.capacity();
+		offHeapUsed.addAndGet(-cap);
+		int c = classOf(cap - 1);
+		if (c >= CLASSES || capacityOf(c) != cap || cap > pooledLimit) {
+			drop(p);
+			return;
+		}
+		if (retainedDirect.addAndGet(c, cap) > classLimit) {
+			retainedDirect.addAndGet(c, -cap);
+			drop(p);
+			return;
+		}
+		p.freedAt = clock;
+		freed.increment();
+		direct[c].offerFirst(p);
+	}
+
+	// Give up a body which the pool does not keep, to the collector.
+	private static void drop(final Message p) {
+		if (p.buffer != null) {
+			offHeap.addAndGet(-p.buffer.capacity());
+		} else {
+			memory.addAndGet(-p.body.length);
+		}
+		released.increment();
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Move the magazines of ended threads to the depot. One caller at a
+	 * time, and only the caller which removed a cache moves its magazines.
+	 **/
+	// ----------------------------------------------------------------------
+	static synchronized void reclaim() {
+		for (Iterator<Cache> it = threads.iterator(); it.hasNext();) {
+			Cache t = it.next();
+			Thread owner = t.owner.get();
+			if ((owner != null && owner.isAlive()) || !threads.remove(t)) {
+				continue;
+			}
+			for (int c = 0; c < CLASSES; c++) {
+				int n = t.counts[c];
+				if (n > 0) {
+					retained.addAndGet(c, (long) n * capacityOf(c));
+					full[c].offerFirst(Arrays.copyOf(t.mags[c], n));
+				}
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Release the free bodies in the depots which have not been used for
+	 * the given time, oldest first.
+	 **
+	 * @param now
+	 *            the current time, System.currentTimeMillis().
+	 ** @param idle
+	 *            the idle time in milliseconds, 0 to release all.
+	 ** @return the number of bytes released.
+	 **/
+	// ----------------------------------------------------------------------
+	static long trim(final long now, final long idle) {
+		long bytes = 0;
+		for (int c = 0; c < CLASSES; c++) {
+			long cap = capacityOf(c);
+			Message p;
+			while ((p = depot[c].pollLast()) != null) {
+				if (now - p.freedAt < idle) {
+					depot[c].offerLast(p); // the oldest is still in use
+					break;
+				}
+				retained.addAndGet(c, -cap);
+				freed.decrement();
+				drop(p);
+				bytes += cap;
+			}
+			while ((p = direct[c].pollLast()) != null) {
+				if (now - p.freedAt < idle) {
+					direct[c].offerLast(p);
+					break;
+				}
+				retainedDirect.addAndGet(c, -cap);
+				freed.decrement();
+				drop(p);
+				bytes += cap;
+			}
+			Message[] m;
+			while ((m = full[c].pollLast()) != null) {
+				if (now - m[m.length - 1].freedAt < idle) { // the last one freed
+					full[c].offerLast(m);
+					break;
+				}
+				retained.addAndGet(c, -m.length * cap);
+				freed.add(-m.length);
+				for (int i = 0; i < m.length; i++) {
+					drop(m[i]);
+				}
+				bytes += m.length * cap;
+			}
+		}
+		if (bytes > 0 && XTStrace.bGlobalVerboseEnabled)
+			XTStrace.verbose("MessagePool released " + bytes + "b idle=" + idle + "ms " + getStatistics());
+		return bytes;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Release all free bodies the pool shares between threads, including
+	 * those of ended threads. The few cached by running threads stay.
+	 **
+	 * @return the number of bytes released.
+	 **/
+	// ----------------------------------------------------------------------
+	public static long shrink() {
+		reclaim();
+		return trim(System.currentTimeMillis(), 0);
+	}
+
+	// ----------------------------------------------------------------------
+	// Start the thread which releases idle bodies, if not running.
+	// ----------------------------------------------------------------------
+	private static synchronized void startTrimmer() {
+		if (trimmer != null) {
+			return;
+		}
+		trimmer = XTSthread.newThread(new Runnable() {
+			public void run() {
+				for (;;) {
+					try {
+						Thread.sleep(Math.max(1000, Math.min(idleTime / 2, 60000)));
+					} catch (InterruptedException ie) {
+					}
+					long now = System.currentTimeMillis();
+					clock = now;
+					if (idleTime > 0) {
+						reclaim();
+						trim(now, idleTime);
+					}
+				}
+			}
+		}, "XTS-message-trimmer", true);
+		trimmer.start();
+	}
+
+	private static Message allocate(final int capacity) {
+		long now = System.nanoTime();
+		long next = nextReclaim.get();
+		if (now - next > 0 && nextReclaim.compareAndSet(next, now + 1000000000L)) {
+			reclaim();
+			if (trimmer == null && idleTime > 0) {
+				startTrimmer();
+			}
+		}
+		misses.increment();
+		messages.increment();
+		long m = memory.addAndGet(capacity);
+		long b;
+		while (capacity > (b = biggest.get()) && !biggest.compareAndSet(b, capacity)) {
+		}
+		if (XTStrace.bGlobalVerboseEnabled)
+			XTStrace.verbose(">>NewMessage=" + messages.sum() + " AllocatedLength=" + capacity + " BiggestLength=" + biggest.get() + " Memory=" + m + "b");
+		return new Message(capacity);
+	}
+
+	private static Message allocateDirect(final int capacity) {
+		if (trimmer == null && idleTime > 0) {
+			startTrimmer();
+		}
+		misses.increment();
+		messages.increment();
+		long m = offHeap.addAndGet(capacity);
+		if (XTStrace.bGlobalVerboseEnabled)
+			XTStrace.verbose(">>NewDirectMessage=" + messages.sum() + " AllocatedLength=" + capacity + " OffHeap=" + m + "b");
+		return new Message(ByteBuffer.allocateDirect(capacity));
+	}
+
+	/** Return the number of bodies allocated so far. **/
+	public static long getMessages() {
+		return messages.sum();
+	}
+
+	/** Return the number of free messages in the pool. **/
+	public static long getFreedMessages() {
+		return freed.sum();
+	}
+
+	/** Return the bytes held by message bodies, in use or free. **/
+	public static long getMemory() {
+		return memory.get();
+	}
+
+	/** Return the largest body allocated so far. **/
+	public static long getBiggestLength() {
+		return biggest.get();
+	}
+
+	/** Return the bytes held by off-heap bodies, in use or free. **/
+	public static long getOffHeapMemory() {
+		return offHeap.get();
+	}
+
+	/** Return the bytes held by off-heap bodies in use. **/
+	public static long getOffHeapUsed() {
+		return offHeapUsed.get();
+	}
+
+	/** Return the most bytes of off-heap bodies in use at a time. **/
+	public static long getOffHeapPeak() {
+		return offHeapPeak.get();
+	}
+
+	/** Return the bytes of free bodies kept in the depots. **/
+	public static long getRetained() {
+		long n = 0;
+		for (int c = 0; c < CLASSES; c++) {
+			n += retained.get(c) + retainedDirect.get(c);
+		}
+		return n;
+	}
+
+	/** Return the number of bodies given up to the collector. **/
+	public static long getReleased() {
+		return released.sum();
+	}
+
+	/** Return the number of messages taken from the pool. **/
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	/** Return the number of messages which had to be allocated. **/
+	public static long getMisses() {
+		return misses.sum();
+	}
+
+	/** Return the counters, for monitoring. **/
+	public static String getStatistics() {
+		return "Messages=" + messages.sum() + " FreedMessages=" + freed.sum() + " Memory=" + memory.get() + " BiggestLength=" + biggest.get() + " hits="
+				+ hits.sum() + " misses=" + misses.sum() + " Retained=" + getRetained() + " released=" + released.sum() + " OffHeap=" + offHeap.get() + " OffHeapUsed=" + offHeapUsed.get() + " OffHeapPeak=" + offHeapPeak.get();
+	}
+}
@@ -12,6 +12,7 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Vector;
 
+import com.softwareag.adabas.xts.helpers.XTSthread;
 import com.softwareag.adabas.xts.interfaces.IXTSreceiver;
 
 /**
@@ -51,6 +52,7 @@ public class Server implements Runnable {
 
 	// Static variables
 	private static int nexttarg = 0x7e000001; // next target ID
+	private static int chirpCnt = 0; // chirp thread counter
 	private static final Hashtable<String, Server> NameLookup = new Hashtable<String, Server>();
 	private static final HashMap<Integer, Server> IDlookup = new HashMap<Integer, Server>();
 	private static final Vector<Server> chirpers = new Vector<Server>();
@@ -83,8 +85,7 @@ public class Server implements Runnable {
 		lastChirp = System.currentTimeMillis();
 
 		if (rcb != null) {
-			thread = new Thread(this);
-			thread.setDaemon(true);
+			thread = XTSthread.newThread(this, "Chirp-" + ++chirpCnt, true);
 			thread.start();
 			chirpers.addElement(this);
 		}
@@ -20,16 +20,25 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.softwareag.adabas.xts.directory.DefaultDirectory;
 import com.softwareag.adabas.xts.directory.Directory;
 import com.softwareag.adabas.xts.directory.INIdir;
+import com.softwareag.adabas.xts.helpers.ConnectionPool;
+import com.softwareag.adabas.xts.helpers.LevelQueue;
 import com.softwareag.adabas.xts.helpers.Status;
 import com.softwareag.adabas.xts.helpers.Target;
 import com.softwareag.adabas.xts.helpers.Token;
+import com.softwareag.adabas.xts.helpers.XTSthread;
 import com.softwareag.adabas.xts.interfaces.IConnectCallback;
 import com.softwareag.adabas.xts.interfaces.IConnection;
 import com.softwareag.adabas.xts.interfaces.IDriver;
@@ -105,7 +114,8 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 
 	// private static final ConcurrentHashMap<String, IConnection> connections =
 	// new ConcurrentHashMap<String, IConnection>();
-	private static Hashtable<String, ArrayList<IConnection>> urls = new Hashtable<String, ArrayList<IConnection>>();
+	private static ConcurrentHashMap<String, ConnectionPool> pools = new ConcurrentHashMap<String, ConnectionPool>(); // client connections per location
+	private static ConcurrentHashMap<String, CompletableFuture<IConnection>> connecting = new ConcurrentHashMap<String, CompletableFuture<IConnection>>(); // connect in progress per location
 
 	private static HashMap<Integer, XTS> replies = new HashMap<Integer, XTS>();
 	private static ReentrantLock replyLock = new ReentrantLock();
@@ -150,6 +160,33 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 	public static boolean closeConnections = false;
 	public static boolean connectEachConnection = false;
 	public static int forceOpenConnections = 1; // minimal open connections
+	/**
+	 * The maximum number of client connections per location, 0 for no limit.
+	 * Senders wait for a free connection when the limit is reached. The URL
+	 * qualifier <i>poolmax=n</i> overrides it. Defaults to 0.
+	 **/
+	public static int poolMaxSize = 0;
+	/**
+	 * The number of client connections per location kept open when idle and
+	 * opened in advance when the location is first used. The URL qualifier
+	 * <i>poolmin=n</i> overrides it. Defaults to 0.
+	 **/
+	public static int poolMinIdle = 0;
+	/**
+	 * The time in milliseconds after which a free client connection is
+	 * closed, 0 to keep connections open. The URL qualifier
+	 * <i>poolidle=n</i> overrides it. Defaults to 0.
+	 **/
+	public static long poolIdleTimeout = 0;
+	/**
+	 * The number of outstanding requests a client connection is shared by.
+	 * A new connection is made only when all connections to the location
+	 * have that many requests outstanding. 0 uses a connection for one
+	 * request at a time. The URL qualifier <i>window=n</i> overrides it.
+	 * Defaults to 0.
+	 **/
+	public static int multiplexWindow = 0;
+	private static Thread poolEvictor = null; // closes idle connections
 
 	private static int nextNumber = 0; // next state number
 	/**
@@ -166,13 +203,25 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 	 **/
 	public static long sleepTimeout = 120000;      // sleep timeout
 	public static long maxmsglength = 1024*1024;   // max received message length
+	/**
+	 * The number of event loop threads used by connections with the URL
+	 * qualifier <i>engine=nio</i>. Defaults to the number of processors.
+	 **/
+	public static int nioThreads = 0;              // nio event loops
+	/**
+	 * Run the driver threads, the chirp threads of servers and the threads
+	 * started by {@link #startReceiveThreads} as virtual threads. Needs a
+	 * Java 21 runtime, ignored otherwise. Defaults to the system property
+	 * XTSVIRTUALTHREADS.
+	 **/
+	public static boolean virtualThreads = Boolean.getBoolean("XTSVIRTUALTHREADS");
 
 	private boolean freeState = false;
 	private static XTS freeXTS = null; // chain of free XTS
 	private static boolean isWaiters = false; // are waiters
 	private static int waiters = 0; // number of actual waiting th
 	private static boolean running = true; // =false during shutdown
-	private static Token[] msgQ = new Token[2];
+	private static LevelQueue<Token> msgQ = new LevelQueue<Token>(LevelQueue.STARVE); // by priority
 
 	// private static Directory directory=new DefaultDirectory();
 	private static Directory defaultDirectory = new DefaultDirectory();
@@ -182,6 +231,8 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 	// Locks
 	// -----------------------------------------------------------------------
 	private static ReentrantLock allocLock = new ReentrantLock(); // allocation lock
+	private static ReentrantLock msgLock = new ReentrantLock(); // msgQ lock
+	private static Condition msgWait = msgLock.newCondition(); // msgQ not empty
 	private static Object connLock = new Object(); // connection lock
 	private static Object initListenLock = new Object(); // Initialize a listen lock
 	private static Object initConnLock = new Object(); // Initialize a connection lock
@@ -214,8 +265,11 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 	private int index;
 	private int clientIndex;
 	private boolean noClient = false;
+	private final ReentrantLock replyWait = new ReentrantLock(); // sendAndWait lock
+	private final Condition replied = replyWait.newCondition(); // reply arrived
 	// private String register = null;
 	private static AtomicInteger gIndex = new AtomicInteger(0);
+	private static AtomicInteger workerCnt = new AtomicInteger(0); // receive thread counter
 	private static AtomicInteger cIndex = new AtomicInteger(0);
 	// -----------------------------------------------------------------------
 
@@ -434,6 +488,7 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("Free connection " + connection);
 			connection.setFree();
+			released(connection);
 		}
 		connection = null;
 		noClient = false;
@@ -813,56 +868,71 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 	 * Get a connection for the specified URL. The connection is reused if the
 	 * line is free. If not a new connection is established and used.
 	 * 
+	 * The connections to a location are pooled. The connect itself runs
+	 * outside of any lock. There is at most one connect in progress per
+	 * location: concurrent senders to the same location wait for its outcome
+	 * and then look for a free connection again, senders to other locations
+	 * are not held up by it. When the pool is at its maximum size the sender
+	 * waits in turn for a connection to be freed.
+	 * 
 	 * @param url
 	 * @param state
 	 * @param p
-	 * @return
+	 * @return the connection, its usage increased, or null if the connect
+	 *         failed and the state has been failed.
 	 */
 	private static IConnection getConnection(final XTSurl url, final XTS state, final Message p, final int connTo, XTS x) {
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose(">>>>Get connection to " + state);
-		IConnection conn = getFreeUrl(url);
-		if (conn == null) {
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose("Found no one in the list, create new one");
-			// System.out.println("URL:"+url.target+" "+url.port);
-			Object th = new Object();
-			synchronized (th) {
-				if (connTo > 0)
-					url.driver().connect(url, state, th, connTo);
-				else
-					url.driver().connect(url, state, th);
-				if (!(state.getWaitFor() instanceof IConnection)) {
-					try {
-						if (XTStrace.bGlobalVerboseEnabled) 
-							XTStrace.verbose("Wait with sleeptimeout=" + sleepTimeout);
-						th.wait(sleepTimeout); // wait for connect
-					} catch (InterruptedException ie) {
-					}
+		String location = url.toString(XTSurl.HOST_ADDRESS_FORMAT);
+		ConnectionPool pool = getPool(url);
+		IConnection conn = null;
+		long deadline = 0;
+		while (conn == null) {
+			conn = pool.acquire();
+			if (conn != null) {
+				break;
+			}
+			if (!pool.reserve()) {
+				long now = System.currentTimeMillis();
+				if (deadline == 0) {
+					deadline = now + sleepTimeout;
+				}
+				conn = pool.await(deadline - now);
+				if (conn == null && System.currentTimeMillis() >= deadline) {
+					if (XTStrace.bGlobalVerboseEnabled) 
+						XTStrace.verbose("No free connection to " + pool);
+					state.fail("Connection pool exhausted", p);
+					return null;
 				}
+				continue;
 			}
-			if (state.getWaitFor() instanceof IConnection) {// success?
-				conn = (IConnection) state.getWaitFor();
-				// Connection complete - Indicate waiting on Message
-				state.setWaitFor(p);
-				conn.setLock();
-				addUrls(url, conn);
-				// urls.put(url[0].toString(),conn); [0033]
-				state.setWaitFor(p); // restore message
+			CompletableFuture<IConnection> connect = new CompletableFuture<IConnection>();
+			CompletableFuture<IConnection> inProgress = connecting.putIfAbsent(location, connect);
+			if (inProgress == null) {
+				try {
+					conn = connect(url, state, p, connTo);
+				} finally {
+					pool.unreserve();
+					connecting.remove(location, connect);
+					connect.complete(conn);
+				}
+				if (conn == null) {
+					return null;
+				}
 			} else {
-				if (!(state.getWaitFor() instanceof String)) {
-					state.setWaitFor("Connection Failed");
+				pool.unreserve();
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Wait for connect in progress to " + location);
+				IConnection c = null;
+				try {
+					c = inProgress.get(sleepTimeout, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+				}
+				if (c == null) {
+					state.fail("Connection Failed", p);
+					return null;
 				}
-				String target = null;
-				if (url.partition != null)
-					target = url.partition + url.target;
-				else
-					target = url.target;
-				DefaultDirectory.deleteTargetFromCache(target);
-				Target.removeByName(target);
-				
-				state.fail((String) state.getWaitFor(), p);
-				return null;
 			}
 		}
 		if (x != null)
@@ -870,75 +940,230 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		return conn;
 	}
 
+	// -----------------------------------------------------------------------
+	// Establish a new connection, no lock held. It is registered for the
+	// location, locked for and used by the caller. If it fails the target
+	// is dropped from the caches and the state is failed.
+	// -----------------------------------------------------------------------
+	private static IConnection connect(final XTSurl url, final XTS state, final Message p, final int connTo) {
+		if (XTStrace.bGlobalVerboseEnabled) 
+			XTStrace.verbose("Found no one in the list, create new one");
+		IConnection conn = open(url, state, p, connTo);
+		if (conn == null) {
+			if (!(state.getWaitFor() instanceof String)) {
+				state.setWaitFor("Connection Failed");
+			}
+			String target = null;
+			if (url.partition != null)
+				target = url.partition + url.target;
+			else
+				target = url.target;
+			DefaultDirectory.deleteTargetFromCache(target);
+			Target.removeByName(target);
+			
+			state.fail((String) state.getWaitFor(), p);
+		}
+		return conn;
+	}
+
+	// -----------------------------------------------------------------------
+	// Open a connection through the driver and register it for the location,
+	// null if it fails. Nothing else is touched either way.
+	// -----------------------------------------------------------------------
+	private static IConnection open(final XTSurl url, final XTS state, final Message p, final int connTo) {
+		IConnection conn = null;
+		// System.out.println("URL:"+url.target+" "+url.port);
+		CountDownLatch th = new CountDownLatch(1);
+		if (connTo > 0)
+			url.driver().connect(url, state, th, connTo);
+		else
+			url.driver().connect(url, state, th);
+		if (!(state.getWaitFor() instanceof IConnection)) {
+			try {
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Wait with sleeptimeout=" + sleepTimeout);
+				th.await(sleepTimeout, TimeUnit.MILLISECONDS); // wait for connect
+			} catch (InterruptedException ie) {
+			}
+		}
+		if (state.getWaitFor() instanceof IConnection) {// success?
+			conn = (IConnection) state.getWaitFor();
+			// Connection complete - Indicate waiting on Message
+			state.setWaitFor(p);
+			conn.setLock();
+			conn.increaseUsage();
+			addUrls(url, conn);
+			// urls.put(url[0].toString(),conn); [0033]
+			state.setWaitFor(p); // restore message
+		}
+		return conn;
+	}
+
 	/**
-	 * Search for current active connection one which is defined as free
+	 * Get the connection pool of a location, creating it on first use. The
+	 * pool limits are taken from the URL qualifiers <i>poolmax</i>,
+	 * <i>poolmin</i>, <i>poolidle</i> and <i>window</i>, the static defaults
+	 * otherwise.
 	 * 
 	 * @param url
 	 * @return
 	 */
-	private static IConnection getFreeUrl(final XTSurl url) {
+	private static ConnectionPool getPool(final XTSurl url) {
 		String location = url.toString(XTSurl.HOST_ADDRESS_FORMAT);
-
+		ConnectionPool pool = pools.get(location);
+		if (pool != null) {
+			return pool;
+		}
+		int max = poolMaxSize;
+		int min = poolMinIdle;
+		long idle = poolIdleTimeout;
+		int window = multiplexWindow;
+		try {
+			max = Integer.parseInt(url.getValue("poolmax"));
+		} catch (Exception e) {
+		}
+		try {
+			min = Integer.parseInt(url.getValue("poolmin"));
+		} catch (Exception e) {
+		}
+		try {
+			idle = Long.parseLong(url.getValue("poolidle"));
+		} catch (Exception e) {
+		}
+		try {
+			window = Integer.parseInt(url.getValue("window"));
+		} catch (Exception e) {
+		}
+		ConnectionPool p = new ConnectionPool(url, max, min, idle, window);
+		pool = pools.putIfAbsent(location, p);
+		if (pool != null) {
+			return pool;
+		}
 		if (XTStrace.bGlobalVerboseEnabled) 
-			XTStrace.verbose("[CONN] Get free connection in urlList for location " + location);
-		ArrayList<IConnection> urlList = urls.get(location);
-		if (urlList != null) {
-			for (IConnection c : urlList) {
-				if (XTStrace.bGlobalVerboseEnabled) 
-					XTStrace.verbose("[CONN] list=" + c);
-				if (useOnlyOneConnection) {
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("[CONN] Return one connection=" + c);
-					c.setLock();
-					return c;
+			XTStrace.verbose("[POOL] New " + p);
+		if (idle > 0) {
+			startPoolEvictor();
+		}
+		if (p.getMinIdle() > 0) {
+			XTSthread.newThread(new Runnable() {
+				public void run() {
+					prewarm(p);
 				}
-				if ((c.usage() == 0) || (!connectEachConnection)) {
-					if (c.isFree()) {
-						c.setLock();
-						if (XTStrace.bGlobalVerboseEnabled) 
-							XTStrace.verbose("[CONN] Found free connection in urlList=" + c);
-						return c;
+			}, "XTS-pool-prewarm", true).start();
+		}
+		return p;
+	}
+
+	// -----------------------------------------------------------------------
+	// Open connections until the pool holds its minimum number. A failure
+	// only ends the fill, the target caches used by senders stay as they are.
+	// -----------------------------------------------------------------------
+	private static void prewarm(final ConnectionPool pool) {
+		while (running && pool.size() < pool.getMinIdle() && pool.reserve()) {
+			IConnection conn = null;
+			XTS s = newXTS(SEND, null, null, null, null, "Prewarm");
+			try {
+				conn = open(pool.getUrl(), s, null, 0);
+			} finally {
+				pool.unreserve();
+			}
+			if (conn == null) {
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("[POOL] Prewarm failed for " + pool.getLocation() + ": " + s.getWaitFor());
+				s.free();
+				return;
+			}
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose("[POOL] Prewarmed connection=" + conn + " for " + pool.getLocation());
+			conn.releaseUsage();
+			s.connection = conn;
+			s.free();
+		}
+	}
+
+	// -----------------------------------------------------------------------
+	// Start the thread which closes idle connections, if not running. It
+	// ends on shutdown.
+	// -----------------------------------------------------------------------
+	private static synchronized void startPoolEvictor() {
+		if (poolEvictor != null) {
+			return;
+		}
+		poolEvictor = XTSthread.newThread(new Runnable() {
+			public void run() {
+				while (running) {
+					long period = Long.MAX_VALUE;
+					for (ConnectionPool pool : pools.values()) {
+						if (pool.getIdleTimeout() > 0) {
+							period = Math.min(period, pool.getIdleTimeout());
+						}
+					}
+					try {
+						Thread.sleep(Math.max(1000, Math.min(period / 2, 60000)));
+					} catch (InterruptedException ie) {
+					}
+					if (!running) {
+						break;
+					}
+					long now = System.currentTimeMillis();
+					for (ConnectionPool pool : pools.values()) {
+						for (IConnection conn : pool.evict(now)) {
+							if (XTStrace.bGlobalVerboseEnabled) 
+								XTStrace.verbose("[POOL] Close idle connection=" + conn);
+							conn.close();
+						}
+						if (pool.size() < pool.getMinIdle()) {
+							prewarm(pool);
+						}
 					}
-					/*
-					 * c.setLock(); return c;
-					 */
 				}
 			}
+		}, "XTS-pool-evictor", true);
+		poolEvictor.start();
+	}
+
+	// -----------------------------------------------------------------------
+	// A connection has been freed, let the next waiter of its pool have it.
+	// -----------------------------------------------------------------------
+	private static void released(final IConnection conn) {
+		XTSurl url = conn.getUrl();
+		if (url == null) {
+			return;
 		}
-		return null;
+		ConnectionPool pool = pools.get(url.toString(XTSurl.HOST_ADDRESS_FORMAT));
+		if (pool != null) {
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * Return the client connection pools, one per location. The toString
+	 * method of a pool shows its occupancy and wait time statistics.
+	 * 
+	 * @return
+	 */
+	public static ConnectionPool[] getConnectionPools() {
+		return pools.values().toArray(new ConnectionPool[0]);
+	}
+
+	/**
+	 * Return the client connection pool of a location.
+	 * 
+	 * @param location
+	 *            the location, as returned by ConnectionPool.getLocation.
+	 * @return the pool or null if there is none.
+	 */
+	public static ConnectionPool getConnectionPool(final String location) {
+		return pools.get(location);
 	}
 
 	private static void addUrls(final XTSurl url, final IConnection conn) {
-		ArrayList<IConnection> urlList = null;
-		String location = "Unknown";
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("[CONN] Add url=" + url + " for connection=" + conn);
-		if (url != null) {
-			location = url.toString(XTSurl.HOST_ADDRESS_FORMAT);
-			urlList = urls.get(location);
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose("[CONN] location=" + location);
-		}
-		if (urlList == null) {
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose("[CONN] Add connection=" + conn + " to location=" + location + " New urlList");
-			urlList = new ArrayList<IConnection>();
-			urlList.add(conn);
-			urls.put(location, urlList);
-		} else {
-			for (IConnection c : urlList)
-				if (c == conn) {
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("[CONN] Match! conn=" + c);
-					return;
-				} else {
-				if (XTStrace.bGlobalVerboseEnabled) 
-					XTStrace.verbose("[CONN] Connection=" + c);
-				}
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose("[CONN] Add connection=" + conn + " to existing urlList");
-			urlList.add(conn);
+		if (url == null) {
+			return;
 		}
+		getPool(url).add(conn);
 	}
 
 	public static void refreshConnection(final Object token) {
@@ -962,20 +1187,16 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		if (conn.isClosed()) {
 			return;
 		}
-		synchronized (connLock) {
-			int usage = conn.usage();
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose("[CONN] Current connection usage=" + usage + " of conn=" + conn + " closed=" + conn.isClosed() + " free=" + conn.isFree());
-			if (usage == 0) {
-				String location = url.toString(XTSurl.HOST_ADDRESS_FORMAT);
-				ArrayList<IConnection> urlList = urls.get(location);
-				// Remove unused connection if more than one
-				if ((urlList != null) && (urlList.size() > forceOpenConnections)) {
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("[CONN] Remove and Close connection=" + conn);
-					urlList.remove(conn);
-					conn.close();
-				}
+		int usage = conn.usage();
+		if (XTStrace.bGlobalVerboseEnabled) 
+			XTStrace.verbose("[CONN] Current connection usage=" + usage + " of conn=" + conn + " closed=" + conn.isClosed() + " free=" + conn.isFree());
+		if (usage == 0) {
+			ConnectionPool pool = pools.get(url.toString(XTSurl.HOST_ADDRESS_FORMAT));
+			// Remove unused connection if more than the minimum
+			if ((pool != null) && pool.retire(conn, forceOpenConnections)) {
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("[CONN] Remove and Close connection=" + conn);
+				conn.close();
 			}
 		}
 	}
@@ -986,7 +1207,10 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		String location = url.toString(XTSurl.HOST_ADDRESS_FORMAT);
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("[CONN] Remove location=" + location + " for connection=" + conn);
-		urls.remove(location);
+		ConnectionPool pool = pools.get(location);
+		if (pool != null) {
+			pool.clear();
+		}
 	}
 
 	/**
@@ -1196,12 +1420,7 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 			if (remoteUrl != null) {
 				if (XTStrace.bGlobalVerboseEnabled) 
 					XTStrace.verbose("Remote URL=" + remoteUrl);
-				synchronized (connLock) {
-					conn = getConnection(remoteUrl, state, sendParms.p, sendParms.connTo, x);
-					if (conn != null) {
-						conn.increaseUsage();
-					}
-				}
+				conn = getConnection(remoteUrl, state, sendParms.p, sendParms.connTo, x);
 				if (pt == null && sendParms.targetName != null && conn != null)  {
 					if (sendParms.aliasName == null) {
 						if (sendParms.targetId > 0) {
@@ -1321,7 +1540,7 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 				XTStrace.verbose("New Object SendAndWait to " + sendParms.targetName + " " + sendParms.p.toString() + " timeout:" + sendParms.timeout);	
 		}			
 		if (XTStrace.bGlobalDebugEnabled) 
-			XTStrace.dump("Sending Message:", "sendAndWait", sendParms.p.body, sendParms.p.length, true);
+			XTStrace.dump("Sending Message:", "sendAndWait", sendParms.p.getBody(), sendParms.p.length, true);
 		XTS x = newXTS(SNDWAIT, null, "txtimeout", null, RXTIMEOUT, null);
 		x.setWaitFor(x);
 		x.rcb = (IXTSreceiver) x;
@@ -1342,24 +1561,32 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		sendParms.SetTransmitterAndReceiveParameters(x.tcb, x.rcb);
 		send(sendParms, x);
 
-		synchronized (x) {
+		boolean interrupted = false;
+		x.replyWait.lock();
+		try {
 			if (x.rxuserval == RXTIMEOUT) {
-				try {
-					if (XTStrace.bGlobalVerboseEnabled) {
-						XTStrace.verbose("Client wait for request " + x);
-						XTStrace.verbose("XTS waits " + (sendParms.timeout + 100));
-					}
-					x.wait(sendParms.timeout + 100);
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("Client got request back");
-					// reply comes back in rxuserval
-				} catch (InterruptedException ie) {
-					if (XTStrace.bGlobalErrorEnabled) 
-						XTStrace.error("Client wait interrupted");
-					x.xtsResponseCode = XTSException.XTS_CLIENT_WAIT_INTERRUPTED;
-					xtsError(x, "Client wait interrupted");
+				if (XTStrace.bGlobalVerboseEnabled) {
+					XTStrace.verbose("Client wait for request " + x);
+					XTStrace.verbose("XTS waits " + (sendParms.timeout + 100));
 				}
+				long nanos = TimeUnit.MILLISECONDS.toNanos(sendParms.timeout + 100);
+				while (x.rxuserval == RXTIMEOUT && nanos > 0) {
+					nanos = x.replied.awaitNanos(nanos);
+				}
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Client got request back");
+				// reply comes back in rxuserval
 			}
+		} catch (InterruptedException ie) {
+			interrupted = true;
+		} finally {
+			x.replyWait.unlock();
+		}
+		if (interrupted) {
+			if (XTStrace.bGlobalErrorEnabled) 
+				XTStrace.error("Client wait interrupted");
+			x.xtsResponseCode = XTSException.XTS_CLIENT_WAIT_INTERRUPTED;
+			xtsError(x, "Client wait interrupted");
 		}
 		x.noClient = true;
 		if (x.rxuserval instanceof Message) {
@@ -1406,7 +1633,7 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 				sendParms.p.token = conn;
 				if (XTStrace.bGlobalDebugEnabled) {
 					XTStrace.debug("Message received : " + m);
-					XTStrace.dump("Message successfully returned", 	"sendAndWait", m.body, m.length, true);
+					XTStrace.dump("Message successfully returned", 	"sendAndWait", m.getBody(), m.length, true);
 				}
 //				if (XTS.checkMsgFreed) {
 //					if (m.isFreed()) {
@@ -1461,7 +1688,7 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		String alias = null;
 		Target pt = target;
 		alias = pt.getAliasname ();
-		synchronized (connLock) {
+		synchronized (pt) { // one resolve per target, other targets go on
 			if (pt.getTarget() == -1) {
 				byte[] b = null;
 				try {
@@ -1713,20 +1940,17 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("giveThread() called by -> " + Thread.currentThread());
 		for (;;) {
-			synchronized (msgQ) {
+			msgLock.lock();
+			try {
 				while (running) {
-					tok = msgQ[0]; // get headof queue
+					tok = msgQ.poll(); // most urgent first
 					if (tok != null) { // something on the Q					
-						msgQ[0] = tok.next; // dequeue it
-						if (tok.next == null) {
-							msgQ[1] = null;// set tail null also
-						}
 						break;
 					} else {
 						waiters++;
 						if (sleepTime == 0) {
 							try {
-								msgQ.wait();
+								msgWait.await();
 							} catch (InterruptedException ie) {
 							}
 							waiters--;
@@ -1734,7 +1958,7 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 							long nextTime = System.currentTimeMillis()
 									+ sleepTime - 5;
 							try {
-								msgQ.wait(sleepTime);
+								msgWait.await(sleepTime, TimeUnit.MILLISECONDS);
 							} catch (InterruptedException ie) {
 							}
 							waiters--;
@@ -1744,6 +1968,8 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 						}
 					}
 				}
+			} finally {
+				msgLock.unlock();
 			}
 			if (tok != null) {
 				if (XTStrace.bGlobalVerboseEnabled)  {
@@ -1762,6 +1988,26 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		}
 	}
 
+	// -----------------------------------------------------------------------
+	/**
+	 * Start threads which give themselves to XTS for receive callbacks, see
+	 * {@link #giveThread()}. They are virtual threads if
+	 * {@link #virtualThreads} is set.
+	 ** 
+	 * @param count
+	 *            the number of threads to start.
+	 **/
+	// -----------------------------------------------------------------------
+	public static final void startReceiveThreads(final int count) {
+		for (int i = 0; i < count; i++) {
+			XTSthread.newThread(new Runnable() {
+				public void run() {
+					giveThread();
+				}
+			}, "XTS-receive-" + workerCnt.incrementAndGet(), true).start();
+		}
+	}
+
 	// -----------------------------------------------------------------------
 	/** Interface method for driver, called by the driver when connected. **/
 	// -----------------------------------------------------------------------
@@ -1808,10 +2054,10 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		// clear trace of this
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("[CONN] Get list for partner=" + partner.toString(XTSurl.HOST_ADDRESS_FORMAT));
-		ArrayList<IConnection> connList = urls.get(partner.toString(XTSurl.HOST_ADDRESS_FORMAT));
+		ConnectionPool pool = pools.get(partner.toString(XTSurl.HOST_ADDRESS_FORMAT));
 		if (XTStrace.bGlobalVerboseEnabled) 
-			XTStrace.verbose("[CONN] connList=" + connList);
-		if (connList != null) {
+			XTStrace.verbose("[CONN] pool=" + pool);
+		if (pool != null) {
 			if ((delConn != null) && (delConn.isClosed())) {
 				if (XTStrace.bGlobalVerboseEnabled) 
 					XTStrace.verbose("[CONN] Delete specific connection " + delConn);
@@ -1836,12 +2082,12 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 				if (!outstanding) {
 					if (XTStrace.bGlobalVerboseEnabled) 
 						XTStrace.verbose("[CONN] Remove connection from conn=" + delConn);
-					connList.remove(delConn); // Normal close connection
+					pool.remove(delConn); // Normal close connection
 				}
 			} else {
 				if (XTStrace.bGlobalVerboseEnabled) 
 					XTStrace.verbose("[CONN] Remove partner=" + partner.toString(XTSurl.HOST_ADDRESS_FORMAT));
-				urls.remove(partner.toString(XTSurl.HOST_ADDRESS_FORMAT));
+				List<IConnection> connList = pool.clear();
 				if (XTStrace.bGlobalVerboseEnabled) 
 					XTStrace.verbose("Delete all connections");
 				for (IConnection conn : connList)
@@ -1961,16 +2207,14 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 						t.userval = rxuserval;
 						t.msg = message;
 						t.next = null;
-						synchronized (msgQ) {
-							if (msgQ[1] != null) {
-								msgQ[1].next = t;
-							} else {
-								msgQ[0] = t;
-							}
-							msgQ[1] = t;
+						msgLock.lock();
+						try {
+							msgQ.add(t, message.priority);
 							if (waiters > 0) {
-								msgQ.notify();
+								msgWait.signal();
 							}
+						} finally {
+							msgLock.unlock();
 						}
 					} else {
 						if (XTStrace.bGlobalVerboseEnabled) {
@@ -2268,7 +2512,9 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("Send Resolve target reply " + p.toString());
 			Message.dump("Send Resolve target reply " + conn, "control_msg", p);
-			conn.send(p, null, null);
+			if (conn.send(p, null, null)) {
+				p.freeMessage("resolve reply");
+			}
 			break;
 		case CHIRP:
 		default:
@@ -2320,7 +2566,7 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 				Enumeration<?> serverEnum = server.getChirpUrls();
 				while (serverEnum.hasMoreElements()) {
 					if ((XTSurl) serverEnum.nextElement() == c.getStatus().driverUrl) {
-						Message q = p.cloneMessage();
+						Message q = p.share(); // one body for all proxies
 						if (XTStrace.bGlobalDebugEnabled) {
 							Message.dump("Send chirp" + c, "chirp", q);
 						}
@@ -2613,6 +2859,12 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 	// -----------------------------------------------------------------------
 	public static final void shutdown() {
 		running = false;
+		synchronized (XTS.class) { // the pool evictor
+			if (poolEvictor != null) {
+				poolEvictor.interrupt();
+				poolEvictor = null;
+			}
+		}
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Shutdown Requested");
 		synchronized (shutLock) {
@@ -2630,10 +2882,8 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 			// for(int i=0;i<keys.length;i++) [0036]
 			// { Connection conn=(Connection)connections.get(keys[i]);
 			// if(conn!=null)
-			Enumeration<ArrayList<IConnection>> e = urls.elements();
-			while (e.hasMoreElements()) {
-				ArrayList<IConnection> connList = (ArrayList<IConnection>) e.nextElement();
-				for (IConnection conn : connList) {
+			for (ConnectionPool pool : pools.values()) {
+				for (IConnection conn : pool.getConnections()) {
 					if (XTStrace.bGlobalVerboseEnabled) 
 						XTStrace.verbose("Shutdown..closing connection=" + conn);
 					conn.close();
@@ -2648,7 +2898,10 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		// connections.clear();
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Clear urls");
-		urls.clear();
+		for (ConnectionPool pool : pools.values()) {
+			pool.clear();
+		}
+		pools.clear();
 		replyLock.lock();
 		try {
 			// synchronized (replyLock) {
@@ -2659,7 +2912,13 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 		proxies.clear();
 		resname.clear();
 		while (waiters > 0) {
-			signal(msgQ);
+			msgLock.lock();
+			try {
+				msgWait.signalAll();
+			} finally {
+				msgLock.unlock();
+			}
+			Thread.yield();
 		}
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Delete all servers");
@@ -2676,8 +2935,20 @@ public final class XTS implements IConnectCallback, ITransmitCallback, IReceiveC
 	// -----------------------------------------------------------------------
 	private static final void signal(final Object o) {
 // mihai reduce trace	XTStrace.verbose("Send signal to " + o);
-		synchronized (o) {
-			o.notify();
+		if (o instanceof XTS) { // sendAndWait
+			XTS x = (XTS) o;
+			x.replyWait.lock();
+			try {
+				x.replied.signalAll();
+			} finally {
+				x.replyWait.unlock();
+			}
+		} else if (o instanceof CountDownLatch) { // getConnection
+			((CountDownLatch) o).countDown();
+		} else {
+			synchronized (o) {
+				o.notify();
+			}
 		}
 	}
 
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.softwareag.adabas.xts.helpers.BufferPool;
+
+/**
+ * This class provides a non-synchronized, buffered input stream over a large
+ * pooled buffer. A single read from the socket usually brings in several XTS
+ * frames, which {@link Message#getMessage(XTSinputStream)} parses directly
+ * from the buffer. Reads larger than the buffer bypass it and land in the
+ * destination array. A direct buffer is filled through the socket channel.
+ **
+ **/
+// Maintenance History:
+// Pooled framed receive
+
+public class XTSinputStream extends InputStream {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+	ByteBuffer buf; // pooled buffer, data between pos and limit
+	int pos = 0;
+	int limit = 0;
+	int markpos = -1;
+	int marklimit = 0;
+	InputStream is;
+	ReadableByteChannel ch; // used for a direct buffer
+	long reads = 0; // reads from the underlying stream
+	long firstRead = 0; // System.nanoTime() of the first bytes read
+
+	/**
+	 * Constructor.
+	 **
+	 * @param in
+	 *            the underlying input stream.
+	 ** @param channel
+	 *            the channel of the underlying stream, null if there is none.
+	 ** @param size
+	 *            the size of the buffer.
+	 ** @param direct
+	 *            true to use a direct buffer. Ignored if there is no
+	 *            channel.
+	 **/
+	public XTSinputStream(InputStream in, ReadableByteChannel channel, int size, boolean direct) {
+		is = in;
+		if (direct && channel != null) {
+			ch = channel;
+		}
+		buf = BufferPool.get(size, ch != null);
+	}
+
+	/** Read a single byte. **/
+	public final int read() throws IOException {
+		if (pos >= limit && fill() <= 0) {
+			return -1;
+		}
+		return buf.get(pos++) & 0xff;
+	}
+
+	/** Read up to len bytes into a byte sub-array. **/
+	public final int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int n = limit - pos;
+		if (n <= 0) {
+			if (len >= buf.capacity() && markpos < 0) {
+				return readSource(b, off, len); // no point in copying
+			}
+			if (fill() <= 0) {
+				return -1;
+			}
+			n = limit - pos;
+		}
+		n = Math.min(n, len);
+		buf.get(pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	/** Read exactly len bytes into a byte sub-array. **/
+	public final void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = read(b, off, len);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Skip up to n bytes. **/
+	public final long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (pos >= limit && fill() <= 0) {
+			return 0;
+		}
+		int k = (int) Math.min(n, limit - pos);
+		pos += k;
+		return k;
+	}
+
+	/** Return the number of bytes which can be read without blocking. **/
+	public final int available() throws IOException {
+		return (limit - pos) + is.available();
+	}
+
+	public final boolean markSupported() {
+		return true;
+	}
+
+	public final void mark(int readlimit) {
+		markpos = pos;
+		marklimit = readlimit;
+	}
+
+	public final void reset() throws IOException {
+		if (markpos < 0) {
+			throw new IOException("Resetting to invalid mark");
+		}
+		pos = markpos;
+	}
+
+	// ----------------------------------------------------------------------
+	// Frame access for Message.getMessage
+	// ----------------------------------------------------------------------
+	/**
+	 * Make sure that at least n bytes are buffered.
+	 **
+	 * @exception EOFException
+	 *                if the stream ends before.
+	 **/
+	final void require(int n) throws IOException {
+		if (limit - pos >= n) {
+			return;
+		}
+		compact();
+		if (buf.capacity() - pos < n) {
+			grow(pos + n);
+		}
+		while (limit - pos < n) {
+			if (readBuffer() < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/** Return the number of bytes buffered. **/
+	final int buffered() {
+		return limit - pos;
+	}
+
+	/** Get a buffered byte, relative to the read position. **/
+	final byte get(int off) {
+		return buf.get(pos + off);
+	}
+
+	/** Get a buffered big endian int, relative to the read position. **/
+	final int getInt(int off) {
+		return buf.getInt(pos + off);
+	}
+
+	/** Move n buffered bytes to the given array. **/
+	final void take(byte[] b, int off, int n) {
+		buf.get(pos, b, off, n);
+		pos += n;
+	}
+
+	/**
+	 * Move len bytes to the start of a buffer: those buffered, the rest read
+	 * from the channel straight into the buffer where there is one.
+	 **
+	 * @exception EOFException
+	 *                if the stream ends before.
+	 **/
+	final void readFully(ByteBuffer dst, int len) throws IOException {
+		int n = Math.min(limit - pos, len);
+		dst.put(0, buf, pos, n);
+		pos += n;
+		ByteBuffer d = dst.slice(n, len - n);
+		while (d.hasRemaining()) {
+			if (ch != null) {
+				reads++;
+				n = ch.read(d);
+			} else if (fill() > 0) {
+				n = Math.min(limit - pos, d.remaining());
+				d.put(d.position(), buf, pos, n);
+				d.position(d.position() + n);
+				pos += n;
+			} else {
+				n = -1;
+			}
+			if (n < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/** Return the number of reads from the underlying stream so far. **/
+	public final long getReads() {
+		return reads;
+	}
+
+	/** Return the System.nanoTime() of the first bytes read, 0 if none. **/
+	public final long getFirstRead() {
+		return firstRead;
+	}
+
+	/**
+	 * Return the buffer to the pool. The stream must not be read any more.
+	 **/
+	public final void release() {
+		ByteBuffer b = buf;
+		buf = null;
+		if (b != null) {
+			BufferPool.put(b);
+		}
+	}
+
+	/** Close the underlying stream. **/
+	public void close() throws IOException {
+		is.close();
+	}
+
+	// ----------------------------------------------------------------------
+	// Refill the buffer, keeping a valid mark.
+	// ----------------------------------------------------------------------
+	private final int fill() throws IOException {
+		if (markpos >= 0 && pos - markpos > marklimit) {
+			markpos = -1;
+		}
+		if (markpos < 0 && pos >= limit) {
+			pos = limit = 0;
+		} else if (limit == buf.capacity()) {
+			compact();
+			if (limit == buf.capacity()) {
+				grow(buf.capacity() * 2);
+			}
+		}
+		return readBuffer();
+	}
+
+	private final int readBuffer() throws IOException {
+		int n;
+		reads++;
+		if (ch != null) {
+			buf.limit(buf.capacity()).position(limit);
+			try {
+				n = ch.read(buf);
+			} finally {
+				buf.clear();
+			}
+		} else {
+			n = is.read(buf.array(), limit, buf.capacity() - limit);
+		}
+		if (n > 0) {
+			if (firstRead == 0) {
+				firstRead = System.nanoTime();
+			}
+			limit += n;
+		}
+		return n;
+	}
+
+	private final int readSource(byte[] b, int off, int len) throws IOException {
+		reads++;
+		int n = (ch != null) ? ch.read(ByteBuffer.wrap(b, off, len)) : is.read(b, off, len);
+		if (n > 0 && firstRead == 0) {
+			firstRead = System.nanoTime();
+		}
+		return n;
+	}
+
+	// Move the unread bytes (or those from the mark on) to the start.
+	private final void compact() {
+		int keep = markpos >= 0 ? Math.min(markpos, pos) : pos;
+		if (keep == 0) {
+			return;
+		}
+		buf.limit(limit).position(keep);
+		buf.compact();
+		buf.clear();
+		pos -= keep;
+		limit -= keep;
+		if (markpos >= 0) {
+			markpos -= keep;
+		}
+	}
+
+	// Replace the buffer with a larger one.
+	private final void grow(int size) {
+		ByteBuffer b = buf.isDirect() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		buf.limit(limit).position(0);
+		b.put(buf);
+		b.clear();
+		buf.clear();
+		BufferPool.put(buf);
+		buf = b;
+	}
+}
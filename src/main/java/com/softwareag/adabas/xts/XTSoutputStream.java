@@ -9,6 +9,7 @@ package com.softwareag.adabas.xts;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * This class provides a non-synchronized, buffered data output stream. It is
@@ -25,6 +26,9 @@ public class XTSoutputStream {
 	int count = 0;
 	int lastcount = 0;
 	OutputStream os;
+	boolean batching = false; // defer flushes
+	int batchLimit = 0; // flush anyway when reached
+	long writes = 0; // writes to the underlying stream
 
 	/**
 	 * Constructor.
@@ -73,6 +77,16 @@ public class XTSoutputStream {
 		count += b.length;
 	}
 
+	/** Write the remaining bytes of a buffer to the stream. **/
+	public final void write(ByteBuffer b) {
+		int len = b.remaining();
+		if (buf.length - count < len) {
+			newbuf(len);
+		}
+		b.get(buf, count, len);
+		count += len;
+	}
+
 	private final void newbuf() {
 		byte[] b = new byte[buf.length * 3 / 2]; // 50% increase
 		System.arraycopy(buf, 0, b, 0, count);
@@ -105,9 +119,25 @@ public class XTSoutputStream {
 		}
 	}
 
-	/** Flush the stream to its underlying output stream. **/
+	/**
+	 * Flush the stream to its underlying output stream. Inside a batch the
+	 * flush is deferred until {@link #endBatch} or until the batch limit is
+	 * reached.
+	 **/
 	public final void flush() throws IOException {
+		if (batching && count < batchLimit) {
+			return;
+		}
+		flushPending();
+	}
+
+	/**
+	 * Flush the stream to its underlying output stream, even inside a batch.
+	 * Used before data bypasses the buffer.
+	 **/
+	public final void flushPending() throws IOException {
 		if (count > 0) {
+			writes++;
 			os.write(buf, 0, count);
 			// os.flush(); [0004]
 			lastcount = count;
@@ -115,6 +145,40 @@ public class XTSoutputStream {
 		}
 	}
 
+	/**
+	 * Start a batch. Flushes are deferred, so that the messages of the batch
+	 * are written to the underlying stream at once.
+	 ** 
+	 * @param limit
+	 *            the number of buffered bytes at which a flush is done
+	 *            nevertheless.
+	 **/
+	public final void startBatch(int limit) {
+		batching = true;
+		batchLimit = limit;
+	}
+
+	/** End a batch and flush what it buffered. **/
+	public final void endBatch() throws IOException {
+		batching = false;
+		flush();
+	}
+
+	/** Return the number of bytes buffered. **/
+	public final int size() {
+		return count;
+	}
+
+	/** Return the number of writes to the underlying stream so far. **/
+	public final long getWrites() {
+		return writes;
+	}
+
+	/** Count a write which bypassed the buffer. **/
+	public final void countWrite() {
+		writes++;
+	}
+
 	/** Close the underlying stream. **/
 	public void close() throws IOException {
 		os.close();
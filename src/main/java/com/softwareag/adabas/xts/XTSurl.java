@@ -18,6 +18,7 @@ import java.lang.Object.*;
 import java.lang.reflect.*;
 
 import com.softwareag.adabas.xts.interfaces.IDriver;
+import com.softwareag.adabas.xts.network.SocketOptions;
 import com.softwareag.adabas.xts.protocol.*;
 import com.softwareag.adabas.xts.XTStrace;
 /**
@@ -177,6 +178,7 @@ public class XTSurl implements Serializable {
 				XTStrace.verbose("Invalid URL=" + inUrl + " port value outside of bounds (0-65353)");
 			throw new XTSException("Invalid URL=" + inUrl + " port value outside of bounds (0-65353)", XTSException.XTS_INVALID_PORT);
 		}								
+		new SocketOptions(this); // validate socket options
 	}
 
 	private static final int[] revhex = { 0, 10, 11, 12, 13, 14, 15, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
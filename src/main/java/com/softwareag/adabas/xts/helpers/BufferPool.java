@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * Pool of the large receive buffers of the connections. Buffers are kept
+ * per capacity, heap and direct buffers separately, so that a connection
+ * which goes away hands its buffer to the next one instead of leaving it to
+ * the garbage collector. Only the capacities asked for through <i>get</i>
+ * are pooled; buffers grown to other sizes are left to the garbage
+ * collector.
+ **
+ **/
+//   Maintenance:
+//   Pooled receive buffers
+// ----------------------------------------------------------------------
+public final class BufferPool {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	/** The number of buffers kept per capacity. **/
+	public static int retain = 64;
+
+	private static final ConcurrentHashMap<Integer, Buffers> heap = new ConcurrentHashMap<Integer, Buffers>();
+	private static final ConcurrentHashMap<Integer, Buffers> direct = new ConcurrentHashMap<Integer, Buffers>();
+	private static final AtomicInteger allocated = new AtomicInteger(0);
+	private static final AtomicInteger pooled = new AtomicInteger(0);
+
+	private BufferPool() {
+	}
+
+	// The free buffers of one capacity.
+	private static final class Buffers {
+		final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+		final AtomicInteger count = new AtomicInteger(0);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Get a cleared buffer.
+	 **
+	 * @param capacity
+	 *            the capacity of the buffer.
+	 ** @param isDirect
+	 *            true for a direct buffer, false for a buffer backed by an
+	 *            array.
+	 ** @return a buffer from the pool or a new one.
+	 **/
+	// ----------------------------------------------------------------------
+	public static ByteBuffer get(final int capacity, final boolean isDirect) {
+		ConcurrentHashMap<Integer, Buffers> m = isDirect ? direct : heap;
+		Buffers q = m.get(capacity);
+		if (q == null) { // a standard capacity from now on
+			m.putIfAbsent(capacity, new Buffers());
+			q = m.get(capacity);
+		}
+		ByteBuffer b = q.queue.poll();
+		if (b != null) {
+			q.count.decrementAndGet();
+			pooled.decrementAndGet();
+			b.clear();
+			return b;
+		}
+		allocated.incrementAndGet();
+		if (XTStrace.bGlobalVerboseEnabled)
+			XTStrace.verbose("BufferPool allocate capacity=" + capacity + " direct=" + isDirect + " allocated=" + allocated.get());
+		return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return a buffer to the pool. It is dropped if its capacity was never
+	 * asked for, or if enough buffers of its capacity are pooled already.
+	 **
+	 * @param b
+	 *            the buffer, which must not be used anymore by the caller.
+	 **/
+	// ----------------------------------------------------------------------
+	public static void put(final ByteBuffer b) {
+		Buffers q = (b.isDirect() ? direct : heap).get(b.capacity());
+		if (q == null) {
+			return; // grown, not a standard capacity
+		}
+		if (q.count.incrementAndGet() <= retain) {
+			pooled.incrementAndGet();
+			q.queue.offer(b);
+		} else {
+			q.count.decrementAndGet();
+		}
+	}
+
+	/** Return the number of buffers allocated so far. **/
+	public static int getAllocated() {
+		return allocated.get();
+	}
+
+	/** Return the number of buffers currently pooled. **/
+	public static int getPooled() {
+		return pooled.get();
+	}
+}
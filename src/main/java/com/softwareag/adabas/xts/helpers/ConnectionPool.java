@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.softwareag.adabas.xts.XTS;
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSurl;
+import com.softwareag.adabas.xts.XTSversion;
+import com.softwareag.adabas.xts.interfaces.IConnection;
+
+//----------------------------------------------------------------------
+/**
+ * The client connections to one location. A sender takes a free connection
+ * from the pool; if there is none and the pool is below its maximum size a
+ * new connection is made, otherwise the sender waits in a FIFO queue until a
+ * connection is freed. Connections which stayed free longer than the idle
+ * timeout are closed, down to the minimum number to keep.
+ **
+ * With a window, a connection is shared by up to that many outstanding
+ * requests, which are told apart by the route of their messages. The
+ * connection with the fewest outstanding requests is taken, and a new
+ * connection is made only when all are at the window. Connections which do
+ * not count their requests are used by one request at a time.
+ **
+ * The pool only does the bookkeeping, connecting and closing is left to the
+ * caller.
+ **/
+//   Maintenance:
+//   Connection pool per location
+// ----------------------------------------------------------------------
+public final class ConnectionPool {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	private final XTSurl url;
+	private final String location;
+	private final int maxSize; // 0 for no limit
+	private final int minIdle;
+	private final long idleTimeout; // ms, 0 for none
+	private final int window; // outstanding requests per connection, 0 for exclusive use
+	private final CopyOnWriteArrayList<IConnection> connections = new CopyOnWriteArrayList<IConnection>();
+	private final ConcurrentHashMap<IConnection, Long> lastUsed = new ConcurrentHashMap<IConnection, Long>();
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition released = lock.newCondition();
+	private int connecting = 0; // connects in progress
+	private volatile int waiting = 0; // senders in the wait queue
+
+	/** The number of connections taken from the pool. **/
+	public volatile long acquired = 0;
+	/** The number of connections added to the pool. **/
+	public volatile long created = 0;
+	/** The number of connections closed because they were idle. **/
+	public volatile long evicted = 0;
+	/** The number of senders which had to wait for a connection. **/
+	public volatile long waits = 0;
+	/** The number of waits which timed out. **/
+	public volatile long waitTimeouts = 0;
+	/** The total time spent waiting, in nanoseconds. **/
+	public volatile long waitNanos = 0;
+	/** The longest wait, in nanoseconds. **/
+	public volatile long maxWaitNanos = 0;
+
+	/**
+	 * Constructor.
+	 **
+	 * @param url
+	 *            the URL of the location.
+	 ** @param maxSize
+	 *            the maximum number of connections, 0 for no limit.
+	 ** @param minIdle
+	 *            the number of connections kept open when idle.
+	 ** @param idleTimeout
+	 *            the time in milliseconds after which a free connection is
+	 *            closed, 0 to keep connections open.
+	 ** @param window
+	 *            the number of outstanding requests a connection is shared
+	 *            by, 0 to use a connection for one request at a time.
+	 **/
+	public ConnectionPool(final XTSurl url, final int maxSize, final int minIdle, final long idleTimeout, final int window) {
+		this.url = url;
+		this.location = url.toString(XTSurl.HOST_ADDRESS_FORMAT);
+		this.maxSize = maxSize;
+		this.minIdle = (maxSize > 0) ? Math.min(minIdle, maxSize) : minIdle;
+		this.idleTimeout = idleTimeout;
+		this.window = window;
+	}
+
+	/** Return the URL of the location. **/
+	public XTSurl getUrl() {
+		return url;
+	}
+
+	/** Return the location. **/
+	public String getLocation() {
+		return location;
+	}
+
+	/** Return the maximum number of connections, 0 for no limit. **/
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/** Return the number of connections kept open when idle. **/
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+	/** Return the idle timeout in milliseconds. **/
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/** Return the number of outstanding requests per connection, 0 if not shared. **/
+	public int getWindow() {
+		return window;
+	}
+
+	/** Return the number of connections. **/
+	public int size() {
+		return connections.size();
+	}
+
+	/** Return the number of free connections. **/
+	public int idle() {
+		int n = 0;
+		for (IConnection c : connections) {
+			if (c.isFree()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Return the number of outstanding requests on all connections. One
+	 * that does not count them adds one while it is in use.
+	 **/
+	public int outstanding() {
+		int n = 0;
+		for (IConnection c : connections) {
+			int o = c.outstanding();
+			n += (o >= 0) ? o : (c.isFree() ? 0 : 1);
+		}
+		return n;
+	}
+
+	/** Return the number of senders waiting for a connection. **/
+	public int getWaiting() {
+		return waiting;
+	}
+
+	/** Return the connections. **/
+	public List<IConnection> getConnections() {
+		return connections;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Take a free connection. Senders already waiting are served first.
+	 **
+	 * @return the connection, locked and its usage increased, or null if
+	 *         there is none.
+	 **/
+	// ----------------------------------------------------------------------
+	public IConnection acquire() {
+		lock.lock();
+		try {
+			if (waiting > 0 && !hasRoom()) {
+				return null; // queue behind the waiters
+			}
+			return find();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Reserve room for a new connection.
+	 **
+	 * @return false if the pool is at its maximum size.
+	 **/
+	// ----------------------------------------------------------------------
+	public boolean reserve() {
+		lock.lock();
+		try {
+			if (!hasRoom()) {
+				return false;
+			}
+			connecting++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Give back the room reserved for a new connection. **/
+	public void unreserve() {
+		lock.lock();
+		try {
+			connecting--;
+			released.signal(); // a waiter may connect instead
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Wait for a connection to be freed.
+	 **
+	 * @param timeout
+	 *            the maximum time to wait in milliseconds.
+	 ** @return the connection, locked and its usage increased, or null if the
+	 *         time is up or there is room for a new connection.
+	 **/
+	// ----------------------------------------------------------------------
+	public IConnection await(final long timeout) {
+		long start = System.nanoTime();
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		boolean first = true;
+		IConnection c = null;
+		lock.lock();
+		try {
+			waits++;
+			waiting++;
+			if (XTStrace.bGlobalVerboseEnabled)
+				XTStrace.verbose("[POOL] Wait for connection to " + location + " waiting=" + waiting);
+			try {
+				while (true) {
+					if (!first || waiting == 1) { // FIFO: wait behind earlier senders
+						c = find();
+						if (c != null || hasRoom()) {
+							break;
+						}
+					}
+					first = false;
+					if (nanos <= 0) {
+						waitTimeouts++;
+						break;
+					}
+					nanos = released.awaitNanos(nanos);
+				}
+			} catch (InterruptedException ie) {
+			} finally {
+				waiting--;
+				if (c == null && waiting > 0) {
+					released.signal(); // pass the turn on
+				}
+			}
+			long w = System.nanoTime() - start;
+			waitNanos += w;
+			if (w > maxWaitNanos) {
+				maxWaitNanos = w;
+			}
+			return c;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Add a new connection.
+	 **
+	 * @param conn
+	 *            the connection.
+	 **/
+	// ----------------------------------------------------------------------
+	public void add(final IConnection conn) {
+		lock.lock();
+		try {
+			if (connections.addIfAbsent(conn)) {
+				created++;
+				lastUsed.put(conn, System.currentTimeMillis());
+				if (XTStrace.bGlobalVerboseEnabled)
+					XTStrace.verbose("[POOL] Add connection=" + conn + " to location=" + location + " size=" + connections.size());
+			} else {
+				if (XTStrace.bGlobalVerboseEnabled)
+					XTStrace.verbose("[POOL] Match! conn=" + conn);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Note that a connection has been freed and hand it to the next waiter.
+	 **
+	 * @param conn
+	 *            the connection.
+	 **/
+	// ----------------------------------------------------------------------
+	public void release(final IConnection conn) {
+		if (lastUsed.replace(conn, System.currentTimeMillis()) == null) {
+			return; // not in the pool
+		}
+		if (waiting > 0) {
+			lock.lock();
+			try {
+				released.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Remove a connection.
+	 **
+	 * @param conn
+	 *            the connection.
+	 ** @return true if it was in the pool.
+	 **/
+	// ----------------------------------------------------------------------
+	public boolean remove(final IConnection conn) {
+		lock.lock();
+		try {
+			lastUsed.remove(conn);
+			boolean removed = connections.remove(conn);
+			if (removed) {
+				released.signal(); // room for a new one
+			}
+			return removed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Remove a free connection if the pool holds more than the given number.
+	 **
+	 * @param conn
+	 *            the connection.
+	 ** @param keep
+	 *            the number of connections to keep.
+	 ** @return true if it was removed and should be closed.
+	 **/
+	// ----------------------------------------------------------------------
+	public boolean retire(final IConnection conn, final int keep) {
+		lock.lock();
+		try {
+			if (connections.size() <= Math.max(keep, minIdle) || !connections.contains(conn)) {
+				return false;
+			}
+			return remove(conn);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Remove all connections.
+	 **
+	 * @return the connections removed.
+	 **/
+	// ----------------------------------------------------------------------
+	public List<IConnection> clear() {
+		lock.lock();
+		try {
+			List<IConnection> l = new ArrayList<IConnection>(connections);
+			connections.clear();
+			lastUsed.clear();
+			released.signalAll();
+			return l;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Remove the connections which have been free longer than the idle
+	 * timeout, keeping the minimum number.
+	 **
+	 * @param now
+	 *            the current time in milliseconds.
+	 ** @return the connections removed, to be closed by the caller.
+	 **/
+	// ----------------------------------------------------------------------
+	public List<IConnection> evict(final long now) {
+		List<IConnection> l = new ArrayList<IConnection>();
+		if (idleTimeout <= 0) {
+			return l;
+		}
+		lock.lock();
+		try {
+			for (IConnection c : connections) {
+				if (connections.size() <= minIdle) {
+					break;
+				}
+				Long t = lastUsed.get(c);
+				if (c.isFree() && t != null && now - t.longValue() > idleTimeout) {
+					connections.remove(c);
+					lastUsed.remove(c);
+					l.add(c);
+					evicted++;
+				}
+			}
+			if (!l.isEmpty()) {
+				released.signalAll();
+				if (XTStrace.bGlobalVerboseEnabled)
+					XTStrace.verbose("[POOL] Evict " + l.size() + " idle connections from location=" + location);
+			}
+			return l;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Return the pool occupancy and wait statistics. **/
+	public String toString() {
+		int n = connections.size();
+		int free = idle();
+		return "ConnectionPool " + location + " size=" + n + " busy=" + (n - free) + " idle=" + free
+				+ " max=" + (maxSize > 0 ? Integer.toString(maxSize) : "unlimited") + " minIdle=" + minIdle
+				+ (window > 0 ? " window=" + window + " outstanding=" + outstanding() : "")
+				+ " waiting=" + waiting + " acquired=" + acquired + " created=" + created + " evicted=" + evicted
+				+ " waits=" + waits + " waitTimeouts=" + waitTimeouts
+				+ " avgWaitMs=" + (waits > 0 ? waitNanos / waits / 1000000 : 0) + " maxWaitMs=" + maxWaitNanos / 1000000;
+	}
+
+	// ----------------------------------------------------------------------
+	// Free connection search, lock held.
+	// ----------------------------------------------------------------------
+	private IConnection find() {
+		if (window > 0) {
+			IConnection least = null;
+			IConnection single = null; // does not count, used exclusively
+			int n = window;
+			for (IConnection c : connections) {
+				int o = c.outstanding();
+				if (o < 0) {
+					if (single == null && !c.isClosed() && c.isFree()) {
+						single = c;
+					}
+				} else if (o < n && !c.isClosed()) {
+					least = c;
+					n = o;
+				}
+			}
+			if (least != null) {
+				if (XTStrace.bGlobalVerboseEnabled)
+					XTStrace.verbose("[CONN] Share connection=" + least + " outstanding=" + n);
+				return take(least);
+			}
+			return (single != null) ? take(single) : null;
+		}
+		for (IConnection c : connections) {
+			if (XTStrace.bGlobalVerboseEnabled)
+				XTStrace.verbose("[CONN] list=" + c);
+			if (XTS.useOnlyOneConnection) {
+				if (XTStrace.bGlobalVerboseEnabled)
+					XTStrace.verbose("[CONN] Return one connection=" + c);
+				return take(c);
+			}
+			if ((c.usage() == 0) || (!XTS.connectEachConnection)) {
+				if (c.isFree()) {
+					if (XTStrace.bGlobalVerboseEnabled)
+						XTStrace.verbose("[CONN] Found free connection in urlList=" + c);
+					return take(c);
+				}
+			}
+		}
+		return null;
+	}
+
+	private IConnection take(final IConnection c) {
+		c.setLock();
+		c.increaseUsage();
+		acquired++;
+		return c;
+	}
+
+	private boolean hasRoom() {
+		return maxSize <= 0 || connections.size() + connecting < maxSize;
+	}
+}
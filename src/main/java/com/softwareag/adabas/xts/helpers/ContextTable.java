@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * The contexts saved by a connection for its outstanding calls, keyed by
+ * the route of the call. The entries are kept inline: an int key, a time
+ * stamp and a fixed number of bytes in one array, found by open addressing.
+ **
+ * An entry is removed when the reply for its route is processed. Entries
+ * whose reply never came are dropped after the time to live; when the
+ * table is at its maximum size the oldest entry makes room.
+ **/
+//   Maintenance:
+//   Primitive keyed context table
+// ----------------------------------------------------------------------
+public final class ContextTable {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	/** The default time to live of an entry in milliseconds, 0 for none. **/
+	public static long defaultTtl = 3600000;
+	/** The default maximum number of entries. **/
+	public static int defaultMax = 65536;
+
+	private final int width; // bytes per entry
+	private long ttl = defaultTtl;
+	private int max = defaultMax;
+	private int[] keys;
+	private long[] stamps; // 0 for a free slot
+	private byte[] data;
+	private int mask;
+	private int size = 0;
+	private long nextSweep = 0;
+	/** The number of entries dropped unanswered. **/
+	public long evicted = 0;
+	/** The highest number of entries seen. **/
+	public int highWater = 0;
+
+	/**
+	 * Constructor.
+	 **
+	 * @param width
+	 *            the number of bytes saved per entry.
+	 **/
+	public ContextTable(final int width) {
+		this.width = width;
+		allocate(16);
+	}
+
+	/**
+	 * Set the time to live of an entry.
+	 **
+	 * @param ttl
+	 *            milliseconds, 0 to keep entries until their reply.
+	 **/
+	public final synchronized void setTtl(final long ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Set the maximum number of entries.
+	 **
+	 * @param max
+	 *            the maximum, at least 1.
+	 **/
+	public final synchronized void setMax(final int max) {
+		this.max = Math.max(max, 1);
+	}
+
+	/** Return the number of entries. **/
+	public final synchronized int size() {
+		return size;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Save a context, replacing the one saved for the key before.
+	 **
+	 * @param key
+	 *            the route.
+	 ** @param src
+	 *            the array holding the context.
+	 ** @param off
+	 *            the offset of the context, <i>width</i> bytes are copied.
+	 **/
+	// ----------------------------------------------------------------------
+	public final synchronized void put(final int key, final byte[] src, final int off) {
+		long now = System.currentTimeMillis();
+		if (ttl > 0 && now >= nextSweep) {
+			sweep(now - ttl);
+			nextSweep = now + Math.max(ttl >> 2, 1000);
+		}
+		int i = find(key);
+		if (stamps[i] == 0) {
+			if (size >= max) {
+				dropOldest();
+			}
+			if (size + 1 > (mask + 1) >> 1) {
+				allocate((mask + 1) << 1);
+			}
+			i = find(key);
+			keys[i] = key;
+			size++;
+			if (size > highWater) {
+				highWater = size;
+			}
+		}
+		stamps[i] = now;
+		System.arraycopy(src, off, data, i * width, width);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Remove a context.
+	 **
+	 * @param key
+	 *            the route.
+	 ** @param dst
+	 *            receives the context.
+	 ** @param off
+	 *            the offset in <i>dst</i>.
+	 ** @return false if there was no context for the key.
+	 **/
+	// ----------------------------------------------------------------------
+	public final synchronized boolean remove(final int key, final byte[] dst, final int off) {
+		int i = find(key);
+		if (stamps[i] == 0) {
+			return false;
+		}
+		System.arraycopy(data, i * width, dst, off, width);
+		delete(i);
+		return true;
+	}
+
+	/** Drop all entries. **/
+	public final synchronized void clear() {
+		allocate(16);
+	}
+
+	/** Return size and counters, for monitoring. **/
+	public final synchronized String toString() {
+		return "contexts=" + size + " high=" + highWater + " evicted=" + evicted;
+	}
+
+	// Slot of the key, or the free slot where it would go.
+	private int find(final int key) {
+		int i = slot(key);
+		while (stamps[i] != 0 && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private int slot(final int key) {
+		int h = key * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	// Drop the entries stamped before the limit.
+	private void sweep(final long limit) {
+		int n = 0;
+		for (int i = 0; i <= mask;) {
+			if (stamps[i] != 0 && stamps[i] < limit) {
+				delete(i); // an entry may move into i
+				n++;
+			} else {
+				i++;
+			}
+		}
+		if (n > 0) {
+			evicted += n;
+			if (XTStrace.bGlobalVerboseEnabled)
+				XTStrace.verbose("Context table dropped " + n + " expired contexts");
+		}
+	}
+
+	private void dropOldest() {
+		int oldest = -1;
+		for (int i = 0; i <= mask; i++) {
+			if (stamps[i] != 0 && (oldest < 0 || stamps[i] < stamps[oldest])) {
+				oldest = i;
+			}
+		}
+		delete(oldest);
+		evicted++;
+	}
+
+	// Free a slot, moving later entries of the probe sequence back.
+	private void delete(int i) {
+		int j = i;
+		for (;;) {
+			stamps[i] = 0;
+			int k;
+			do {
+				j = (j + 1) & mask;
+				if (stamps[j] == 0) {
+					size--;
+					return;
+				}
+				k = slot(keys[j]);
+			} while ((i <= j) ? (i < k && k <= j) : (i < k || k <= j));
+			keys[i] = keys[j];
+			stamps[i] = stamps[j];
+			System.arraycopy(data, j * width, data, i * width, width);
+			i = j;
+		}
+	}
+
+	private void allocate(final int capacity) {
+		int[] k = keys;
+		long[] s = stamps;
+		byte[] d = data;
+		keys = new int[capacity];
+		stamps = new long[capacity];
+		data = new byte[capacity * width];
+		mask = capacity - 1;
+		size = 0;
+		if (s != null && capacity > s.length) {
+			for (int i = 0; i < s.length; i++) {
+				if (s[i] != 0) {
+					int j = find(k[i]);
+					keys[j] = k[i];
+					stamps[j] = s[i];
+					System.arraycopy(d, i * width, data, j * width, width);
+					size++;
+				}
+			}
+		}
+	}
+}
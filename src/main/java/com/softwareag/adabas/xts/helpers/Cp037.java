@@ -15,7 +15,6 @@ import com.softwareag.adabas.xts.XTSversion;
 public class Cp037 {
 	public static final String VERSION = XTSversion.VERSION; 
 	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
-	static final char[] null_string = { ' ' };
 	static final char[] byteToString = { 0, // 0000
 			1, // 0001
 			2, // 0002
@@ -532,40 +531,36 @@ public class Cp037 {
 
 	public final String getString(byte[] b, int pos, int len) {
 		char[] c = new char[len];
-		int i = pos;
-		int j = 0;
-		try {
-			for (;;)
-				c[j++] = byteToString[b[i++] & 0xff];
-		} catch (Exception e) {
-		}
+		int n = Math.min(len, b.length - pos); // short source leaves nulls
+		for (int j = 0; j < n; j++)
+			c[j] = byteToString[b[pos + j] & 0xff];
 		return new String(c);
 	}
 
 	public final byte[] getBytes(String s) {
-		char[] c = s.toCharArray();
-		byte[] b = new byte[c.length];
-		int i = 0;
-		try {
-			for (;;)
-				b[i] = string_to_byte[c[i++]];
-		} catch (Exception e) {
+		int n = s.length();
+		byte[] b = new byte[n];
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c > 0xff) // not in the table, the rest stays null
+				break;
+			b[i] = string_to_byte[c];
 		}
 		return b;
 	}
 
 	public final byte[] getBytesAndLength(String s) {
-		char[] c = s.toCharArray();
-		int i = c.length;
-		if (i == 0) {
-			i = 1;
-			c = null_string;
+		int n = s.length();
+		if (n == 0) {
+			s = " ";
+			n = 1;
 		}
-		byte[] b = new byte[i + 1];
-		try {
-			for (;;)
-				b[i--] = string_to_byte[c[i]];
-		} catch (Exception e) {
+		byte[] b = new byte[n + 1];
+		for (int i = n; i > 0; i--) { // filled from the end
+			char c = s.charAt(i - 1);
+			if (c > 0xff)
+				break;
+			b[i] = string_to_byte[c];
 		}
 		b[0] = (byte) b.length;
 		return b;
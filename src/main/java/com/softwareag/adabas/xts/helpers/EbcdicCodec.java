@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * Table driven conversion between an EBCDIC single byte code page and
+ * characters. The conversions work on ranges of arrays or buffers supplied
+ * by the caller and allocate nothing; characters which the code page does
+ * not have become the substitute byte 0x3f.
+ **
+ * The code pages are 037 (the table of {@link Cp037}), 1140 (037 with the
+ * euro sign), 500 and 273. The same tables are available as a
+ * {@link Charset} through {@link #charset()}. Unlike the JDK's IBM037, byte
+ * 0x15 is NEL (U+0085) and line feed is 0x25, as in {@link Cp037}.
+ **/
+//   Maintenance:
+//   EBCDIC codec with bulk and charset interfaces
+// ----------------------------------------------------------------------
+public final class EbcdicCodec {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	/** The EBCDIC substitute character. **/
+	public static final byte SUB = 0x3f;
+
+	/** US, Canada and others. **/
+	public static final EbcdicCodec CP037 = new EbcdicCodec("Cp037", new int[0]);
+	/** Code page 037 with the euro sign. **/
+	public static final EbcdicCodec CP1140 = new EbcdicCodec("Cp1140", new int[] { 0x9f, 0x20ac });
+	/** International Latin-1. **/
+	public static final EbcdicCodec CP500 = new EbcdicCodec("Cp500", new int[] { 0x4a, 0x005b, 0x4f, 0x0021, 0x5a, 0x005d, 0x5f, 0x005e, 0xb0, 0x00a2,
+			0xba, 0x00ac, 0xbb, 0x007c });
+	/** Germany and Austria. **/
+	public static final EbcdicCodec CP273 = new EbcdicCodec("Cp273", new int[] { 0x43, 0x007b, 0x4a, 0x00c4, 0x4f, 0x0021, 0x59, 0x007e, 0x5a, 0x00dc,
+			0x5f, 0x005e, 0x63, 0x005b, 0x6a, 0x00f6, 0x7c, 0x00a7, 0xa1, 0x00df, 0xb0, 0x00a2, 0xb5, 0x0040, 0xba, 0x00ac, 0xbb, 0x007c, 0xc0, 0x00e4,
+			0xcc, 0x00a6, 0xd0, 0x00fc, 0xdc, 0x007d, 0xe0, 0x00d6, 0xec, 0x005c, 0xfc, 0x005d });
+
+	private final String name;
+	private final char[] toChar = new char[256];
+	private final byte[][] toByte = new byte[256][]; // by high byte of the char, null if none
+	private Charset charset = null;
+
+	// Code page 037 with the given byte, char pairs changed.
+	private EbcdicCodec(final String name, final int[] changes) {
+		this.name = name;
+		System.arraycopy(Cp037.byteToString, 0, toChar, 0, 256);
+		for (int i = 0; i < changes.length; i += 2) {
+			toChar[changes[i]] = (char) changes[i + 1];
+		}
+		for (int b = 255; b >= 0; b--) { // the lowest byte wins for a char
+			char c = toChar[b];
+			byte[] page = toByte[c >> 8];
+			if (page == null) {
+				page = new byte[256];
+				java.util.Arrays.fill(page, SUB);
+				toByte[c >> 8] = page;
+			}
+			page[c & 0xff] = (byte) b;
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return the codec of a code page.
+	 **
+	 * @param cp
+	 *            the code page as number or name, e.g. 273, Cp273, IBM273.
+	 ** @return the codec, null if the code page is not supported.
+	 **/
+	// ----------------------------------------------------------------------
+	public static EbcdicCodec forName(final String cp) {
+		String s = cp.trim().toUpperCase();
+		if (s.startsWith("IBM-")) {
+			s = s.substring(4);
+		} else if (s.startsWith("IBM") || s.startsWith("CP")) {
+			s = s.substring(s.charAt(0) == 'I' ? 3 : 2);
+		}
+		try {
+			switch (Integer.parseInt(s)) {
+			case 37:
+				return CP037;
+			case 1140:
+				return CP1140;
+			case 500:
+				return CP500;
+			case 273:
+				return CP273;
+			}
+		} catch (NumberFormatException e) {
+		}
+		return null;
+	}
+
+	/** Return the name of the code page. **/
+	public String getName() {
+		return name;
+	}
+
+	/** Return the character of a byte. **/
+	public char toChar(final byte b) {
+		return toChar[b & 0xff];
+	}
+
+	/** Return the byte of a character, SUB if there is none. **/
+	public byte toByte(final char c) {
+		byte[] page = toByte[c >> 8];
+		return (page == null) ? SUB : page[c & 0xff];
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Decode bytes into characters.
+	 **
+	 * @param src
+	 *            the bytes.
+	 ** @param off
+	 *            the first byte.
+	 ** @param len
+	 *            the number of bytes.
+	 ** @param dst
+	 *            receives the characters.
+	 ** @param dstOff
+	 *            the first character position.
+	 ** @return the number of characters, <i>len</i>.
+	 **/
+	// ----------------------------------------------------------------------
+	public int decode(final byte[] src, final int off, final int len, final char[] dst, final int dstOff) {
+		char[] t = toChar;
+		for (int i = 0; i < len; i++) {
+			dst[dstOff + i] = t[src[off + i] & 0xff];
+		}
+		return len;
+	}
+
+	/** Decode bytes into a string. **/
+	public String decode(final byte[] src, final int off, final int len) {
+		char[] c = new char[len];
+		decode(src, off, len, c, 0);
+		return new String(c);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Encode characters into bytes.
+	 **
+	 * @param src
+	 *            the characters.
+	 ** @param off
+	 *            the first character.
+	 ** @param len
+	 *            the number of characters.
+	 ** @param dst
+	 *            receives the bytes.
+	 ** @param dstOff
+	 *            the first byte position.
+	 ** @return the number of bytes, <i>len</i>.
+	 **/
+	// ----------------------------------------------------------------------
+	public int encode(final char[] src, final int off, final int len, final byte[] dst, final int dstOff) {
+		byte[][] t = toByte;
+		byte[] latin = t[0];
+		for (int i = 0; i < len; i++) {
+			char c = src[off + i];
+			if (c < 256) {
+				dst[dstOff + i] = latin[c];
+			} else {
+				byte[] page = t[c >> 8];
+				dst[dstOff + i] = (page == null) ? SUB : page[c & 0xff];
+			}
+		}
+		return len;
+	}
+
+	/** Encode the characters of a string range into bytes. **/
+	public int encode(final CharSequence src, final int off, final int len, final byte[] dst, final int dstOff) {
+		for (int i = 0; i < len; i++) {
+			dst[dstOff + i] = toByte(src.charAt(off + i));
+		}
+		return len;
+	}
+
+	/** Encode a string into a new array. **/
+	public byte[] encode(final CharSequence src) {
+		byte[] b = new byte[src.length()];
+		encode(src, 0, b.length, b, 0);
+		return b;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Decode from a byte buffer into a char buffer, as far as both allow.
+	 **
+	 * @return the number of characters.
+	 **/
+	// ----------------------------------------------------------------------
+	public int decode(final ByteBuffer src, final CharBuffer dst) {
+		int n = Math.min(src.remaining(), dst.remaining());
+		if (src.hasArray() && dst.hasArray()) {
+			decode(src.array(), src.arrayOffset() + src.position(), n, dst.array(), dst.arrayOffset() + dst.position());
+			src.position(src.position() + n);
+			dst.position(dst.position() + n);
+			return n;
+		}
+		for (int i = 0; i < n; i++) {
+			dst.put(toChar[src.get() & 0xff]);
+		}
+		return n;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Encode from a char buffer into a byte buffer, as far as both allow.
+	 **
+	 * @return the number of bytes.
+	 **/
+	// ----------------------------------------------------------------------
+	public int encode(final CharBuffer src, final ByteBuffer dst) {
+		int n = Math.min(src.remaining(), dst.remaining());
+		if (src.hasArray() && dst.hasArray()) {
+			encode(src.array(), src.arrayOffset() + src.position(), n, dst.array(), dst.arrayOffset() + dst.position());
+			src.position(src.position() + n);
+			dst.position(dst.position() + n);
+			return n;
+		}
+		for (int i = 0; i < n; i++) {
+			dst.put(toByte(src.get()));
+		}
+		return n;
+	}
+
+	// Encode up to the first character the code page does not have.
+	private int encodeMapped(final char[] src, final int off, final int len, final byte[] dst, final int dstOff) {
+		char[] back = toChar;
+		byte[][] t = toByte;
+		for (int i = 0; i < len; i++) {
+			char c = src[off + i];
+			byte[] page = t[c >> 8];
+			if (page == null) {
+				return i;
+			}
+			byte b = page[c & 0xff];
+			if (back[b & 0xff] != c) {
+				return i;
+			}
+			dst[dstOff + i] = b;
+		}
+		return len;
+	}
+
+	/** Return true if the code page has the character. **/
+	public boolean canEncode(final char c) {
+		byte[] page = toByte[c >> 8];
+		return page != null && toChar[page[c & 0xff] & 0xff] == c;
+	}
+
+	/** Return the code page as a charset, named x-xts-cpNNN. **/
+	public synchronized Charset charset() {
+		if (charset == null) {
+			charset = new EbcdicCharset(this);
+		}
+		return charset;
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	// ----------------------------------------------------------------------
+	/** A charset on the tables of a codec. **/
+	// ----------------------------------------------------------------------
+	static final class EbcdicCharset extends Charset {
+		private final EbcdicCodec codec;
+
+		EbcdicCharset(final EbcdicCodec codec) {
+			super("x-xts-" + codec.name.toLowerCase(), null);
+			this.codec = codec;
+		}
+
+		public boolean contains(final Charset cs) {
+			return cs == this || "US-ASCII".equals(cs.name());
+		}
+
+		public CharsetDecoder newDecoder() {
+			return new CharsetDecoder(this, 1f, 1f) {
+				protected CoderResult decodeLoop(final ByteBuffer in, final CharBuffer out) {
+					codec.decode(in, out);
+					return in.hasRemaining() ? CoderResult.OVERFLOW : CoderResult.UNDERFLOW;
+				}
+			};
+		}
+
+		public CharsetEncoder newEncoder() {
+			return new CharsetEncoder(this, 1f, 1f, new byte[] { SUB }) {
+				public boolean canEncode(final char c) {
+					return codec.canEncode(c);
+				}
+
+				public boolean isLegalReplacement(final byte[] repl) {
+					return true;
+				}
+
+				protected CoderResult encodeLoop(final CharBuffer in, final ByteBuffer out) {
+					int n = Math.min(in.remaining(), out.remaining());
+					if (in.hasArray() && out.hasArray()) {
+						int k = codec.encodeMapped(in.array(), in.arrayOffset() + in.position(), n, out.array(), out.arrayOffset() + out.position());
+						in.position(in.position() + k);
+						out.position(out.position() + k);
+						n -= k;
+					}
+					for (int i = 0; i < n; i++) {
+						char c = in.get(in.position());
+						if (!codec.canEncode(c)) {
+							return Character.isSurrogate(c) ? CoderResult.malformedForLength(1) : CoderResult.unmappableForLength(1);
+						}
+						out.put(codec.toByte(c));
+						in.position(in.position() + 1);
+					}
+					return in.hasRemaining() ? CoderResult.OVERFLOW : CoderResult.UNDERFLOW;
+				}
+			};
+		}
+	}
+}
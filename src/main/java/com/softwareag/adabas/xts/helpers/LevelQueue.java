@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+import java.util.ArrayDeque;
+
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * A queue with one FIFO per message priority. The priority byte of the XTS
+ * header is mapped to 16 levels, higher values being more urgent; entries of
+ * equal priority keep their order. So that bulk traffic is not starved by a
+ * steady stream of urgent messages, every time the highest level has been
+ * served <i>starve</i> times in a row while lower levels were waiting, one
+ * entry of a lower level is taken, the lower levels being visited in turn.
+ **
+ * The queue is not synchronized; the owner guards it with its own lock.
+ **/
+//   Maintenance:
+//   Priority queues
+// ----------------------------------------------------------------------
+public final class LevelQueue<T> {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	/** The number of priority levels. **/
+	public static final int LEVELS = 16;
+	/** The default starvation guard. **/
+	public static final int STARVE = 16;
+
+	private final ArrayDeque<T>[] levels;
+	private final int starve; // top level turns before a lower level is served
+	private int used = 0; // bit i set if level i is not empty
+	private int size = 0;
+	private int turns = 0; // top level turns taken while lower levels wait
+	private int rover = LEVELS; // last lower level served by the guard
+
+	/**
+	 * Constructor.
+	 **
+	 * @param starve
+	 *            the number of entries taken from the highest level while
+	 *            lower levels wait, before one lower entry is taken. 0
+	 *            disables the guard.
+	 **/
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public LevelQueue(final int starve) {
+		this.starve = starve;
+		levels = new ArrayDeque[LEVELS];
+		for (int i = 0; i < LEVELS; i++) {
+			levels[i] = new ArrayDeque<T>();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Map an XTS priority byte to a level.
+	 **
+	 * @param priority
+	 *            the priority from the message header.
+	 ** @return the level, 0 to LEVELS-1.
+	 **/
+	// ----------------------------------------------------------------------
+	public static int level(final int priority) {
+		return Math.min(priority & 0xff, LEVELS - 1);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Add an entry behind those of the same priority.
+	 **
+	 * @param o
+	 *            the entry.
+	 ** @param priority
+	 *            the priority byte of the entry.
+	 **/
+	// ----------------------------------------------------------------------
+	public void add(final T o, final int priority) {
+		int l = level(priority);
+		levels[l].addLast(o);
+		used |= 1 << l;
+		size++;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Take the next entry.
+	 **
+	 * @return the oldest entry of the most urgent level, or null if the queue
+	 *         is empty.
+	 **/
+	// ----------------------------------------------------------------------
+	public T poll() {
+		if (used == 0) {
+			return null;
+		}
+		int top = 31 - Integer.numberOfLeadingZeros(used);
+		int l = top;
+		int lower = used & ~(1 << top);
+		if (lower == 0) {
+			turns = 0;
+		} else if (starve > 0 && ++turns > starve) {
+			turns = 0;
+			int below = lower & ((1 << rover) - 1); // next lower level in turn
+			if (below == 0) {
+				below = lower;
+			}
+			l = 31 - Integer.numberOfLeadingZeros(below);
+			rover = l;
+		}
+		T o = levels[l].pollFirst();
+		if (levels[l].isEmpty()) {
+			used &= ~(1 << l);
+		}
+		size--;
+		return o;
+	}
+
+	/** Return true if the queue is empty. **/
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Return the number of entries. **/
+	public int size() {
+		return size;
+	}
+}
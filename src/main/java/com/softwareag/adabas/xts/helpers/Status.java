@@ -13,6 +13,7 @@ import com.softwareag.adabas.xts.XTS;
 import com.softwareag.adabas.xts.XTStrace;
 import com.softwareag.adabas.xts.XTSurl;
 import com.softwareag.adabas.xts.XTSversion;
+import com.softwareag.adabas.xts.network.Compression;
 
 //----------------------------------------------------------------------
 /**
@@ -49,6 +50,40 @@ public class Status {
 	private String id = ""; // identifier for traces
 	/** The URL associated with the driver. **/
 	public XTSurl driverUrl; // url from driver object
+	/** The socket options in effect for the connection. **/
+	public String socketOptions = "";
+	/** The number of transmit batches written. **/
+	public long batches = 0;
+	/** The number of writes to the socket. **/
+	public long socketWrites = 0;
+	/**
+	 * Distribution of the number of messages per transmit batch. Slot 0
+	 * counts batches of 1 message, slot i batches of 2^i to 2^(i+1)-1
+	 * messages, the last slot all larger batches.
+	 **/
+	public final long[] batchSizes = new long[8];
+	/** The number of messages in the transmit queue. **/
+	public volatile int queueDepth = 0;
+	/** The number of body bytes in the transmit queue. **/
+	public volatile long queueBytes = 0;
+	/** The highest number of messages seen in the transmit queue. **/
+	public int queueHighWater = 0;
+	/** The highest number of body bytes seen in the transmit queue. **/
+	public long queueBytesHighWater = 0;
+	/** The number of sends which found the transmit queue full. **/
+	public long queueFull = 0;
+	/**
+	 * The time from connect to the first byte received, in nanoseconds. 0
+	 * until something has been received.
+	 **/
+	public long firstByteNanos = 0;
+	/**
+	 * The contexts saved for outstanding calls, for protocols which keep
+	 * them (MHDR, RDA), null otherwise.
+	 **/
+	public ContextTable contexts = null;
+	/** The body compression of the connection, null if there is none. **/
+	public Compression compression = null;
 
 	/** Default constructor. **/
 	public Status() {
@@ -86,6 +121,40 @@ public class Status {
 		XTStrace.verbose(id + url + " " + s);
 	}
 
+	/**
+	 * Record a transmit batch.
+	 ** 
+	 * @param messages
+	 *            the number of messages in the batch.
+	 ** @param writes
+	 *            the total number of socket writes so far.
+	 **/
+	public final void recordBatch(final int messages, final long writes) {
+		int i = 31 - Integer.numberOfLeadingZeros(messages); // -1 for none
+		batchSizes[Math.max(0, Math.min(i, batchSizes.length - 1))]++;
+		batches++;
+		socketWrites = writes;
+	}
+
+	/**
+	 * Record the transmit queue size.
+	 ** 
+	 * @param depth
+	 *            the number of messages queued.
+	 ** @param bytes
+	 *            the number of body bytes queued.
+	 **/
+	public final void setQueue(final int depth, final long bytes) {
+		queueDepth = depth;
+		queueBytes = bytes;
+		if (depth > queueHighWater) {
+			queueHighWater = depth;
+		}
+		if (bytes > queueBytesHighWater) {
+			queueBytesHighWater = bytes;
+		}
+	}
+
 	private static AtomicInteger nextid = new AtomicInteger(0);
 
 	private static final int getidno() {
@@ -0,0 +1,39 @@
+/* 
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA, 
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer, 
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement 
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+//----------------------------------------------------------------------
+/**
+ * Access to virtual threads. This is the variant for Java releases without
+ * virtual threads; the Multi-Release JAR carries a Java 21 variant under
+ * META-INF/versions/21 which creates real virtual threads.
+ ** 
+ **/
+//   Maintenance:
+//   Virtual thread support
+// ----------------------------------------------------------------------
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/** Return true if virtual threads can be created. **/
+	static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * Create an unstarted thread. Without virtual threads this is a daemon
+	 * platform thread, daemon like a virtual thread would be.
+	 **/
+	static Thread unstarted(final String name, final Runnable r) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,107 @@
+/* 
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA, 
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer, 
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement 
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+import com.softwareag.adabas.xts.XTS;
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * Base class of the XTS driver threads. When {@link XTS#virtualThreads} is
+ * set and the Java runtime supports virtual threads, <i>start</i> runs the
+ * object on a virtual thread instead of starting a platform thread. The
+ * object itself then only serves as the handle of the thread, as before:
+ * <i>interrupt</i> is passed on to the virtual thread.
+ ** 
+ **/
+//   Maintenance:
+//   Virtual thread support
+// ----------------------------------------------------------------------
+public abstract class XTSthread extends Thread {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	private static boolean warned = false; // unsupported runtime reported
+	private volatile Thread carrier = null; // virtual thread running this
+
+	protected XTSthread() {
+		super();
+	}
+
+	protected XTSthread(final String name) {
+		super(name);
+	}
+
+	// ----------------------------------------------------------------------
+	/** Start the thread, as a virtual thread if so configured. **/
+	// ----------------------------------------------------------------------
+	public void start() {
+		if (useVirtual()) {
+			Thread t = VirtualThreads.unstarted(getName(), this);
+			carrier = t;
+			t.start();
+		} else {
+			super.start();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/** Interrupt the thread. **/
+	// ----------------------------------------------------------------------
+	public void interrupt() {
+		Thread t = carrier;
+		if (t != null) {
+			t.interrupt();
+		} else {
+			super.interrupt();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Create a thread for the runnable, a virtual thread if so configured,
+	 * otherwise a platform thread with the given daemon setting.
+	 ** 
+	 * @param r
+	 *            what to run.
+	 ** @param name
+	 *            the name of the thread.
+	 ** @param daemon
+	 *            true for a daemon platform thread. Virtual threads are
+	 *            always daemon threads.
+	 ** @return the unstarted thread.
+	 **/
+	// ----------------------------------------------------------------------
+	public static Thread newThread(final Runnable r, final String name, final boolean daemon) {
+		if (useVirtual()) {
+			return VirtualThreads.unstarted(name, r);
+		}
+		Thread t = new Thread(r, name);
+		t.setDaemon(daemon);
+		return t;
+	}
+
+	// ----------------------------------------------------------------------
+	/** Return true if threads should be virtual threads. **/
+	// ----------------------------------------------------------------------
+	public static boolean useVirtual() {
+		if (!XTS.virtualThreads) {
+			return false;
+		}
+		if (VirtualThreads.isSupported()) {
+			return true;
+		}
+		if (!warned) {
+			warned = true;
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose("Virtual threads not supported by this Java runtime, using platform threads");
+		}
+		return false;
+	}
+}
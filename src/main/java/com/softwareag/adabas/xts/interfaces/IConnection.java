@@ -64,6 +64,14 @@ public interface IConnection {
 	boolean setLock();
 	boolean isFree();
 	void setFree();
+	/**
+	 * Return the number of requests which hold the connection, -1 for
+	 * connections which do not count them. Those are not shared by a
+	 * connection pool with a window, they are used one request at a time.
+	 **/
+	default int outstanding() {
+		return -1;
+	}
 	public int usage();
 	int increaseUsage();
 	int releaseUsage();
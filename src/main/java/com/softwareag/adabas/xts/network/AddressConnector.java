@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.network;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * Connects to the first reachable address of a host name. The addresses are
+ * tried in parallel with a delay between the starts of the attempts: the
+ * first connection established wins and the other attempts are abandoned. A
+ * failing attempt starts the next one at once.
+ **
+ * Failures are remembered per address for a while, addresses which failed
+ * recently are tried after those which did not.
+ **/
+//   Maintenance:
+//   Parallel multi-address connect
+// ----------------------------------------------------------------------
+final class AddressConnector {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	/** How long a failure counts against an address, in milliseconds. **/
+	static long failureMemory = 600000;
+
+	private static final ConcurrentHashMap<InetAddress, Failures> failures = new ConcurrentHashMap<InetAddress, Failures>();
+
+	// Failure statistics of an address.
+	private static final class Failures {
+		volatile int count = 0;
+		volatile long last = 0;
+	}
+
+	private AddressConnector() {
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Connect to one of the addresses.
+	 **
+	 * @param addresses
+	 *            the addresses of the host, in resolver order.
+	 ** @param port
+	 *            the port to connect to.
+	 ** @param timeout
+	 *            the time for all attempts in milliseconds, 0 for none.
+	 ** @param delay
+	 *            the time in milliseconds between the starts of two attempts.
+	 ** @param options
+	 *            the options to set before connecting.
+	 ** @return a connected socket of a socket channel in blocking mode.
+	 ** @exception IOException
+	 *                the failure of the last attempt if none succeeded.
+	 **/
+	// ----------------------------------------------------------------------
+	static Socket connect(final InetAddress[] addresses, final int port, final int timeout, final long delay, final SocketOptions options) throws IOException {
+		InetAddress[] order = order(addresses);
+		ArrayList<SocketChannel> attempts = new ArrayList<SocketChannel>();
+		SocketChannel winner = null;
+		IOException last = null;
+		Selector selector = Selector.open();
+		try {
+			long now = System.currentTimeMillis();
+			long deadline = (timeout > 0) ? now + timeout : Long.MAX_VALUE;
+			long nextStart = now;
+			int next = 0;
+			while (winner == null) {
+				now = System.currentTimeMillis();
+				if (next < order.length && (now >= nextStart || attempts.isEmpty())) {
+					InetAddress a = order[next++];
+					nextStart = now + delay;
+					if (XTStrace.bGlobalVerboseEnabled)
+						XTStrace.verbose("Connect attempt to " + a + ":" + port);
+					SocketChannel ch = SocketChannel.open();
+					try {
+						ch.configureBlocking(false);
+						options.beforeConnect(ch.socket());
+						if (ch.connect(new InetSocketAddress(a, port))) {
+							winner = ch;
+							break;
+						}
+						ch.register(selector, SelectionKey.OP_CONNECT, a);
+						attempts.add(ch);
+					} catch (IOException e) {
+						last = e;
+						failed(a, e);
+						ch.close();
+						nextStart = now;
+					}
+					continue;
+				}
+				if (attempts.isEmpty()) {
+					throw (last != null) ? last : new ConnectException("No address to connect to");
+				}
+				if (now >= deadline) {
+					throw new SocketTimeoutException("Connect timed out after " + timeout + "ms");
+				}
+				long wait = Math.min(deadline, (next < order.length) ? nextStart : Long.MAX_VALUE) - now;
+				selector.select(Math.max(1, Math.min(wait, Integer.MAX_VALUE)));
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext() && winner == null) {
+					SelectionKey key = it.next();
+					it.remove();
+					SocketChannel ch = (SocketChannel) key.channel();
+					InetAddress a = (InetAddress) key.attachment();
+					try {
+						if (ch.finishConnect()) {
+							winner = ch;
+							key.cancel();
+						}
+					} catch (IOException e) {
+						last = e;
+						failed(a, e);
+						key.cancel();
+						ch.close();
+						attempts.remove(ch);
+						nextStart = 0; // start the next one at once
+					}
+				}
+			}
+		} finally {
+			for (SocketChannel ch : attempts) {
+				if (ch != winner) {
+					ch.close();
+				}
+			}
+			selector.close(); // deregisters the winner
+		}
+		winner.configureBlocking(true);
+		InetAddress a = winner.socket().getInetAddress();
+		failures.remove(a);
+		if (XTStrace.bGlobalVerboseEnabled)
+			XTStrace.verbose("Connected to " + a + ":" + port);
+		return winner.socket();
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return the number of recent connect failures of an address.
+	 **/
+	// ----------------------------------------------------------------------
+	static int getFailures(final InetAddress a) {
+		Failures f = failures.get(a);
+		if (f == null || System.currentTimeMillis() - f.last > failureMemory) {
+			return 0;
+		}
+		return f.count;
+	}
+
+	// Addresses without recent failures first, resolver order otherwise.
+	private static InetAddress[] order(final InetAddress[] addresses) {
+		InetAddress[] order = addresses.clone();
+		if (!failures.isEmpty()) {
+			Arrays.sort(order, new Comparator<InetAddress>() {
+				public int compare(InetAddress x, InetAddress y) {
+					return getFailures(x) - getFailures(y);
+				}
+			});
+		}
+		return order;
+	}
+
+	private static void failed(final InetAddress a, final IOException e) {
+		if (XTStrace.bGlobalVerboseEnabled)
+			XTStrace.verbose("Connect attempt to " + a + " failed " + e);
+		Failures f = failures.get(a);
+		if (f == null) {
+			failures.putIfAbsent(a, new Failures());
+			f = failures.get(a);
+		}
+		if (System.currentTimeMillis() - f.last > failureMemory) {
+			f.count = 0;
+		}
+		f.count++;
+		f.last = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.softwareag.adabas.xts.Message;
+import com.softwareag.adabas.xts.XTS;
+import com.softwareag.adabas.xts.XTSException;
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSurl;
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * Compression of the message bodies of a driver with XTS framing, taken
+ * from the URL:
+ **
+ * <ul>
+ * <li><i>compress=deflate|fast|best|1..9</i> the deflate level; <i>fast</i>
+ * (also <i>lz4</i>) is the fastest level.</li>
+ * <li><i>minsize=n</i> bodies shorter than this are sent as they are, 1024
+ * by default.</li>
+ * </ul>
+ * Compression is negotiated through a header extension, which peers that do
+ * not know it skip. A connector offers it in the headers of its messages, a
+ * listener answers the offer once it has seen one, and each side compresses
+ * only after it has received the offer of the other. A C XTS peer never
+ * offers, so it only ever receives plain messages.
+ **/
+//   Maintenance:
+//   Negotiated body compression
+// ----------------------------------------------------------------------
+public final class Compression {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	static final int MAGIC = 0x5a000000; // 'Z' in the first byte of ext
+	static final int OFFER = 0x00010000; // the sender inflates
+	static final int DEFLATED = 0x00000100; // the body is deflated
+
+	private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private static final Compression all = new Compression("all", 0); // totals of all drivers
+
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final String mode;
+	private final int level;
+	private int minSize = 1024;
+
+	private final LongAdder compressed = new LongAdder(); // messages
+	private final LongAdder skipped = new LongAdder(); // not worth it
+	private final LongAdder rawBytes = new LongAdder();
+	private final LongAdder packedBytes = new LongAdder();
+	private final LongAdder deflateNanos = new LongAdder();
+	private final LongAdder inflated = new LongAdder();
+	private final LongAdder inflateNanos = new LongAdder();
+
+	private Compression(final String mode, final int level) {
+		this.mode = mode;
+		this.level = level;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return the compression asked for by a URL.
+	 **
+	 * @param url
+	 *            the URL.
+	 ** @return the compression, null if the URL does not ask for it.
+	 **/
+	// ----------------------------------------------------------------------
+	public static Compression forUrl(final XTSurl url) {
+		String st = url.getValue("compress");
+		if (st == null || st.equalsIgnoreCase("off")) {
+			return null;
+		}
+		int level;
+		if (st.equalsIgnoreCase("deflate") || st.equalsIgnoreCase("on")) {
+			level = Deflater.DEFAULT_COMPRESSION;
+		} else if (st.equalsIgnoreCase("fast") || st.toLowerCase().startsWith("lz4")) {
+			level = Deflater.BEST_SPEED;
+		} else if (st.equalsIgnoreCase("best")) {
+			level = Deflater.BEST_COMPRESSION;
+		} else {
+			try {
+				level = Math.max(Deflater.BEST_SPEED, Math.min(Integer.parseInt(st), Deflater.BEST_COMPRESSION));
+			} catch (Exception e) {
+				if (XTStrace.bGlobalWarnEnabled)
+					XTStrace.warn("Unknown compression " + st + " ignored");
+				return null;
+			}
+		}
+		Compression c = new Compression(st.toLowerCase(), level);
+		st = url.getValue("minsize");
+		if (st != null) {
+			try {
+				c.minSize = Integer.parseInt(st);
+			} catch (Exception e) {
+			}
+		}
+		return c;
+	}
+
+	/** Return the header extension which offers compression. **/
+	final int offer() {
+		return MAGIC | OFFER;
+	}
+
+	/** Return true if the header extension offers compression. **/
+	static boolean offers(final int ext) {
+		return (ext & 0xff000000) == MAGIC && (ext & OFFER) != 0;
+	}
+
+	/** Return true if the header extension marks a deflated body. **/
+	static boolean isDeflated(final int ext) {
+		return (ext & 0xff000000) == MAGIC && (ext & DEFLATED) != 0;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Compress the body of a message.
+	 **
+	 * @param p
+	 *            the message.
+	 ** @return a new message with the deflated body, to be freed after it is
+	 *         written, or null if the body is short or does not get smaller.
+	 **/
+	// ----------------------------------------------------------------------
+	final Message deflate(final Message p) {
+		if (p.length < minSize) {
+			return null;
+		}
+		long t0 = System.nanoTime();
+		Deflater d = deflaters.poll();
+		if (d == null) {
+			d = new Deflater(level);
+		}
+		Message q = p.cloneHeader(p.length);
+		int n = 0;
+		try {
+			ByteBuffer out = null;
+			if (p.buffer != null) { // off-heap in and out
+				d.setInput(p.buffer.slice(0, p.length));
+				out = q.buffer.slice(0, p.length);
+			} else {
+				d.setInput(p.body, 0, p.length);
+			}
+			d.finish();
+			while (!d.finished() && n < p.length) {
+				n += (out != null) ? d.deflate(out) : d.deflate(q.body, n, p.length - n);
+			}
+			if (!d.finished()) {
+				q.freeMessage("deflate");
+				skipped.increment();
+				all.skipped.increment();
+				return null;
+			}
+		} finally {
+			d.reset();
+			deflaters.offer(d);
+		}
+		q.length = n;
+		q.ext = MAGIC | OFFER | DEFLATED;
+		q.extLength = p.length;
+		long t = System.nanoTime() - t0;
+		deflated(p.length, n, t);
+		all.deflated(p.length, n, t);
+		return q;
+	}
+
+	private void deflated(final int raw, final int packed, final long nanos) {
+		compressed.increment();
+		rawBytes.add(raw);
+		packedBytes.add(packed);
+		deflateNanos.add(nanos);
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Restore a deflated message body.
+	 **
+	 * @param c
+	 *            the compression of the driver for the statistics, may be
+	 *            null.
+	 ** @param p
+	 *            the received message, it is freed.
+	 ** @return the message with the original body.
+	 **/
+	// ----------------------------------------------------------------------
+	static Message inflate(final Compression c, final Message p) throws XTSException {
+		long t0 = System.nanoTime();
+		int len = p.extLength;
+		if (len < 0 || len > XTS.maxmsglength) {
+			p.freeMessage("inflate");
+			throw new XTSException("Inflate: invalid message length=" + len, XTSException.XTS_INVALID_GETMSG_LEN);
+		}
+		Inflater f = inflaters.poll();
+		if (f == null) {
+			f = new Inflater();
+		}
+		Message q = p.cloneHeader(len);
+		try {
+			ByteBuffer out = null;
+			if (p.buffer != null) { // off-heap in and out
+				f.setInput(p.buffer.slice(0, p.length));
+				out = q.buffer.slice(0, len);
+			} else {
+				f.setInput(p.body, 0, p.length);
+			}
+			int n = 0;
+			while (n < len && !f.finished()) {
+				int k = (out != null) ? f.inflate(out) : f.inflate(q.body, n, len - n);
+				if (k == 0 && (f.needsInput() || f.needsDictionary())) {
+					break;
+				}
+				n += k;
+			}
+			if (n != len || !f.finished()) {
+				throw new DataFormatException("inflated " + n + " of " + len + " bytes");
+			}
+		} catch (DataFormatException e) {
+			q.freeMessage("inflate");
+			throw new XTSException("Inflate: " + e.getMessage(), XTSException.XTS_INVALID_GETMSG_HDR);
+		} finally {
+			f.reset();
+			inflaters.offer(f);
+			p.freeMessage("inflate");
+		}
+		q.length = len;
+		q.ext = 0;
+		long t = System.nanoTime() - t0;
+		if (c != null) {
+			c.inflated.increment();
+			c.inflateNanos.add(t);
+		}
+		all.inflated.increment();
+		all.inflateNanos.add(t);
+		return q;
+	}
+
+	/** Return the counters of all drivers together. **/
+	public static Compression getTotals() {
+		return all;
+	}
+
+	/** Return the compression ratio so far, compressed to original size. **/
+	public double getRatio() {
+		long raw = rawBytes.sum();
+		return raw == 0 ? 1.0 : (double) packedBytes.sum() / raw;
+	}
+
+	/** Return the time spent deflating so far, in nanoseconds. **/
+	public long getDeflateNanos() {
+		return deflateNanos.sum();
+	}
+
+	/** Return the time spent inflating so far, in nanoseconds. **/
+	public long getInflateNanos() {
+		return inflateNanos.sum();
+	}
+
+	/** Return settings and counters, for monitoring. **/
+	public String toString() {
+		return "compress=" + mode + " minsize=" + minSize + " compressed=" + compressed.sum() + " skipped=" + skipped.sum() + " bytes=" + rawBytes.sum() + "/"
+				+ packedBytes.sum() + " ratio=" + String.format("%.3f", getRatio()) + " deflateUs=" + deflateNanos.sum() / 1000 + " inflated=" + inflated.sum()
+				+ " inflateUs=" + inflateNanos.sum() / 1000;
+	}
+}
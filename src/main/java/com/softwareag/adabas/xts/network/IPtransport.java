@@ -10,9 +10,12 @@
 
 package com.softwareag.adabas.xts.network;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.ConnectException;
@@ -23,19 +26,32 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
 
 import com.softwareag.adabas.xts.Message;
 import com.softwareag.adabas.xts.XTS;
 import com.softwareag.adabas.xts.XTSException;
+import com.softwareag.adabas.xts.XTSinputStream;
 import com.softwareag.adabas.xts.XTSoutputStream;
 import com.softwareag.adabas.xts.XTStrace;
 import com.softwareag.adabas.xts.XTSurl;
 import com.softwareag.adabas.xts.directory.DefaultDirectory;
+import com.softwareag.adabas.xts.helpers.LevelQueue;
 import com.softwareag.adabas.xts.helpers.Status;
+import com.softwareag.adabas.xts.helpers.XTSthread;
 import com.softwareag.adabas.xts.interfaces.IConnectCallback;
 import com.softwareag.adabas.xts.interfaces.IConnection;
 import com.softwareag.adabas.xts.interfaces.IDriver;
@@ -48,7 +64,7 @@ import com.softwareag.adabas.xts.interfaces.ITransmitCallback;
  ** 
  * @version 2.1.1.2
  **/
-public abstract class IPtransport extends Thread implements IDriver {
+public abstract class IPtransport extends XTSthread implements IDriver {
 	public static final String className = "IPTransport";
 
 	/** The default re-connect retry interval **/
@@ -65,6 +81,9 @@ public abstract class IPtransport extends Thread implements IDriver {
 	protected static int listenCnt = 0; // listen thread counter [0006]
 	protected static int connectCnt = 0; // connect thread counter [0006]
 
+	// connect to first byte per protocol: count, total and maximum nanoseconds
+	private static final ConcurrentHashMap<String, long[]> firstByte = new ConcurrentHashMap<String, long[]>();
+
 	protected Vector<Thread> threads; // list of threads in this protocol
 	protected String protocol = "tcpip"; // protocol name
 	protected XTSurl url; // connected to?
@@ -87,9 +106,30 @@ public abstract class IPtransport extends Thread implements IDriver {
 	protected boolean priority_set; // priority value given;
 	protected int MsgType = 0; // 1 is 'adi' mode, 2 is 'raw' mode
 	protected boolean shutdownRequest = false;
+	protected boolean nio = false; // connections run on the NIO engine
+	protected boolean batch = false; // coalesce queued messages
+	protected int batchBytes = 65536; // flush a batch at this size
+	protected long batchDelay = 0; // linger for more messages, microseconds
+	protected boolean gather = false; // write large messages from their arrays
+	protected int gatherMin = 65536; // smallest message written gathering
+	protected int rxBuffer = 65536; // size of the pooled receive buffer
+	protected boolean rxDirect = false; // receive into a direct buffer
+	protected int offHeap = 0; // receive bodies of this size off the heap, 0 never
+	protected int starve = LevelQueue.STARVE; // priority starvation guard
+	protected int maxQueue = 0; // messages in transmit queue, 0 unbounded
+	protected long maxQueueBytes = 0; // bytes in transmit queue, 0 unbounded
+	protected int queueFull = QUEUE_BLOCK; // what to do when it is full
+	protected static final int QUEUE_BLOCK = 0; // wait for room
+	protected static final int QUEUE_FAIL = 1; // fail the message
+	protected static final int QUEUE_DISCONNECT = 2; // drop the connection
+	protected SocketOptions options; // nodelay, sndbuf, rcvbuf, ...
+	protected Compression compression = null; // negotiated body compression
+	protected long connectDelay = 250; // between connects to several addresses
 	private IConnection connection = null;
 
 	private boolean threadSuspended = false;
+	private final ReentrantLock suspendLock = new ReentrantLock(); // connector suspension
+	private final Condition resumed = suspendLock.newCondition();
 
 	protected IPtransport(final Vector<Thread> threads) {
 		this.threads = threads;
@@ -149,6 +189,89 @@ public abstract class IPtransport extends Thread implements IDriver {
 			this.reconnect = url.getValue("reconnect").equalsIgnoreCase("on");
 		} catch (Exception e) {
 		}
+
+		try {
+			nio = url.getValue("engine").equalsIgnoreCase("nio");
+		} catch (Exception e) {
+		}
+
+		try {
+			batch = url.getValue("batch").equalsIgnoreCase("on");
+		} catch (Exception e) {
+		}
+
+		try {
+			batchBytes = Integer.parseInt(url.getValue("batchbytes"));
+		} catch (Exception e) {
+		}
+
+		try {
+			batchDelay = Long.parseLong(url.getValue("batchdelay"));
+		} catch (Exception e) {
+		}
+
+		try {
+			gather = url.getValue("gather").equalsIgnoreCase("on");
+		} catch (Exception e) {
+		}
+
+		try {
+			gatherMin = Integer.parseInt(url.getValue("gathermin"));
+		} catch (Exception e) {
+		}
+
+		try {
+			rxBuffer = Integer.parseInt(url.getValue("rxbuffer"));
+		} catch (Exception e) {
+		}
+
+		try {
+			rxDirect = url.getValue("rxdirect").equalsIgnoreCase("on");
+		} catch (Exception e) {
+		}
+
+		try {
+			offHeap = Math.max(Integer.parseInt(url.getValue("offheap")), 0);
+		} catch (Exception e) {
+		}
+
+		try {
+			starve = Integer.parseInt(url.getValue("starve"));
+		} catch (Exception e) {
+		}
+
+		try {
+			options = new SocketOptions(url);
+		} catch (XTSException e) {
+			if (XTStrace.bGlobalWarnEnabled) 
+				XTStrace.warn("Socket options ignored: " + e.getMessage());
+			options = new SocketOptions();
+		}
+
+		try {
+			connectDelay = Long.parseLong(url.getValue("connectdelay"));
+		} catch (Exception e) {
+		}
+
+		try {
+			maxQueue = Integer.parseInt(url.getValue("maxqueue"));
+		} catch (Exception e) {
+		}
+
+		try {
+			maxQueueBytes = Long.parseLong(url.getValue("maxqueuebytes"));
+		} catch (Exception e) {
+		}
+
+		try {
+			String s = url.getValue("queuefull");
+			if (s.equalsIgnoreCase("fail")) {
+				queueFull = QUEUE_FAIL;
+			} else if (s.equalsIgnoreCase("disconnect")) {
+				queueFull = QUEUE_DISCONNECT;
+			}
+		} catch (Exception e) {
+		}
         
 		status.url = url;
 		// status.trace=trace_all;
@@ -218,7 +341,16 @@ public abstract class IPtransport extends Thread implements IDriver {
 		String fingerprint = className + " CreateServerSocket";
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose(fingerprint);
-		return (new ServerSocket(url.getPort()));
+		ServerSocket ss;
+		if (nio || gather || rxDirect || offHeap > 0) {
+			// accepted sockets of a channel socket own a channel as well
+			ss = ServerSocketChannel.open().socket();
+		} else {
+			ss = new ServerSocket();
+		}
+		options.beforeBind(ss);
+		ss.bind(new InetSocketAddress(url.getPort()), options.getBacklog());
+		return ss;
 	}
 
 	/**
@@ -237,11 +369,16 @@ public abstract class IPtransport extends Thread implements IDriver {
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("INET " + inetadr.getCanonicalHostName() + " "	+ inetadr.getClass().getCanonicalName());
 		}		
-		if (xtsConnectTimeout == 0) {
-			socket = new Socket(addresses[0], url.getPort());
-		} else
-		{
-			socket = new Socket();
+		if (addresses.length > 1) {
+			// staggered attempts, the first one connected wins
+			socket = AddressConnector.connect(addresses, url.getPort(), xtsConnectTimeout, connectDelay, options);
+		} else {
+			if (nio || gather || rxDirect || offHeap > 0) {
+				socket = SocketChannel.open().socket();
+			} else {
+				socket = new Socket();
+			}
+			options.beforeConnect(socket);
 			socket.connect(new InetSocketAddress(addresses[0], url.getPort()), xtsConnectTimeout);
 		}
 		if (XTStrace.bGlobalVerboseEnabled) 
@@ -429,7 +566,10 @@ public abstract class IPtransport extends Thread implements IDriver {
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Start IPrx and IPtx threads");
 		s.setSoLinger(false, 0); 
-		s.setTcpNoDelay(true);
+		if (nio && s.getChannel() != null) {
+			start_link(s);
+			return;
+		}
 		IPtx tx = new IPtx(s);
 		children.addElement(tx);
 		IPrx rx = new IPrx(s, tx);
@@ -448,6 +588,34 @@ public abstract class IPtransport extends Thread implements IDriver {
 		connection = tx;
 	}
 
+	// -----------------------------------------------------------------------
+	// Hand a connection to the NIO engine. The IPtx and IPrx objects are
+	// created as usual but never started; the event loop drives them.
+	// -----------------------------------------------------------------------
+	private final void start_link(final Socket s) throws IOException {
+		if (XTStrace.bGlobalVerboseEnabled) 
+			XTStrace.verbose("Start NIO link for " + s);
+		NIOengine.Link link = NIOengine.getEngine().newLink(s);
+		IPtx tx = new IPtx(s, link.output);
+		children.addElement(tx);
+		IPrx rx = new IPrx(s, tx, link.input);
+		tx.twin = rx;
+		link.attach(this, tx, rx);
+		SSLEngine engine = createEngine(s);
+		if (engine != null) {
+			link.tls = new TLSchannel(s.getChannel(), engine);
+		}
+		tx.link = link;
+		tx.status.driverUrl = this.url; 
+		status.messagesIn++;
+		if (callback != null) {
+			XTSurl x = new XTSurl(protocol, s.getInetAddress().getHostName(), s.getPort());
+			callback.connected(x, userval, tx);
+		}
+		link.schedule();
+		connection = tx;
+	}
+
 	// -----------------------------------------------------------------------
 	// Remove a child from the list. The threads Vector is used for
 	// monitoring of the status of the threads.
@@ -475,22 +643,26 @@ public abstract class IPtransport extends Thread implements IDriver {
 	}
 
 	private void resumeThread() {
-		synchronized (this) {
+		suspendLock.lock();
+		try {
 			threadSuspended = !threadSuspended;
 			if (!threadSuspended) {
-				notify();
+				resumed.signal();
 			}
+		} finally {
+			suspendLock.unlock();
 		}
 	}
 
 	private void waitThread() {
+		suspendLock.lock();
 		try {
-			synchronized (this) {
-				while (threadSuspended) {
-					wait();
-				}
+			while (threadSuspended) {
+				resumed.await();
 			}
 		} catch (InterruptedException ie) {
+		} finally {
+			suspendLock.unlock();
 		}
 	}
 
@@ -549,6 +721,45 @@ public abstract class IPtransport extends Thread implements IDriver {
 		return ((b[pos++] & 0xff) << 24) | ((b[pos++] & 0xff) << 16) | ((b[pos++] & 0xff) << 8) | (b[pos] & 0xff);
 	}
 
+	// ----------------------------------------------------------------------
+	/**
+	 * Record the time from connect to the first byte received on a
+	 * connection of a protocol.
+	 **/
+	// ----------------------------------------------------------------------
+	static final void recordFirstByte(final String protocol, final long nanos) {
+		long[] s = firstByte.get(protocol);
+		if (s == null) {
+			firstByte.putIfAbsent(protocol, new long[3]);
+			s = firstByte.get(protocol);
+		}
+		synchronized (s) {
+			s[0]++;
+			s[1] += nanos;
+			if (nanos > s[2]) {
+				s[2] = nanos;
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return the connect to first byte latencies of the connections so far,
+	 * per protocol.
+	 **/
+	// ----------------------------------------------------------------------
+	public static String getFirstByteStatistics() {
+		StringBuilder sb = new StringBuilder("First byte");
+		for (Map.Entry<String, long[]> e : firstByte.entrySet()) {
+			long[] s = e.getValue();
+			synchronized (s) {
+				sb.append(' ').append(e.getKey()).append(" connections=").append(s[0]).append(" avgUs=").append(s[0] > 0 ? s[1] / s[0] / 1000 : 0)
+						.append(" maxUs=").append(s[2] / 1000);
+			}
+		}
+		return sb.toString();
+	}
+
 	// ----------------------------------------------------------------------
 	/** get a new Object for thread **/
 	// ----------------------------------------------------------------------
@@ -559,6 +770,16 @@ public abstract class IPtransport extends Thread implements IDriver {
 	// ----------------------------------------------------------------------
 	protected abstract void transmit(Message p, IPtx tx) throws IOException;
 
+	// ----------------------------------------------------------------------
+	/**
+	 * Return true if transmit takes messages with off-heap bodies; others
+	 * are moved onto the heap first.
+	 **/
+	// ----------------------------------------------------------------------
+	protected boolean writesOffHeap() {
+		return false;
+	}
+
 	// ----------------------------------------------------------------------
 	/** Receive a message **/
 	// ----------------------------------------------------------------------
@@ -569,42 +790,117 @@ public abstract class IPtransport extends Thread implements IDriver {
 	// ----------------------------------------------------------------------
 	protected abstract void shut(IPtx tx) throws IOException;
 
+	// ----------------------------------------------------------------------
+	/**
+	 * Return the length of the frame starting at the position of the buffer,
+	 * or -1 if not enough bytes are available to tell. Used by the NIO
+	 * engine to hand only complete frames to <i>receive</i>. The default
+	 * implements XTS framing, where the first word is the total length.
+	 **/
+	// ----------------------------------------------------------------------
+	protected int frameLength(final ByteBuffer b) {
+		if (b.remaining() < 4) {
+			return -1;
+		}
+		int len = b.getInt(b.position());
+		if (len < 12 || len > XTS.maxmsglength) {
+			return b.remaining(); // let receive report the error
+		}
+		return len;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return true if <i>getToken</i> waits for the peer, so that the NIO
+	 * engine must not call it on an event loop.
+	 **/
+	// ----------------------------------------------------------------------
+	protected boolean isBlockingHandshake() {
+		return false;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Return the TLS engine for a connection on the NIO engine, null for a
+	 * plain connection.
+	 ** 
+	 * @param s
+	 *            the connected socket.
+	 **/
+	// ----------------------------------------------------------------------
+	protected SSLEngine createEngine(final Socket s) throws IOException {
+		return null;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Called on the event loop when the TLS handshake of a connection on the
+	 * NIO engine is complete.
+	 ** 
+	 * @param engine
+	 *            the engine of the connection.
+	 ** @param nanos
+	 *            the time the handshake took.
+	 ** @param resumed
+	 *            true if an earlier session was resumed.
+	 **/
+	// ----------------------------------------------------------------------
+	protected void handshakeCompleted(final SSLEngine engine, final long nanos, final boolean resumed) {
+	}
+
 	// ----------------------------------------------------------------------
 	/** Transmit thread. **/
 	// ----------------------------------------------------------------------
-	public class IPtx extends Thread implements IConnection {
+	public class IPtx extends XTSthread implements IConnection {
 		public IPrx twin; // receive twin
-		Message transmit_head = null; // transmit queue
-		Message transmit_tail = null; // transmit queue
+		final LevelQueue<Message> transmitQueue = new LevelQueue<Message>(starve); // by priority
+		private long queuedBytes = 0; // body bytes in transmitQueue
 		public XTSoutputStream dos; // output stream
 		public Status status = new Status(); // status
 		boolean connected = true; // connected
 		public boolean running = true; // connected
 		boolean crashed = true; // only if real exception
-		public Object token = null; // protocol info
+		public volatile Object token = null; // protocol info
+		private final CountDownLatch tokenReady = new CountDownLatch(1); // token set or connection ended
+		final long connectedAt = System.nanoTime(); // for the first byte latency
+		volatile boolean peerInflates = false; // the peer offered compression
 		String from; // for security
 		public Socket socket; // [0005]
 		private AtomicBoolean free = new AtomicBoolean(true);
 		private AtomicInteger freeCounter = new AtomicInteger(0);
 		private AtomicInteger usage = new AtomicInteger(0);
 		private boolean closed = false;
+		NIOengine.Link link = null; // set if driven by the NIO engine
+		private final ReentrantLock queueLock = new ReentrantLock(); // transmit queue lock
+		private final Condition queued = queueLock.newCondition(); // queue not empty
+		private final Condition drained = queueLock.newCondition(); // room in queue
+		private int lastBatch = 0; // messages in the previous batch
+		private Message current = null; // batched message in progress
 
 		// ----------------------------------------------------------------------
 		/** Constructor - allocates output stream and starts the thread. **/
 		// ----------------------------------------------------------------------
 		IPtx(final Socket s) throws IOException {
+			this(s, s.getOutputStream());
+		}
+
+		IPtx(final Socket s, final OutputStream os) throws IOException {
 			super("Send" + "-" + ++txCnt); 
-			dos = new XTSoutputStream(s.getOutputStream(), 4096);
+			dos = new XTSoutputStream(os, 4096);
 			from = s.getInetAddress().getHostAddress();
 			status.url = new XTSurl(url.target, protocol, s.getInetAddress().getHostName(), s.getPort()); 
 			setDaemon(true);
 			socket = s; // save socket for tracing purposes 
+			status.socketOptions = options.apply(s);
+			status.compression = compression;
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose("Socket options " + status.socketOptions + " for " + s);
 		}
 
 		// ----------------------------------------------------------------------
 		/**
-		 * Actual transmit thread execution. The thread waits inside a
-		 * synchronized block. It will be Notified by another thread when data
+		 * Actual transmit thread execution. The thread waits on the queue
+		 * condition. It will be signalled by another thread when data
 		 * is to be sent. It retrieves messages from its queue and sends them
 		 * until the queue is empty, then it goes back to sleep. If there is an
 		 * error in the thread, then the twin is also stopped and if the parent
@@ -623,13 +919,14 @@ public abstract class IPtransport extends Thread implements IDriver {
 			}
 			Message p = null;
 			try {
-				token = getToken(this); // get a token for this
+				setToken(getToken(this)); // get a token for this
 				status.setStatusOut("sendwait");
 				while (true) {
-					synchronized (this) {
-						while (transmit_head == null && running) {
+					queueLock.lock();
+					try {
+						while (transmitQueue.isEmpty() && running) {
 							try {
-								wait();
+								queued.await();
 							} catch (InterruptedException ie) {
 							}
 						}
@@ -638,62 +935,17 @@ public abstract class IPtransport extends Thread implements IDriver {
 								XTStrace.verbose("Running Transmit Close connection was called for " + socket);
 							break;
 						} 
-						p = transmit_head;
-						transmit_head = p.nextMessage;
-						if (p.nextMessage == null) {
-							transmit_tail = null;
-						}
+						p = nextMessage();
+					} finally {
+						queueLock.unlock();
 					}
-					/*
-					 * It is necessary to synchronize on the message
-					 * being transmitted. The reply could come back and
-					 * be processed before all of the transmit logic
-					 * completes and free the message while the transmit
-					 * thread is still using it. This occurs with
-					 * SendAndWait, where a reply is expected.
-					 */
-					synchronized (p) {
-						// added to be compatible with C XTS which uses this field for streaming
-						p.msgno = 0;
-						if (XTStrace.bGlobalVerboseEnabled) 
-							XTStrace.verbose("Running Transmit message " + p.toString() + " p.route=" + p.route);
-// reduce trace					if (XTStrace.bGlobalDebugEnabled) 
-//							XTStrace.dump("Transmit messge", "run", p.body, p.length, true);
-						if (p.callback == null) {
-							transmit(p, this);
-						} else {
-							/*
-							 * We need to synchronize on the XTS object.
-							 * This same objet [0022] will be sync'd on during
-							 * transmission. On a dyadic processor the
-							 * receive completed and free'd this object
-							 * before the send completed all of it's processing.
-							 * Once free'd the object could be
-							 * reallocated. When reallocated the rcb
-							 * field may be initialized to null before the send
-							 * logic checks this field. If the field is
-							 * null, the send logic free's the XTS
-							 * object. This causes the same object to be
-							 * free'd twice.
-							 */
-							synchronized (p.callback) {
-								transmit(p, this);
-								p.callback.transmitted(this, p, p.userval);
-							}
-						}
-						status.messagesOut++;
-						status.bytes_out += p.length;
-						// If route not equal 0(no reply expected),
-						// then hold onto the message, so if it's timed out,
-						// it can be returned to user
-						if (XTStrace.bGlobalVerboseEnabled) 
-						if (p.route == 0) {
-							if (XTStrace.bGlobalVerboseEnabled) 
-								XTStrace.verbose("Running Transmit message " + p.toString() + " p.route= 0 Delete message set");
-							p.freeMessage("Send thread");
-						}
+					if (batch) {
+						p = transmitBatch(p);
+					} else {
+						transmitMessage(p);
+						dos.flush();
+						p = null;
 					}
-					p = null;
 				}
 				crashed = false;
 			} catch (IOException e) {
@@ -705,48 +957,295 @@ public abstract class IPtransport extends Thread implements IDriver {
 				if (XTStrace.bGlobalErrorEnabled) 
 					XTStrace.error(e);
 			} finally {
-				connected = false;
+				finish(p != null ? p : current);
+			}
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose("Running transmit throw death");
+			return;
+//removed by mihai			throw death;
+		}
+
+		// ----------------------------------------------------------------------
+		/**
+		 * Write an XTS framed message. With <i>gather=on</i> messages of at
+		 * least <i>gathermin</i> bytes go to the socket channel as separate
+		 * header and body buffers, without being copied into the output
+		 * stream. On the NIO engine what the channel does not take at once is
+		 * left to the link's output buffer. Off-heap bodies always go to the
+		 * channel if there is one and TLS is off. With compression the body is
+		 * sent deflated once the peer has offered compression.
+		 ** 
+		 * @param p
+		 *            the message to write.
+		 **/
+		// ----------------------------------------------------------------------
+		public final void writeMessage(final Message p) throws IOException {
+			Compression c = compression;
+			if (c == null || (listener && !peerInflates)) {
+				write(p);
+				return;
+			}
+			Message q = peerInflates ? c.deflate(p) : null;
+			if (q == null) {
+				p.ext = c.offer();
+				try {
+					write(p);
+				} finally {
+					p.ext = 0;
+				}
+				return;
+			}
+			try {
+				write(q);
+			} finally {
+				q.freeMessage("compressed");
+			}
+		}
+
+		private final void write(final Message p) throws IOException {
+			SocketChannel ch = socket.getChannel();
+			if (ch == null || (p.buffer == null && (!gather || p.length < gatherMin)) || (link != null && link.tls != null)) {
+				p.putMessage(dos);
+				return;
+			}
+			ByteBuffer[] b = p.getBuffers();
+			dos.flushPending();
+			if (link == null) {
+				while (b[0].hasRemaining() || b[1].hasRemaining()) { // empty bodies too
+					ch.write(b);
+					dos.countWrite();
+				}
+				return;
+			}
+			if (link.output.drain(ch)) {
+				ch.write(b);
+				dos.countWrite();
+			}
+			link.output.write(b);
+		}
+
+		// ----------------------------------------------------------------------
+		/** Take the next message off the queue, null if it is empty. **/
+		// ----------------------------------------------------------------------
+		final Message nextMessage() {
+			queueLock.lock();
+			try {
+				Message p = transmitQueue.poll();
 				if (p != null) {
-					if (p.callback != null) {
-						p.callback.transmitFailed(this, p, p.userval);
-					} 
-					else {
-						p.freeMessage("run callback null");
-					}
+					queuedBytes -= p.length;
+					status.setQueue(transmitQueue.size(), queuedBytes);
+					drained.signal();
 				}
-				while (transmit_head != null) {
-					synchronized (this) {
-						p = transmit_head;
-						transmit_head = p.nextMessage;
-						if (p.nextMessage == null) {
-							transmit_tail = null;
-						}
-					}
-					if (p.callback != null) { // [0017]
-						p.callback.transmitFailed(this, p, p.userval);
-					} 
-					else {
-						p.freeMessage("run callback null transmit");
+				return p;
+			} finally {
+				queueLock.unlock();
+			}
+		}
+
+		// ----------------------------------------------------------------------
+		/**
+		 * Transmit the given message and everything queued behind it with a
+		 * single flush. If the previous batch had more than one message, the
+		 * thread lingers up to <i>batchdelay</i> microseconds for more.
+		 ** 
+		 * @return null, or the message in progress if an exception is thrown.
+		 **/
+		// ----------------------------------------------------------------------
+		final Message transmitBatch(Message p) throws IOException {
+			int n = 0;
+			dos.startBatch(batchBytes);
+			while (p != null && running) {
+				current = p;
+				transmitMessage(p);
+				current = null;
+				n++;
+				p = nextMessage();
+				if (p == null && batchDelay > 0 && lastBatch > 1 && dos.size() < batchBytes) {
+					p = awaitMessage(batchDelay * 1000);
+				}
+			}
+			dos.endBatch();
+			lastBatch = n;
+			if (n > 0) { // none if stopped before the first
+				status.recordBatch(n, dos.getWrites());
+			}
+			return p;
+		}
+
+		// ----------------------------------------------------------------------
+		/** Wait up to the given time for a message to be queued. **/
+		// ----------------------------------------------------------------------
+		private final Message awaitMessage(final long nanos) {
+			queueLock.lock();
+			try {
+				if (transmitQueue.isEmpty() && running) {
+					queued.awaitNanos(nanos);
+				}
+				return nextMessage();
+			} catch (InterruptedException ie) {
+				return nextMessage();
+			} finally {
+				queueLock.unlock();
+			}
+		}
+
+		// ----------------------------------------------------------------------
+		/** Wake the transmit thread or schedule the NIO link. **/
+		// ----------------------------------------------------------------------
+		final void wake() {
+			queueLock.lock();
+			try {
+				queued.signal();
+				drained.signalAll(); // blocked senders see the state
+			} finally {
+				queueLock.unlock();
+			}
+			if (link != null) {
+				link.schedule();
+			}
+		}
+
+		// ----------------------------------------------------------------------
+		/** Transmit one message and call back the sender. **/
+		// ----------------------------------------------------------------------
+		final void transmitMessage(final Message p) throws IOException {
+			/*
+			 * It is necessary to synchronize on the message
+			 * being transmitted. The reply could come back and
+			 * be processed before all of the transmit logic
+			 * completes and free the message while the transmit
+			 * thread is still using it. This occurs with
+			 * SendAndWait, where a reply is expected.
+			 */
+			synchronized (p) {
+				// added to be compatible with C XTS which uses this field for streaming
+				p.msgno = 0;
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Running Transmit message " + p.toString() + " p.route=" + p.route);
+// reduce trace					if (XTStrace.bGlobalDebugEnabled) 
+//							XTStrace.dump("Transmit messge", "run", p.body, p.length, true);
+				if (p.buffer != null && !writesOffHeap()) {
+					p.toHeap();
+				}
+				if (p.callback == null) {
+					transmit(p, this);
+				} else {
+					/*
+					 * We need to synchronize on the XTS object.
+					 * This same objet [0022] will be sync'd on during
+					 * transmission. On a dyadic processor the
+					 * receive completed and free'd this object
+					 * before the send completed all of it's processing.
+					 * Once free'd the object could be
+					 * reallocated. When reallocated the rcb
+					 * field may be initialized to null before the send
+					 * logic checks this field. If the field is
+					 * null, the send logic free's the XTS
+					 * object. This causes the same object to be
+					 * free'd twice.
+					 */
+					synchronized (p.callback) {
+						transmit(p, this);
+						p.callback.transmitted(this, p, p.userval);
 					}
 				}
-				try {
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("Running Transmit shutdown " + this);
-					shut(this);
-				} catch (Exception ff) { }
+				status.messagesOut++;
+				status.bytes_out += p.length;
+				// If route not equal 0(no reply expected),
+				// then hold onto the message, so if it's timed out,
+				// it can be returned to user
 				if (XTStrace.bGlobalVerboseEnabled) 
-					XTStrace.verbose("Running Transmit retire " + this);
-				IPtransport.this.retire(twin, this);
-				if (crashed) {
-					crashed = false;
-					twin.interrupt();
-					// twin.stop(stopped);
+				if (p.route == 0) {
+					if (XTStrace.bGlobalVerboseEnabled) 
+						XTStrace.verbose("Running Transmit message " + p.toString() + " p.route= 0 Delete message set");
+					p.freeMessage("Send thread");
+				}
+			}
+		}
+
+		// ----------------------------------------------------------------------
+		/**
+		 * Fail the message in progress and all queued messages, shut the
+		 * protocol down and retire the connection.
+		 **/
+		// ----------------------------------------------------------------------
+		final void finish(Message p) {
+			connected = false;
+			tokenReady.countDown(); // release a receiver waiting for the token
+			if (p != null) {
+				if (p.callback != null) {
+					p.callback.transmitFailed(this, p, p.userval);
+				} 
+				else {
+					p.freeMessage("run callback null");
 				}
 			}
+			while ((p = nextMessage()) != null) {
+				if (p.callback != null) { // [0017]
+					p.callback.transmitFailed(this, p, p.userval);
+				} 
+				else {
+					p.freeMessage("run callback null transmit");
+				}
+			}
+			try {
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Running Transmit shutdown " + this);
+				shut(this);
+				if (link != null) {
+					dos.flush();
+					link.write();
+				}
+			} catch (Exception ff) { }
 			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose("Running transmit throw death");
-			return;
-//removed by mihai			throw death;
+				XTStrace.verbose("Running Transmit retire " + this);
+			IPtransport.this.retire(twin, this);
+			if (crashed) {
+				crashed = false;
+				twin.interrupt();
+				// twin.stop(stopped);
+			}
+		}
+
+		// ----------------------------------------------------------------------
+		/**
+		 * Set the protocol token and signal the receive side. Drivers whose
+		 * handshake needs the receive thread set the token as soon as it
+		 * exists, before they wait for the peer.
+		 ** 
+		 * @param t
+		 *            the token.
+		 **/
+		// ----------------------------------------------------------------------
+		public final void setToken(final Object t) {
+			token = t;
+			tokenReady.countDown();
+		}
+
+		// ----------------------------------------------------------------------
+		/**
+		 * Wait until the token has been set.
+		 ** 
+		 * @return the token.
+		 ** @exception IOException
+		 *                the connection ended before there was a token.
+		 **/
+		// ----------------------------------------------------------------------
+		public final Object awaitToken() throws IOException {
+			Object t = token;
+			if (t != null) {
+				return t;
+			}
+			try {
+				tokenReady.await();
+			} catch (InterruptedException ie) {
+				throw new InterruptedIOException("Interrupted waiting for protocol token");
+			}
+			t = token;
+			if (t == null) {
+				throw new EOFException("Connection ended before protocol handshake");
+			}
+			return t;
 		}
 
 		// ----------------------------------------------------------------------
@@ -762,12 +1261,14 @@ public abstract class IPtransport extends Thread implements IDriver {
 		 *            callback occurrs.
 		 ** @param userval
 		 *            an object to pass to the callback routine.
-		 ** @return true if sending not possible.
+		 ** @return true if sending not possible, also when the transmit queue
+		 *         is full and there is no callback to report it.
 		 **/
 		// ----------------------------------------------------------------------
 		public final boolean send(final Message p, final ITransmitCallback callback, final Object userval) {
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("IPtx send TransmitCallback:" + callback);
+			boolean reject = false;
 			if (!connected) {
 				if (XTStrace.bGlobalVerboseEnabled) 
 					XTStrace.verbose("IPtx send not connected exiting");
@@ -785,21 +1286,76 @@ public abstract class IPtransport extends Thread implements IDriver {
 				}
 			}
 
-			synchronized (this) {
-				if (transmit_head == null) {
-					transmit_head = p;
-					transmit_tail = p;
-					notify();
-				} else {
-					transmit_tail.nextMessage = p;
-					transmit_tail = p;
+			queueLock.lock();
+			try {
+				if (isFull(p)) {
+					status.queueFull++;
+					if (queueFull != QUEUE_BLOCK || (link != null && link.loop == Thread.currentThread())) {
+						reject = true;
+						return callback == null; // the caller frees it
+					}
+					while (isFull(p) && running) {
+						try {
+							drained.await();
+						} catch (InterruptedException ie) {
+						}
+					}
+					if (!connected) {
+						return true;
+					}
+				}
+				if (transmitQueue.isEmpty()) {
+					queued.signal();
 				}
+				// RAW and ADI streams have no header to keep messages apart
+				transmitQueue.add(p, MsgType == 0 ? p.priority : 0);
+				queuedBytes += p.length;
+				status.setQueue(transmitQueue.size(), queuedBytes);
+			} finally {
+				queueLock.unlock();
+				if (reject) {
+					reject(p);
+				}
+			}
+			if (link != null) {
+				link.schedule();
 			}
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("IPtx send exiting");
 			return false;
 		}
 
+		// ----------------------------------------------------------------------
+		/** True if the message does not fit into the transmit queue. **/
+		// ----------------------------------------------------------------------
+		private final boolean isFull(final Message p) {
+			if (transmitQueue.isEmpty()) {
+				return false; // always room for one
+			}
+			return (maxQueue > 0 && transmitQueue.size() >= maxQueue)
+					|| (maxQueueBytes > 0 && queuedBytes + p.length > maxQueueBytes);
+		}
+
+		// ----------------------------------------------------------------------
+		/**
+		 * The transmit queue is full and the message is not queued. It is
+		 * failed through its transmit callback if it has one, else it is left
+		 * to the caller, to whom send returns true. With
+		 * <i>queuefull=disconnect</i> the slow peer is disconnected.
+		 **/
+		// ----------------------------------------------------------------------
+		private final void reject(final Message p) {
+			if (XTStrace.bGlobalWarnEnabled) 
+				XTStrace.warn("Transmit queue full, " + transmitQueue.size() + " messages " + queuedBytes + " bytes, slow consumer " + socket);
+			if (queueFull == QUEUE_DISCONNECT) {
+				status.setStatusOut("slow consumer disconnected");
+				close();
+			}
+			if (p.callback != null) {
+				p.callback.transmitFailed(this, p, p.userval);
+			}
+		}
+
 		// -----------------------------------------------------------------------
 		/** Return status of the thread. Used for monitoring. **/
 		// -----------------------------------------------------------------------
@@ -842,9 +1398,7 @@ public abstract class IPtransport extends Thread implements IDriver {
 		public final void close() {
 			running = false;
 			closed = true;
-			synchronized (this) {
-				notify();
-			}
+			wake();
 		}
 
 		// -----------------------------------------------------------------------
@@ -879,6 +1433,11 @@ public abstract class IPtransport extends Thread implements IDriver {
 			}
 		}
 
+		@Override
+		public final int outstanding() {
+			return Math.max(freeCounter.get(), 0);
+		}
+
 		public final boolean isClosed() {
 			return closed;
 		}
@@ -907,26 +1466,58 @@ public abstract class IPtransport extends Thread implements IDriver {
 	// ----------------------------------------------------------------------
 	/** Receive thread. **/
 	public// ----------------------------------------------------------------------
-	class IPrx extends Thread {
+	class IPrx extends XTSthread {
 		public IPtx twin = null; // transmit twin of this
 		public DataInputStream dis;
+		public XTSinputStream xis = null; // pooled buffer below dis, not on NIO
 		Socket socket;
 		public IReceiveCallback callback = null;
 		public Object userval;
+		long firstByte = 0; // System.nanoTime() of the first byte, set on NIO
 
 		// ----------------------------------------------------------------------
 		/** Constructor. Creates an Input stream and starts the thread. **/
 		// ----------------------------------------------------------------------
 		protected IPrx(final Socket s, final IPtx twin) throws IOException {
+			this(s, twin, new XTSinputStream(s.getInputStream(), s.getChannel(), rxBuffer, rxDirect || offHeap > 0));
+		}
+
+		IPrx(final Socket s, final IPtx twin, final InputStream is) throws IOException {
 			super("Receive" + "-" + ++rxCnt);
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("Receive thread constructor rxCnt=" + rxCnt + " Socket=" + s);
 			socket = s;
 			this.twin = twin;
-			dis = new DataInputStream(new BufferedInputStream(s.getInputStream(), 4096));
+			dis = new DataInputStream(is);
+			if (is instanceof XTSinputStream) {
+				xis = (XTSinputStream) is;
+			}
 			setDaemon(true);
 		}
 
+		// -----------------------------------------------------------------------
+		/**
+		 * Receive an XTS framed message, parsed in the pooled receive buffer
+		 * where there is one. With <i>offheap=n</i> bodies of at least n
+		 * bytes are received off the heap.
+		 **/
+		// -----------------------------------------------------------------------
+		public final Message readMessage() throws IOException, XTSException {
+			Message p = (xis != null) ? Message.getMessage(xis, offHeap) : Message.getMessage(dis);
+			if (p.ext != 0) {
+				if (compression != null && !twin.peerInflates && Compression.offers(p.ext)) {
+					twin.peerInflates = true;
+					if (XTStrace.bGlobalVerboseEnabled) 
+						XTStrace.verbose("Peer offers compression " + twin.socket);
+				}
+				if (Compression.isDeflated(p.ext)) {
+					return Compression.inflate(compression, p);
+				}
+				p.ext = 0;
+			}
+			return p;
+		}
+
 		/**
 		 * The actual receive thread. It blocks receiving a message. When a
 		 * message is received, it tries to route the message to the correct
@@ -949,30 +1540,7 @@ public abstract class IPtransport extends Thread implements IDriver {
 			try {
 				for (;;) {
 					XTStrace.verbose("Receive thread waiting ....");
-					Message p = receive(this);
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("Receive message " + p.toString()); 
-// reduce trace				XTStrace.dump("IPrx messge", "run", p.body, p.length, true);
-					p.from = twin.from;
-// reduce trace				Message.dump("IPRx Receive", "run", p);
-					twin.status.messagesIn++;
-					twin.status.bytesIn += p.length;
-
-					if (callback != null) {
-						if (XTStrace.bGlobalVerboseEnabled) 
-							XTStrace.verbose("Message received callback:" + callback);
-						if (callback instanceof XTS) {
-							if (XTStrace.bGlobalVerboseEnabled) {
-								XTStrace.verbose("callback=" + callback);
-								XTStrace.verbose("wait_for callback.wait_for=" + ((XTS) callback).getWaitFor());
-							}
-						}
-						callback.received(twin, p, userval); // up to client to free msg
-					} else {
-						if (XTStrace.bGlobalVerboseEnabled) 
-							XTStrace.verbose("Message lost");
-						p.freeMessage("Message lost");
-					}
+					dispatch(receive(this));
 				}
 			} catch (SocketException e) {
 				ee = e;
@@ -995,23 +1563,7 @@ public abstract class IPtransport extends Thread implements IDriver {
 				if (XTStrace.bGlobalVerboseEnabled) 
 					XTStrace.verbose("Receive Exception in IPtransport" + e);
 			} finally {
-				synchronized (XTS.shutLock) {
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("Running receive got shutlock - retiring");
-					if (callback != null) {
-						callback.connectionLost(twin, userval);
-					}
-					if (IPtransport.this.callback != null) {
-						IPtransport.this.callback.disconnected(twin.status.url,	IPtransport.this.userval, ee, IPtransport.this.connection);
-					}
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("Running receive got shutlock - retiring");
-					IPtransport.this.retire(this, twin);
-					if (twin.crashed) {
-						twin.close();
-					}
-					XTS.shutLock.notify(); 
-				} 
+				lost(ee);
 			}
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("Running receive throw death");
@@ -1023,6 +1575,66 @@ public abstract class IPtransport extends Thread implements IDriver {
 		}
 		}
 
+		// -----------------------------------------------------------------------
+		/** Pass a received message on to the receive callback. **/
+		// -----------------------------------------------------------------------
+		final void dispatch(final Message p) {
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose("Receive message " + p.toString()); 
+// reduce trace				XTStrace.dump("IPrx messge", "run", p.body, p.length, true);
+			p.from = twin.from;
+// reduce trace				Message.dump("IPRx Receive", "run", p);
+			if (twin.status.firstByteNanos == 0) {
+				long at = (xis != null) ? xis.getFirstRead() : firstByte;
+				twin.status.firstByteNanos = Math.max(((at != 0) ? at : System.nanoTime()) - twin.connectedAt, 1);
+				recordFirstByte(protocol, twin.status.firstByteNanos);
+			}
+			twin.status.messagesIn++;
+			twin.status.bytesIn += p.length;
+
+			if (callback != null) {
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Message received callback:" + callback);
+				if (callback instanceof XTS) {
+					if (XTStrace.bGlobalVerboseEnabled) {
+						XTStrace.verbose("callback=" + callback);
+						XTStrace.verbose("wait_for callback.wait_for=" + ((XTS) callback).getWaitFor());
+					}
+				}
+				callback.received(twin, p, userval); // up to client to free msg
+			} else {
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Message lost");
+				p.freeMessage("Message lost");
+			}
+		}
+
+		// -----------------------------------------------------------------------
+		/** The connection is gone, tell everybody and retire it. **/
+		// -----------------------------------------------------------------------
+		final void lost(final Exception ee) {
+			synchronized (XTS.shutLock) {
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Running receive got shutlock - retiring");
+				if (callback != null) {
+					callback.connectionLost(twin, userval);
+				}
+				if (IPtransport.this.callback != null) {
+					IPtransport.this.callback.disconnected(twin.status.url,	IPtransport.this.userval, ee, IPtransport.this.connection);
+				}
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose("Running receive got shutlock - retiring");
+				IPtransport.this.retire(this, twin);
+				if (twin.crashed) {
+					twin.close();
+				}
+				XTS.shutLock.notify(); 
+			} 
+			if (xis != null) {
+				xis.release();
+			}
+		}
+
 		// -----------------------------------------------------------------------
 		/** Return status of the thread. Used for monitoring. **/
 		// -----------------------------------------------------------------------
@@ -1035,8 +1647,9 @@ public abstract class IPtransport extends Thread implements IDriver {
 		// -----------------------------------------------------------------------
 		public final void rouse() {
 			synchronized (twin) {
-				twin.notify();
+				twin.notify(); // handshake in doze
 			}
+			twin.wake();
 		}
 
 		// -----------------------------------------------------------------------
@@ -0,0 +1,565 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+//   Maintenance:
+//   Selector based transport engine
+
+package com.softwareag.adabas.xts.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.softwareag.adabas.xts.Message;
+import com.softwareag.adabas.xts.XTS;
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSversion;
+
+//-----------------------------------------------------------------------
+/**
+ * Selector based transport engine. Connections of URLs carrying the
+ * qualifier <i>engine=nio</i> are multiplexed over a small number of event
+ * loop threads instead of using a transmit and a receive thread each. The
+ * protocol drivers keep their framing: the loop gathers complete frames
+ * (see {@link IPtransport#frameLength}) and lets the driver decode them
+ * through the usual <i>receive</i> method, while <i>transmit</i> frames
+ * into a buffer which the loop writes when the channel is ready. A link of
+ * a TLS driver runs its handshake, wrap and unwrap through a
+ * {@link TLSchannel} on the loop as well.
+ **
+ * The number of loops is taken from {@link XTS#nioThreads}, the number of
+ * available processors if not set.
+ **/
+final class NIOengine {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+	static final String className = "NIOengine";
+
+	private static final int INITIAL_BUFFER = 16384; // initial buffer size
+	private static NIOengine engine = null; // the engine
+	private static int loopCnt = 0; // loop thread counter
+
+	private final Loop[] loops; // the event loops
+	private final AtomicInteger next = new AtomicInteger(0); // round robin
+
+	private NIOengine(final int n) throws IOException {
+		loops = new Loop[n];
+		for (int i = 0; i < n; i++) {
+			loops[i] = new Loop();
+			loops[i].start();
+		}
+		if (XTStrace.bGlobalVerboseEnabled)
+			XTStrace.verbose(className + " started with " + n + " event loops");
+	}
+
+	// -----------------------------------------------------------------------
+	/** Return the engine, starting its event loops on first use. **/
+	// -----------------------------------------------------------------------
+	static synchronized NIOengine getEngine() throws IOException {
+		if (engine == null) {
+			int n = XTS.nioThreads;
+			if (n <= 0) {
+				n = Runtime.getRuntime().availableProcessors();
+			}
+			engine = new NIOengine(n);
+		}
+		return engine;
+	}
+
+	// -----------------------------------------------------------------------
+	/** Create a link for a connected socket, not yet registered. **/
+	// -----------------------------------------------------------------------
+	final Link newLink(final Socket s) {
+		Loop loop = loops[(next.getAndIncrement() & 0x7fffffff) % loops.length];
+		return new Link(s.getChannel(), loop);
+	}
+
+	// -----------------------------------------------------------------------
+	/** An event loop thread owning one selector. **/
+	// -----------------------------------------------------------------------
+	final class Loop extends Thread {
+		final Selector selector;
+		final ConcurrentLinkedQueue<Link> pending = new ConcurrentLinkedQueue<Link>();
+
+		Loop() throws IOException {
+			super("NIO-" + ++loopCnt);
+			selector = Selector.open();
+			setDaemon(true);
+		}
+
+		// -------------------------------------------------------------------
+		/** Queue a link for processing on this loop. **/
+		// -------------------------------------------------------------------
+		final void schedule(final Link l) {
+			if (l.scheduled.compareAndSet(false, true)) {
+				pending.add(l);
+				selector.wakeup();
+			}
+		}
+
+		public final void run() {
+			if (XTStrace.bGlobalVerboseEnabled)
+				XTStrace.verbose("Running event loop name=" + getName());
+			for (;;) {
+				try {
+					selector.select();
+					Link l;
+					while ((l = pending.poll()) != null) {
+						l.scheduled.set(false);
+						l.process();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey k = it.next();
+						it.remove();
+						l = (Link) k.attachment();
+						if (k.isValid() && k.isReadable()) {
+							l.read();
+						}
+						if (k.isValid() && k.isWritable()) {
+							l.write();
+						}
+					}
+				} catch (Exception e) {
+					if (XTStrace.bGlobalErrorEnabled)
+						XTStrace.error(e);
+				}
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * One connection of the engine. All I/O of a link happens on its loop;
+	 * other threads only queue work and call {@link Link#schedule}.
+	 **/
+	// -----------------------------------------------------------------------
+	final class Link {
+		final SocketChannel channel;
+		final Loop loop;
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+		final Input input = new Input();
+		final Output output = new Output();
+		IPtransport driver;
+		IPtransport.IPtx tx;
+		IPtransport.IPrx rx;
+		SelectionKey key = null;
+		TLSchannel tls = null; // set for a TLS link
+		ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER); // receive buffer
+		volatile boolean ready = false; // token obtained
+		private boolean handshake = false; // handshake started
+		private boolean closed = false; // link is down
+		private Message current = null; // message being transmitted
+
+		Link(final SocketChannel channel, final Loop loop) {
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		// -------------------------------------------------------------------
+		/** Attach the driver and its connection objects. **/
+		// -------------------------------------------------------------------
+		final void attach(final IPtransport driver, final IPtransport.IPtx tx, final IPtransport.IPrx rx) {
+			this.driver = driver;
+			this.tx = tx;
+			this.rx = rx;
+		}
+
+		// -------------------------------------------------------------------
+		/** Hand the link to its loop. **/
+		// -------------------------------------------------------------------
+		final void schedule() {
+			loop.schedule(this);
+		}
+
+		// -------------------------------------------------------------------
+		// Registration, handshake, transmission and close, on the loop.
+		// -------------------------------------------------------------------
+		final void process() {
+			if (closed) {
+				return;
+			}
+			try {
+				if (key == null) {
+					channel.configureBlocking(false);
+					key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+					tx.status.setStatus("rcvwait");
+				}
+				if (tls != null && tls.isHandshaking()) {
+					if (!tls.handshake(in)) {
+						key.interestOps(SelectionKey.OP_READ | (tls.isWritePending() ? SelectionKey.OP_WRITE : 0));
+						return;
+					}
+					driver.handshakeCompleted(tls.getEngine(), tls.getHandshakeNanos(), tls.isResumed());
+				}
+				if (!handshake) {
+					handshake = true;
+					handshake();
+				}
+				if (!tx.running) {
+					tx.crashed = false;
+					terminate(IPtransport.stopped);
+					return;
+				}
+				if (ready) {
+					Message p;
+					int n = 0;
+					while (tx.running && (p = tx.nextMessage()) != null) {
+						current = p;
+						tx.transmitMessage(p);
+						current = null;
+						n++;
+					}
+					tx.dos.flush();
+					if (n > 0) {
+						tx.status.recordBatch(n, tx.dos.getWrites());
+					}
+					write();
+					if (tls != null && tls.isReadPending()) {
+						read();
+					} else if (in.position() > 0) {
+						deliver();
+					}
+				}
+			} catch (Exception e) {
+				terminate(e);
+			}
+		}
+
+		// -------------------------------------------------------------------
+		// Obtain the protocol token. Drivers which wait for their peer
+		// while doing so get a thread of their own for the handshake.
+		// -------------------------------------------------------------------
+		private final void handshake() throws IOException {
+			if (!driver.isBlockingHandshake()) {
+				tx.setToken(driver.getToken(tx));
+				tx.status.setStatusOut("sendwait");
+				ready = true;
+				return;
+			}
+			Thread t = new Thread("NIO-handshake") {
+				public void run() {
+					try {
+						tx.setToken(driver.getToken(tx));
+						tx.status.setStatusOut("sendwait");
+						ready = true;
+					} catch (Exception e) {
+						tx.status.setStatusOut("Handshake " + e.toString());
+						tx.running = false;
+					}
+					schedule();
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+
+		// -------------------------------------------------------------------
+		/** Read what is available and pass complete frames on. **/
+		// -------------------------------------------------------------------
+		final void read() {
+			if (tls != null) {
+				readTLS();
+				return;
+			}
+			try {
+				if (!in.hasRemaining()) {
+					grow(in.capacity() * 2);
+				}
+				int n = channel.read(in);
+				if (n < 0) {
+					throw new EOFException("Ended");
+				}
+				if (n > 0 && rx.firstByte == 0) {
+					rx.firstByte = System.nanoTime();
+				}
+				deliver();
+			} catch (Exception e) {
+				terminate(e);
+			}
+		}
+
+		// -------------------------------------------------------------------
+		// Read and unwrap TLS records. Unwrapping stops when the receive
+		// buffer is full, so carry on while records are left over.
+		// -------------------------------------------------------------------
+		private final void readTLS() {
+			try {
+				if (tls.isHandshaking()) {
+					process();
+					return;
+				}
+				int n;
+				do {
+					int room = tls.getApplicationBufferSize();
+					if (in.remaining() < room) {
+						grow(in.position() + room);
+					}
+					n = tls.read(in);
+					if (n < 0) {
+						throw new EOFException("Ended");
+					}
+					if (n > 0 && rx.firstByte == 0) {
+						rx.firstByte = System.nanoTime();
+					}
+					deliver();
+				} while (n > 0 && tls.isReadPending() && !closed);
+				if (!closed && tls.isWritePending()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (Exception e) {
+				terminate(e);
+			}
+		}
+
+		// -------------------------------------------------------------------
+		// Decode all complete frames from the receive buffer.
+		// -------------------------------------------------------------------
+		private final void deliver() throws Exception {
+			if (!ready && !driver.isBlockingHandshake()) {
+				return; // no token yet, keep buffering
+			}
+			in.flip();
+			int needed = 0;
+			try {
+				while (!closed) {
+					int end = in.position();
+					ByteBuffer view = in.duplicate();
+					for (;;) {
+						view.position(end);
+						int n = driver.frameLength(view);
+						if (n <= 0 || n > view.remaining()) {
+							needed = n;
+							break;
+						}
+						end += n;
+					}
+					if (end == in.position()) {
+						break; // nothing complete
+					}
+					input.end = end;
+					Message p = driver.receive(rx);
+					if (p == null) {
+						throw new EOFException("Disconnected");
+					}
+					rx.dispatch(p);
+				}
+			} catch (Underflow u) {
+				// driver asked for more than was complete, wait for more
+			} finally {
+				in.compact();
+			}
+			if (needed > in.capacity()) {
+				grow(needed);
+			}
+		}
+
+		// -------------------------------------------------------------------
+		// Grow the receive buffer, bounded by the maximum message length.
+		// -------------------------------------------------------------------
+		private final void grow(final int size) throws IOException {
+			long max = XTS.maxmsglength + INITIAL_BUFFER;
+			if (in.capacity() >= max) {
+				throw new IOException("NIO receive buffer exceeds " + max);
+			}
+			ByteBuffer b = ByteBuffer.allocate((int) Math.min(Math.max(size, in.capacity()), max));
+			in.flip();
+			b.put(in);
+			in = b;
+		}
+
+		// -------------------------------------------------------------------
+		/** Write pending output, waiting for OP_WRITE if the socket is full. **/
+		// -------------------------------------------------------------------
+		final void write() {
+			if (tls != null && tls.isHandshaking()) {
+				process();
+				return;
+			}
+			try {
+				if (tls != null ? output.drain(tls) : output.drain(channel)) {
+					key.interestOps(SelectionKey.OP_READ);
+				} else {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (Exception e) {
+				terminate(e);
+			}
+		}
+
+		// -------------------------------------------------------------------
+		// Tear the link down, mirroring the end of the transmit and the
+		// receive thread.
+		// -------------------------------------------------------------------
+		final void terminate(final Exception e) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (XTStrace.bGlobalVerboseEnabled)
+				XTStrace.verbose(className + " terminate " + tx.socket + " " + e);
+			if (key != null) {
+				key.cancel();
+			}
+			if (e != IPtransport.stopped) {
+				tx.status.setStatus("Receive " + e.toString());
+			}
+			tx.finish(current);
+			current = null;
+			if (tls != null) {
+				tls.close();
+			}
+			rx.lost(e);
+		}
+		// -----------------------------------------------------------------------
+		/**
+		 * The receive stream of a link, limited to the complete frames in the
+		 * receive buffer.
+		 **/
+		// -----------------------------------------------------------------------
+		final class Input extends InputStream {
+			int end = 0; // end of complete frames
+			private int mark = -1;
+
+			public final int read() throws IOException {
+				ByteBuffer b = in;
+				if (b.position() >= end) {
+					throw underflow;
+				}
+				return b.get() & 0xff;
+			}
+
+			public final int read(final byte[] d, final int off, final int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				ByteBuffer b = in;
+				int avail = end - b.position();
+				if (avail <= 0) {
+					throw underflow;
+				}
+				int n = Math.min(avail, len);
+				b.get(d, off, n);
+				return n;
+			}
+
+			public final int available() {
+				return end - in.position();
+			}
+
+			public final boolean markSupported() {
+				return true;
+			}
+
+			public final void mark(final int readlimit) {
+				mark = in.position();
+			}
+
+			public final void reset() throws IOException {
+				if (mark < 0) {
+					throw new IOException("Input not marked");
+				}
+				in.position(mark);
+			}
+		}
+
+	}
+
+	// -----------------------------------------------------------------------
+	/** Raised when a driver reads past the complete frames. **/
+	// -----------------------------------------------------------------------
+	static final class Underflow extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		Underflow() {
+			super("underflow");
+		}
+
+		public final synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private static final Underflow underflow = new Underflow();
+
+	// -----------------------------------------------------------------------
+	/** The transmit stream of a link, drained by the loop. **/
+	// -----------------------------------------------------------------------
+	static final class Output extends OutputStream {
+		private ByteBuffer out = ByteBuffer.allocate(INITIAL_BUFFER);
+
+		public final synchronized void write(final int b) {
+			ensure(1);
+			out.put((byte) b);
+		}
+
+		public final synchronized void write(final byte[] b, final int off, final int len) {
+			ensure(len);
+			out.put(b, off, len);
+		}
+
+		// -------------------------------------------------------------------
+		/** Append what remains of the given buffers. **/
+		// -------------------------------------------------------------------
+		final synchronized void write(final ByteBuffer[] b) {
+			for (ByteBuffer x : b) {
+				ensure(x.remaining());
+				out.put(x);
+			}
+		}
+
+		private final void ensure(final int len) {
+			if (out.remaining() < len) {
+				ByteBuffer b = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + len));
+				out.flip();
+				b.put(out);
+				out = b;
+			}
+		}
+
+		// -------------------------------------------------------------------
+		/** Wrap and write as much as possible. Returns true if nothing remains. **/
+		// -------------------------------------------------------------------
+		final synchronized boolean drain(final TLSchannel tls) throws IOException {
+			if (out.position() == 0) {
+				return tls.flush();
+			}
+			out.flip();
+			try {
+				return tls.write(out);
+			} finally {
+				out.compact();
+			}
+		}
+
+		// -------------------------------------------------------------------
+		/** Write as much as possible. Returns true if nothing remains. **/
+		// -------------------------------------------------------------------
+		final synchronized boolean drain(final SocketChannel ch) throws IOException {
+			if (out.position() == 0) {
+				return true;
+			}
+			out.flip();
+			try {
+				ch.write(out);
+				return !out.hasRemaining();
+			} finally {
+				out.compact();
+			}
+		}
+	}
+}
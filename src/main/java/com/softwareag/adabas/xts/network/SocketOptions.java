@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.network;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+
+import com.softwareag.adabas.xts.XTSException;
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSurl;
+import com.softwareag.adabas.xts.XTSversion;
+
+//----------------------------------------------------------------------
+/**
+ * The socket options of a TCP based driver, taken from the URL:
+ **
+ * <ul>
+ * <li><i>nodelay=on|off</i> TCP_NODELAY, on by default.</li>
+ * <li><i>sndbuf=n</i> SO_SNDBUF in bytes.</li>
+ * <li><i>rcvbuf=n</i> SO_RCVBUF in bytes. It is set before the socket is
+ * bound or connected, so that windows above 64K can be negotiated.</li>
+ * <li><i>keepalive=on|off</i> SO_KEEPALIVE.</li>
+ * <li><i>backlog=n</i> the accept backlog of a listener.</li>
+ * <li><i>reuseport=on|off</i> SO_REUSEPORT of a listener, where the platform
+ * supports it.</li>
+ * </ul>
+ * Options not given keep the JVM defaults. Values are validated when the
+ * URL is parsed.
+ **/
+//   Maintenance:
+//   Socket option tuning
+// ----------------------------------------------------------------------
+public final class SocketOptions {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	private Boolean nodelay = Boolean.TRUE;
+	private Boolean keepalive = null;
+	private Boolean reuseport = null;
+	private int sndbuf = 0;
+	private int rcvbuf = 0;
+	private int backlog = 0;
+
+	/** Constructor for the default options. **/
+	public SocketOptions() {
+	}
+
+	/**
+	 * Constructor, takes the options from a URL.
+	 **
+	 * @param url
+	 *            the URL.
+	 ** @exception XTSException
+	 *                if an option has an invalid value.
+	 **/
+	public SocketOptions(final XTSurl url) throws XTSException {
+		Boolean b = getSwitch(url, "nodelay");
+		if (b != null) {
+			nodelay = b;
+		}
+		keepalive = getSwitch(url, "keepalive");
+		reuseport = getSwitch(url, "reuseport");
+		sndbuf = getSize(url, "sndbuf");
+		rcvbuf = getSize(url, "rcvbuf");
+		backlog = getSize(url, "backlog");
+	}
+
+	/** Return the accept backlog, 0 for the default. **/
+	public int getBacklog() {
+		return backlog;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Set the options of a socket which is neither connected nor bound yet.
+	 **
+	 * @param s
+	 *            the socket.
+	 **/
+	// ----------------------------------------------------------------------
+	public void beforeConnect(final Socket s) throws IOException {
+		if (rcvbuf > 0) {
+			s.setReceiveBufferSize(rcvbuf);
+		}
+		if (sndbuf > 0) {
+			s.setSendBufferSize(sndbuf);
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Set the options of a listener which is not bound yet. Accepted sockets
+	 * inherit the receive buffer size.
+	 **
+	 * @param ss
+	 *            the server socket.
+	 **/
+	// ----------------------------------------------------------------------
+	public void beforeBind(final ServerSocket ss) throws IOException {
+		if (rcvbuf > 0) {
+			ss.setReceiveBufferSize(rcvbuf);
+		}
+		if (reuseport != null) {
+			if (ss.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				ss.setOption(StandardSocketOptions.SO_REUSEPORT, reuseport);
+			} else {
+				if (XTStrace.bGlobalWarnEnabled)
+					XTStrace.warn("SocketOptions reuseport not supported on this platform");
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Set the options of a connected socket.
+	 **
+	 * @param s
+	 *            the socket.
+	 ** @return the options in effect, as reported by the socket.
+	 **/
+	// ----------------------------------------------------------------------
+	public String apply(final Socket s) throws IOException {
+		s.setTcpNoDelay(nodelay.booleanValue());
+		if (keepalive != null) {
+			s.setKeepAlive(keepalive.booleanValue());
+		}
+		if (sndbuf > 0) {
+			s.setSendBufferSize(sndbuf);
+		}
+		if (rcvbuf > 0) {
+			s.setReceiveBufferSize(rcvbuf);
+		}
+		return "nodelay=" + s.getTcpNoDelay() + " keepalive=" + s.getKeepAlive()
+				+ " sndbuf=" + s.getSendBufferSize() + " rcvbuf=" + s.getReceiveBufferSize();
+	}
+
+	// ----------------------------------------------------------------------
+	// Parse an on/off option, null if not given.
+	// ----------------------------------------------------------------------
+	private static Boolean getSwitch(final XTSurl url, final String key) throws XTSException {
+		String s = url.getValue(key);
+		if (s == null) {
+			return null;
+		}
+		if (s.equalsIgnoreCase("on") || s.equalsIgnoreCase("true") || s.equalsIgnoreCase("yes")) {
+			return Boolean.TRUE;
+		}
+		if (s.equalsIgnoreCase("off") || s.equalsIgnoreCase("false") || s.equalsIgnoreCase("no")) {
+			return Boolean.FALSE;
+		}
+		throw new XTSException("Invalid URL value " + key + "=" + s + ", on or off expected", XTSException.XTS_INVALID_PARAMETER);
+	}
+
+	// ----------------------------------------------------------------------
+	// Parse a size option, 0 if not given.
+	// ----------------------------------------------------------------------
+	private static int getSize(final XTSurl url, final String key) throws XTSException {
+		String s = url.getValue(key);
+		if (s == null) {
+			return 0;
+		}
+		int n;
+		try {
+			n = Integer.parseInt(s.trim());
+		} catch (NumberFormatException e) {
+			n = -1;
+		}
+		if (n <= 0) {
+			throw new XTSException("Invalid URL value " + key + "=" + s + ", positive number expected", XTSException.XTS_INVALID_PARAMETER);
+		}
+		return n;
+	}
+}
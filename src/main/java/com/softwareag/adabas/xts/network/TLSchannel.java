@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSversion;
+import com.softwareag.adabas.xts.helpers.BufferPool;
+
+//----------------------------------------------------------------------
+/**
+ * TLS on a non-blocking socket channel, for the links of the NIO engine.
+ * The handshake, wrap and unwrap are done by an SSLEngine on pooled
+ * buffers: received records collect in <i>netIn</i> until they are
+ * complete, wrapped records wait in <i>netOut</i> until the socket takes
+ * them. All methods are called on the event loop of the link, except
+ * <i>write</i> which is guarded by the lock of the link's output.
+ **/
+//   Maintenance:
+//   SSLEngine based TLS
+// ----------------------------------------------------------------------
+final class TLSchannel {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private ByteBuffer netIn; // received records, write mode
+	private ByteBuffer netOut; // records to send, write mode
+	private boolean handshaking = true;
+	private final long started = System.nanoTime();
+	private final long startedMillis = System.currentTimeMillis();
+	private boolean closed = false; // close_notify received
+	private boolean progress = false; // last unwrap consumed input
+
+	/**
+	 * Constructor, starts the handshake.
+	 **
+	 * @param channel
+	 *            the connected channel.
+	 ** @param engine
+	 *            the engine, set up for client or server mode.
+	 **/
+	TLSchannel(final SocketChannel channel, final SSLEngine engine) throws SSLException {
+		this.channel = channel;
+		this.engine = engine;
+		int size = engine.getSession().getPacketBufferSize();
+		netIn = BufferPool.get(size, true);
+		netOut = BufferPool.get(size, true);
+		engine.beginHandshake();
+	}
+
+	/** Return the engine. **/
+	SSLEngine getEngine() {
+		return engine;
+	}
+
+	/** Return the room a read needs in the application buffer. **/
+	int getApplicationBufferSize() {
+		return engine.getSession().getApplicationBufferSize();
+	}
+
+	/** Return true while the handshake is in progress. **/
+	boolean isHandshaking() {
+		return handshaking;
+	}
+
+	/** Return the time the handshake took, in nanoseconds. **/
+	long getHandshakeNanos() {
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * Return true if the handshake resumed an earlier session. Reliable for
+	 * TLS 1.2 only, see SSLContextCache.resumed.
+	 **/
+	boolean isResumed() {
+		return engine.getSession().getCreationTime() < startedMillis;
+	}
+
+	/** Return true if wrapped records wait for the socket. **/
+	boolean isWritePending() {
+		return netOut.position() > 0;
+	}
+
+	/** Return true if received records wait to be unwrapped. **/
+	boolean isReadPending() {
+		return netIn.position() > 0;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Advance the handshake as far as the socket allows.
+	 **
+	 * @param app
+	 *            the buffer receiving application data which arrives with
+	 *            the last handshake records.
+	 ** @return true if the handshake is complete.
+	 **/
+	// ----------------------------------------------------------------------
+	boolean handshake(final ByteBuffer app) throws IOException {
+		while (handshaking) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				runTasks();
+				break;
+			case NEED_WRAP:
+				wrap(EMPTY);
+				if (!flush()) {
+					return false;
+				}
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				unwrap(app);
+				if (!progress && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+					int n = channel.read(netIn);
+					if (n < 0) {
+						throw new EOFException("Ended during TLS handshake");
+					}
+					if (n == 0) {
+						return false; // wait for OP_READ
+					}
+				}
+				break;
+			default:
+				handshaking = false;
+				if (XTStrace.bGlobalVerboseEnabled)
+					XTStrace.verbose("TLS handshake complete " + engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite());
+			}
+		}
+		return flush();
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Read from the socket and unwrap into the application buffer.
+	 **
+	 * @param app
+	 *            the application buffer, in write mode.
+	 ** @return the number of application bytes produced, -1 at the end of
+	 *         the stream.
+	 **/
+	// ----------------------------------------------------------------------
+	int read(final ByteBuffer app) throws IOException {
+		int n = channel.read(netIn);
+		int produced = unwrap(app);
+		if (produced == 0 && (n < 0 || closed)) {
+			return -1;
+		}
+		return produced;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Wrap application data and write it to the socket.
+	 **
+	 * @param src
+	 *            the application data, in read mode.
+	 ** @return true if everything has been written.
+	 **/
+	// ----------------------------------------------------------------------
+	boolean write(final ByteBuffer src) throws IOException {
+		if (!flush()) {
+			return false;
+		}
+		while (src.hasRemaining()) {
+			wrap(src);
+			if (!flush()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// ----------------------------------------------------------------------
+	/**
+	 * Write pending records.
+	 **
+	 * @return true if nothing remains.
+	 **/
+	// ----------------------------------------------------------------------
+	boolean flush() throws IOException {
+		if (netOut == null) {
+			throw new IOException("TLS channel closed");
+		}
+		if (netOut.position() == 0) {
+			return true;
+		}
+		netOut.flip();
+		try {
+			channel.write(netOut);
+			return !netOut.hasRemaining();
+		} finally {
+			netOut.compact();
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	/** Send close_notify as far as possible and give the buffers back. **/
+	// ----------------------------------------------------------------------
+	void close() {
+		try {
+			engine.closeOutbound();
+			if (channel.isOpen()) {
+				wrap(EMPTY);
+				flush();
+			}
+		} catch (Exception e) {
+		}
+		ByteBuffer b = netIn;
+		netIn = null;
+		if (b != null) {
+			BufferPool.put(b);
+		}
+		b = netOut;
+		netOut = null;
+		if (b != null) {
+			BufferPool.put(b);
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// Unwrap the complete records of netIn. Stops when the application
+	// buffer is full; the rest is left for the next call.
+	// ----------------------------------------------------------------------
+	private int unwrap(final ByteBuffer app) throws IOException {
+		int produced = 0;
+		progress = false;
+		netIn.flip();
+		try {
+			while (netIn.hasRemaining()) {
+				SSLEngineResult r = engine.unwrap(netIn, app);
+				produced += r.bytesProduced();
+				if (r.bytesConsumed() > 0) {
+					progress = true;
+				}
+				switch (r.getStatus()) {
+				case OK:
+					break;
+				case CLOSED:
+					closed = true;
+					return produced;
+				case BUFFER_OVERFLOW:
+					return produced; // caller makes room
+				case BUFFER_UNDERFLOW:
+					if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) {
+						grow();
+					}
+					return produced; // record incomplete
+				}
+				SSLEngineResult.HandshakeStatus hs = r.getHandshakeStatus();
+				if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runTasks();
+				} else if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					if (!handshaking) {
+						wrap(EMPTY); // post handshake message, e.g. key update
+						flush();
+					} else {
+						return produced;
+					}
+				} else if (handshaking && hs != SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+					return produced;
+				}
+				if (r.bytesConsumed() == 0 && r.bytesProduced() == 0) {
+					return produced;
+				}
+			}
+			return produced;
+		} finally {
+			if (netIn != null) {
+				netIn.compact();
+			}
+		}
+	}
+
+	// ----------------------------------------------------------------------
+	// Wrap into netOut, writing it out first if it has no room.
+	// ----------------------------------------------------------------------
+	private void wrap(final ByteBuffer src) throws IOException {
+		for (;;) {
+			SSLEngineResult r = engine.wrap(src, netOut);
+			switch (r.getStatus()) {
+			case BUFFER_OVERFLOW:
+				if (netOut.position() > 0) {
+					return; // caller flushes first
+				}
+				growOut();
+				continue;
+			case CLOSED:
+				if (!engine.isOutboundDone() || src.hasRemaining()) {
+					throw new SSLException("TLS connection closed");
+				}
+				return;
+			default:
+				if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+					runTasks();
+				}
+				return;
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable t;
+		while ((t = engine.getDelegatedTask()) != null) {
+			t.run();
+		}
+	}
+
+	// A record larger than the buffer, as sent by some peers.
+	private void grow() {
+		ByteBuffer b = ByteBuffer.allocateDirect(netIn.capacity() * 2);
+		b.put(netIn); // netIn is in read mode here
+		b.flip();
+		BufferPool.put(netIn);
+		netIn = b;
+	}
+
+	private void growOut() {
+		ByteBuffer b = ByteBuffer.allocateDirect(netOut.capacity() * 2);
+		netOut.flip();
+		b.put(netOut);
+		BufferPool.put(netOut);
+		netOut = b;
+	}
+}
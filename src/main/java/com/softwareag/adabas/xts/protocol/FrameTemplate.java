@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.protocol;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import com.softwareag.adabas.xts.Message;
+import com.softwareag.adabas.xts.XTSversion;
+
+//-----------------------------------------------------------------------
+/**
+ * The frame header MHDR or RDA puts in front of an Adabas call. The parts
+ * which do not change on a connection - node, node name, partner - are
+ * filled in once; for each message only the fields taken from the message
+ * are patched in place, so that encoding a frame allocates nothing.
+ **
+ * The buffer lengths of the Adabas control block are read in the byte
+ * order of the caller through byte array views.
+ **/
+//   Maintenance:
+//   Header templates for MHDR and RDA
+// -----------------------------------------------------------------------
+public final class FrameTemplate {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	/** The length of the MHDR protocol header. **/
+	public static final int MHDR_PREFIX = 40;
+	/** The length of an MHDR frame header, protocol header included. **/
+	public static final int MHDR_LENGTH = MHDR_PREFIX + 160;
+	/** The length of an RDA frame header. **/
+	public static final int RDA_LENGTH = 72;
+
+	/** The buffers of an Adabas call, in the order of their lengths. **/
+	public static final int FB = 0, RB = 1, SB = 2, VB = 3, IB = 4;
+
+	static final int HDR_LEN = 12; // XTS Adabas header
+	static final int UBBIN = 2; // offset of ubbin
+	static final int UBBOUT = 3; // offset of ubbout
+	static final int CTX = 4; // offset of context
+	private static final int ACB_LENGTHS = HDR_LEN + 0x18; // fbl in the ACB
+
+	private static final VarHandle SHORT_BE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle SHORT_LE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INT_BE = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONG_BE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	/** The frame header, valid up to <i>length</i>. **/
+	public final byte[] header;
+	/** The length of the frame header. **/
+	public final int length;
+	/** The partner node the template was built for. **/
+	public final int pnode;
+
+	private FrameTemplate(final int length, final int pnode) {
+		this.header = new byte[length];
+		this.length = length;
+		this.pnode = pnode;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Build the template of an MHDR connection.
+	 **
+	 * @param node
+	 *            our node.
+	 ** @param pnode
+	 *            the partner node.
+	 ** @param nodename
+	 *            our node name, 8 bytes EBCDIC.
+	 ** @return the template.
+	 **/
+	// -----------------------------------------------------------------------
+	public static FrameTemplate forMHDR(final int node, final int pnode, final byte[] nodename) {
+		FrameTemplate f = new FrameTemplate(MHDR_LENGTH, pnode);
+		byte[] h = f.header;
+		int o = MHDR_PREFIX;
+		SHORT_BE.set(h, o, (short) pnode); // partner node
+		LONG_BE.set(h, o + 16, 0x4000080002L);
+		SHORT_BE.set(h, o + 24, (short) node); // our node
+		LONG_BE.set(h, o + 36, 0x01000000L); // Per MDB
+		INT_BE.set(h, o + 48, 0xcd000000);
+		LONG_BE.set(h, o + 52, 0x64L); // offset UPL
+		System.arraycopy(nodename, 0, h, o + 64, 8);
+		LONG_BE.set(h, o + 72, 0x1000000000000000L); // priority/flags1 [0006 per MDB]
+		LONG_BE.set(h, o + 80, 0x4800000000L); // offset (UID)
+		System.arraycopy(nodename, 0, h, o + 112, 8); // 2nd part of user ID
+		String s = Integer.toString(node);
+		System.arraycopy(MHDR.$Cp037.getBytes((s + "        ").substring(0, 8)), 0, h, o + 124, 8);
+		INT_BE.set(h, o + 132, 0x80); // pal - offset(acb)
+		INT_BE.set(h, o + 136, 0xd0); // pal - offset(fb)
+		return f;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Build the template of an RDA connection.
+	 **
+	 * @param node
+	 *            our node.
+	 ** @param nodename
+	 *            our node name, 8 bytes.
+	 ** @return the template.
+	 **/
+	// -----------------------------------------------------------------------
+	public static FrameTemplate forRDA(final int node, final byte[] nodename) {
+		FrameTemplate f = new FrameTemplate(RDA_LENGTH, 0);
+		byte[] h = f.header;
+		LONG_BE.set(h, 2, 0x0000010e00004200L);
+		SHORT_BE.set(h, 10, (short) 0x0041);
+		System.arraycopy(nodename, 0, h, 24, 8);
+		String s = Integer.toString(node);
+		System.arraycopy((s + "        ").substring(0, 8).getBytes(), 0, h, 44, 8);
+		return f;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Return the length of a buffer from the Adabas control block.
+	 **
+	 * @param body
+	 *            the message body.
+	 ** @param buffer
+	 *            the buffer, FB to IB.
+	 ** @param bigend
+	 *            true if the caller is big endian.
+	 ** @return the unsigned length.
+	 **/
+	// -----------------------------------------------------------------------
+	public static int bufferLength(final byte[] body, final int buffer, final boolean bigend) {
+		int o = ACB_LENGTHS + (buffer << 1);
+		int n = bigend ? (short) SHORT_BE.get(body, o) : (short) SHORT_LE.get(body, o);
+		return n & 0xffff;
+	}
+
+	// Length of a buffer if its bit is set in the flags, 0 otherwise.
+	private static int bufferLength(final byte[] body, final int buffer, final boolean bigend, final int flags) {
+		return ((flags & (0x10 >> buffer)) != 0) ? bufferLength(body, buffer, bigend) : 0;
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Fill in the MHDR frame header for a message.
+	 **
+	 * @param mhdr
+	 *            the protocol header of the connection, its length is set
+	 *            as well.
+	 ** @param p
+	 *            the message, an Adabas call.
+	 ** @param bigend
+	 *            true if the caller is big endian.
+	 ** @param ebcdic
+	 *            true if the caller is EBCDIC.
+	 **/
+	// -----------------------------------------------------------------------
+	public void encodeMHDR(final byte[] mhdr, final Message p, final boolean bigend, final boolean ebcdic) {
+		byte[] h = header;
+		byte[] b = p.body;
+		int tlen = p.length + 0xc0 - HDR_LEN; // amount of data
+		SHORT_BE.set(mhdr, 0, (short) tlen); // set length
+		SHORT_BE.set(mhdr, 14, (short) tlen);
+		mhdr[24] = (byte) 0xf2; // [0007] [0008] per Mike Dibacco
+		System.arraycopy(mhdr, 0, h, 0, MHDR_PREFIX);
+		int o = MHDR_PREFIX;
+		SHORT_BE.set(h, o + 2, (short) p.target); // message target
+		INT_BE.set(h, o + 4, p.route); // handle
+		h[o + 34] = b[UBBIN];
+		h[o + 35] = b[UBBOUT];
+		SHORT_BE.set(h, o + 44, (short) p.target);
+		int in = b[UBBIN];
+		int io = in | b[UBBOUT]; // buffers out or in
+		int tbuf = 0x6c; // overhead, pal+acb
+		for (int i = FB; i <= IB; i++) {
+			tbuf += bufferLength(b, i, bigend, io);
+		}
+		INT_BE.set(h, o + 48, 0xcd000000 | tbuf);
+		SHORT_BE.set(h, o + 104, (short) ((ebcdic ? 0x0104 : 0x0120) | (bigend ? 0 : 1)));
+		putContext(h, o + 120, b, bigend); // store context ID in RDA PID [0007]
+		tbuf = 0xd0; // first buffer
+		for (int i = FB; i < IB; i++) {
+			tbuf += bufferLength(b, i, bigend, in);
+			INT_BE.set(h, o + 140 + (i << 2), tbuf); // pal - offset(rb) to offset(ib)
+		}
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Fill in the RDA frame header for a message.
+	 **
+	 * @param pnodename
+	 *            the partner node name.
+	 ** @param p
+	 *            the message, an Adabas call.
+	 ** @param bigend
+	 *            true if the caller is big endian.
+	 ** @param ebcdic
+	 *            true if the caller is EBCDIC.
+	 ** @param binbout
+	 *            ubbin and ubbout in RDA bit order.
+	 ** @param acb
+	 *            the offset of the ACB in the data.
+	 **/
+	// -----------------------------------------------------------------------
+	public void encodeRDA(final byte[] pnodename, final Message p, final boolean bigend, final boolean ebcdic, final int binbout, final int acb) {
+		byte[] h = header;
+		byte[] b = p.body;
+		int len = p.length - HDR_LEN + 0x40;
+		SHORT_BE.set(h, 0, (short) len);
+		SHORT_BE.set(h, 12, (short) p.target);
+		SHORT_BE.set(h, 14, (short) ((ebcdic ? 0x0004 : 0x0028) | (bigend ? 0 : 1)));
+		System.arraycopy(b, UBBIN, h, 16, 4); // CQE
+		INT_BE.set(h, 20, p.route); // SEQNR
+		System.arraycopy(pnodename, 0, h, 32, 8);
+		// Make rdas1_prio2 x01 vs x40 to eliminate rsp 146 for adaesi [0019]
+		INT_BE.set(h, 40, 0x10010000 | binbout);
+		INT_BE.set(h, 52, acb); // offset of acb
+		putContext(h, 56, b, bigend); // store context ID in RDA PID [0007]
+		INT_BE.set(h, 60, len); // length of message 4 bytes [0006]
+	}
+
+	// The context ID, byte swapped for little endian callers [0008].
+	private static void putContext(final byte[] h, final int o, final byte[] b, final boolean bigend) {
+		if (bigend) {
+			System.arraycopy(b, CTX, h, o, 4);
+		} else {
+			h[o] = b[CTX + 3];
+			h[o + 1] = b[CTX + 2];
+			h[o + 2] = b[CTX + 1];
+			h[o + 3] = b[CTX];
+		}
+	}
+}
@@ -11,6 +11,7 @@ package com.softwareag.adabas.xts.protocol;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 import com.softwareag.adabas.xts.Message;
@@ -164,7 +165,7 @@ class HTTP11 extends IPtransport {
 
 	protected final Object getToken(final IPtx tx) throws IOException {
 		HttpToken t = new HttpToken();
-		tx.token = t; // chicken and egg problem
+		tx.setToken(t); // chicken and egg problem
 
 		t.pheadlen = addHeader("POST * HTTP/1.1", t.post_header, t.pheadlen);
 		t.pheadlen = addHeader("Content-type: application/octet-stream",
@@ -220,7 +221,7 @@ class HTTP11 extends IPtransport {
 		}
 		tx.dos.write(l, i + 1, 8 - i);
 
-		p.putMessage(tx.dos);
+		tx.writeMessage(p);
 	}
 
 	// -----------------------------------------------------------------------
@@ -241,12 +242,9 @@ class HTTP11 extends IPtransport {
 	}
 
 	protected final Message receive(final IPrx rx) throws IOException, XTSException, Exception {
-		while (rx.twin.token == null) {
-			Thread.currentThread();
-			Thread.yield();
-		}
+		rx.twin.awaitToken();
 		readHeader(rx);
-		return Message.getMessage(rx.dis);
+		return rx.readMessage();
 	}
 
 	// -----------------------------------------------------------------------
@@ -296,6 +294,29 @@ class HTTP11 extends IPtransport {
 
 	}
 
+	// -----------------------------------------------------------------------
+	// A frame is the HTTP header up to the empty line followed by an XTS
+	// message.
+	// -----------------------------------------------------------------------
+	protected final int frameLength(final ByteBuffer b) {
+		int start = b.position();
+		int end = Math.min(b.limit(), start + 1024);
+		for (int i = start; i + 3 < end; i++) {
+			if (b.get(i) == 0x0d && b.get(i + 1) == 0x0a && b.get(i + 2) == 0x0d && b.get(i + 3) == 0x0a) {
+				int head = i + 4 - start;
+				if (b.limit() - start < head + 4) {
+					return -1;
+				}
+				int len = b.getInt(start + head);
+				if (len < 12 || len > XTS.maxmsglength) {
+					return b.remaining(); // let receive report the error
+				}
+				return head + len;
+			}
+		}
+		return b.remaining() >= 1024 ? b.remaining() : -1;
+	}
+
 	protected final void shut(final IPtx tx) throws IOException {
 	}
 
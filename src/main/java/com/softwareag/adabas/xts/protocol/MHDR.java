@@ -10,6 +10,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 import java.util.Vector;
 
@@ -18,6 +19,7 @@ import com.softwareag.adabas.xts.XTS;
 import com.softwareag.adabas.xts.XTStrace;
 import com.softwareag.adabas.xts.XTSurl;
 import com.softwareag.adabas.xts.XTSversion;
+import com.softwareag.adabas.xts.helpers.ContextTable;
 import com.softwareag.adabas.xts.interfaces.IConnectCallback;
 import com.softwareag.adabas.xts.interfaces.IDriver;
 import com.softwareag.adabas.xts.network.IPtransport;
@@ -172,7 +174,7 @@ class MHDR extends IPtransport {
 	protected final Object getToken(final IPtx tx) throws IOException {
 		MHDRtoken t = new MHDRtoken();
 		t.isEBCDIC = isEBCDIC;
-		// tx.token=t; move to synchronized
+		// tx.setToken(t); move to synchronized
 		String st = url.getValue("node");
 		// if(st!=null) try
 		// { t.node=Short.parseShort(st); }
@@ -185,6 +187,22 @@ class MHDR extends IPtransport {
 			}
 		}
 
+		st = url.getValue("ctxttl"); // time to live of a saved context
+		if (st != null) {
+			try {
+				t.ctxInfo.setTtl(Long.parseLong(st));
+			} catch (Exception e) {
+			}
+		}
+		st = url.getValue("ctxmax"); // saved contexts per connection
+		if (st != null) {
+			try {
+				t.ctxInfo.setMax(Integer.parseInt(st));
+			} catch (Exception e) {
+			}
+		}
+		tx.status.contexts = t.ctxInfo;
+
 		st = url.getValue("nodename");
 
 		if (st != null) {
@@ -227,7 +245,7 @@ class MHDR extends IPtransport {
 		}
 
 		synchronized (tx) {
-			tx.token = t; // chicken and egg problem
+			tx.setToken(t); // chicken and egg problem
 			if (listener) {
 				tx.doze("wait conreq"); // wait for connect request
 				tx.dos.writeLong(0x01080000L); // connect response
@@ -325,11 +343,12 @@ class MHDR extends IPtransport {
 				case 2: // destroy context
 					// q=Message.newMessage(0); //[0015]
 					// q.trace("Receive"); //[0015]
-					q = p.cloneMessage(); // Create a copy of message //[0015]
+					p.unshare(); // the reply takes over the body
+					p.reset(); // [0015]
+					p.skip(3); // point to flags byte //[0015]
+					p.put((byte) 0x82); // Set Reply destroy context //[0015]
+					q = p.share(); // no copy, p is sent empty //[0015]
 					q.msgno = p.msgno; // [0015]
-					q.reset(); // [0015]
-					q.skip(3); // point to flags byte //[0015]
-					q.put((byte) 0x82); // Set Reply destroy context //[0015]
 					q.target = XTS.ROUTE_RETURN; // via route return //[0015]
 					q.route = p.route; // Send message back. //[0015]
 					q.ttl = 16; // [0002] //[0015]
@@ -346,164 +365,15 @@ class MHDR extends IPtransport {
 		boolean bigend = (p.body[CTX + 3] & 0x01) == 0; // low-order bit in
 		// context
 		boolean ebcdic = (p.body[CTX + 3] & 0x02) == 0; // EBCDIC
-		byte[] ctxSave = new byte[8];
-		System.arraycopy(p.body, CTX, ctxSave, 0, 8);
-		t.ctxInfo.put(Integer.valueOf(p.route), ctxSave);
-
-		int tlen = p.length + 0xc0 - HDR_LEN; // amount of data
-		t.mhdr[0] = (byte) (tlen >> 8); // set length
-		t.mhdr[1] = (byte) tlen; // set length
-		t.mhdr[14] = t.mhdr[0];
-		t.mhdr[15] = t.mhdr[1];
-		t.mhdr[24] = (byte) 0xf2; // [0007] [0008] per Mike Dibacco
-
-		tx.dos.write(t.mhdr); // write it out
-
-		tx.dos.writeShort(t.pnode); // partner node
-		tx.dos.writeShort(p.target); // message target
-		tx.dos.writeInt(p.route); // handle
-		tx.dos.writeLong(0);
-		tx.dos.writeLong(0x4000080002L);
-		tx.dos.writeLong(((long) t.node) << 48); // our node
-		tx.dos.writeShort(0); // 1st two UB bytes
-		tx.dos.write(p.body, UBBIN, 2); // UBBIN/UBBOUT
-
-		// tx.dos.writeLong(0x04010000L); [0005] Before
-		tx.dos.writeLong(0x01000000L); // Per MDB
-
-		tx.dos.writeInt(p.target << 16);
-		int tbuf = 0x6c; // overhead, pal+acb
-		byte b = (byte) (p.body[UBBIN] | p.body[UBBOUT]); // buffers out or in
-		if (bigend) {
-			if ((b & 0x10) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x18] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x19] & 0xff);
-			}
-			if ((b & 0x08) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1a] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1b] & 0xff);
-			}
-			if ((b & 0x04) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1c] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1d] & 0xff);
-			}
-			if ((b & 0x02) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1e] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1f] & 0xff);
-			}
-			if ((b & 0x01) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x20] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x21] & 0xff);
-			}
-		} else {
-			if ((b & 0x10) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x19] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x18] & 0xff);
-			}
-			if ((b & 0x08) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1b] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1a] & 0xff);
-			}
-			if ((b & 0x04) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1d] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1c] & 0xff);
-			}
-			if ((b & 0x02) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1f] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1e] & 0xff);
-			}
-			if ((b & 0x01) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x21] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x20] & 0xff);
-			}
-		}
-		tx.dos.writeInt(0xcd000000 | tbuf);
-		tx.dos.writeLong(0x64L); // offset UPL
-		tx.dos.writeInt(0);
-		tx.dos.write(t.nodename);
+		t.ctxInfo.put(p.route, p.body, CTX);
 
-		// tx.dos.writeLong(0x1020000000000000L); priority/flags1 [0006 per MDB]
-		tx.dos.writeLong(0x1000000000000000L); // priority/flags1 [0006 per MDB]
-
-		tx.dos.writeLong(0x4800000000L); // offset (UID)
-		tx.dos.writeLong(0);
-		tx.dos.writeLong(0); // end of UB
-		tx.dos.writeShort((ebcdic ? 0x0104 : 0x0120) | (bigend ? 0 : 1)); // 1st
-		// part
-		// of
-		// user
-		// ID
-		//
-		tx.dos.writeShort(0); // ditto
-		tx.dos.writeInt(0); // ditto
-		tx.dos.write(t.nodename); // 2nd part of user ID
-		// tx.dos.writeInt(t.node); // 3rd part of user ID
-		// tbuf=((p.body[CTX+2]&0xff)<<8)+(p.body[CTX+3]&0xff)+100000;
-		// tx.dos.write($Cp037.getBytes("US"+Integer.toString(tbuf)));
-		if (bigend) {
-			tx.dos.write(p.body, CTX, 4); // store context ID in RDA PID [0007]
-			//
-		} else {// store Context ID in RDA PID
-
-			tx.dos.write(p.body, CTX + 3, 1); // byte swapped format [0008]
-			//
-			tx.dos.write(p.body, CTX + 2, 1); // byte swapped format [0008]
-			//
-			tx.dos.write(p.body, CTX + 1, 1); // byte swapped format [0008]
-			//
-			tx.dos.write(p.body, CTX, 1); // byte swapped format [0008]
-		}
-		String s = Integer.toString(t.node);
-		// tx.dos.write((s+"        ").substring(0,8).getBytes());
-		tx.dos.write($Cp037.getBytes((s + "        ").substring(0, 8)));
-		tx.dos.writeInt(0x80); // pal - offset(acb)
-		tx.dos.writeInt(0xd0); // pal - offset(fb)
-		tbuf = 0xd0; // first buffer
-		b = p.body[UBBIN];
-		if (bigend) {
-			if ((b & 0x10) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x18] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x19] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(rb)
-			if ((b & 0x08) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1a] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1b] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(sb)
-			if ((b & 0x04) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1c] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1d] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(vb)
-			if ((b & 0x02) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1e] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1f] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(ib)
-		} else {
-			if ((b & 0x10) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x19] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x18] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(rb)
-			if ((b & 0x08) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1b] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1a] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(sb)
-			if ((b & 0x04) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1d] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1c] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(vb)
-			if ((b & 0x02) != 0) {
-				tbuf += ((p.body[HDR_LEN + 0x1f] & 0xff) << 8)
-						+ (p.body[HDR_LEN + 0x1e] & 0xff);
-			}
-			tx.dos.writeInt(tbuf); // pal - offset(ib)
+		FrameTemplate f = t.frame;
+		if (f == null || f.pnode != t.pnode) {
+			f = FrameTemplate.forMHDR(t.node, t.pnode, t.nodename);
+			t.frame = f;
 		}
-		tx.dos.writeInt(0); // pal - return rbl/ibl
+		f.encodeMHDR(t.mhdr, p, bigend, ebcdic);
+		tx.dos.write(f.header, 0, f.length);
 		tx.dos.write(p.body, HDR_LEN, p.length - HDR_LEN);// write rest of
 		// buffer
 		if (XTStrace.bGlobalVerboseEnabled) 
@@ -618,18 +488,7 @@ class MHDR extends IPtransport {
 	protected final Message receive(final IPrx rx) throws IOException {
 		byte[] ph = new byte[8];
 		int rsp; // rsp 207,209 check
-		byte[] ctxSave = new byte[8];
-		MHDRtoken t = null;
-		for (;;) {
-			t = (MHDRtoken) rx.twin.token;
-			if (t != null) {
-				break;
-			}
-			try {
-				sleep(100);
-			} catch (InterruptedException ie) {
-			}
-		}
+		MHDRtoken t = (MHDRtoken) rx.twin.awaitToken();
 		forloop: for (;;) {
 			rx.dis.readFully(ph); // get protocol header
 			if (XTStrace.bGlobalDebugEnabled) 
@@ -657,7 +516,7 @@ class MHDR extends IPtransport {
 				return null;
 			}
 
-			Message p = Message.newMessage(len);
+			Message p = Message.newMessage(len, Message.ZERO_DIRTY);
 			rx.dis.readFully(p.body, 0, len); // get whole lot
 			if (XTStrace.bGlobalDebugEnabled) 
 				XTStrace.dump("MHDR payload", "receive", p.body, len, true);
@@ -728,10 +587,7 @@ class MHDR extends IPtransport {
 			}
 
 			// System.arraycopy(p.body,0x24,p.body,CTX,8);
-			ctxSave = (byte[]) t.ctxInfo.remove(Integer.valueOf(p.route));
-			if (ctxSave != null) {
-				System.arraycopy(ctxSave, 0, p.body, CTX, 8);
-			}
+			t.ctxInfo.remove(p.route, p.body, CTX); // restore the context
 
 			System.arraycopy(p.body, k, p.body, HDR_LEN, 80);
 			int l = 80 + HDR_LEN; // offset where to copy
@@ -767,8 +623,8 @@ class MHDR extends IPtransport {
 		Hashtable<String, String> security; // security context
 		// byte preserve[] = new byte[8]; // preserve
 		boolean isEBCDIC = false; // is EBCDIC
-		Hashtable<Integer, byte[]> ctxInfo = new Hashtable<Integer, byte[]>(); // create
-		// Hashtable for context  save
+		final ContextTable ctxInfo = new ContextTable(8); // context save by route
+		FrameTemplate frame; // frame header, built on the first message
 	}
 
 	private final void mhdr_control(final IPrx rx, final Message p)	throws IOException {
@@ -824,6 +680,23 @@ class MHDR extends IPtransport {
 		rx.do_chirp(((b1 & 0xff) << 8) | (b2 & 0xff), chirp, chirpBody);
 	}
 
+	// -----------------------------------------------------------------------
+	// Frames are an 8 byte protocol header carrying the payload length.
+	// -----------------------------------------------------------------------
+	protected final int frameLength(final ByteBuffer b) {
+		if (b.remaining() < 8) {
+			return -1;
+		}
+		return 8 + (b.getShort(b.position()) & 0xffff);
+	}
+
+	// -----------------------------------------------------------------------
+	// The connect handshake waits for the partner.
+	// -----------------------------------------------------------------------
+	protected final boolean isBlockingHandshake() {
+		return true;
+	}
+
 	protected final void shut(final IPtx tx) throws IOException {
 		MHDRtoken t = (MHDRtoken) tx.token;
 		tx.dos.writeLong(t.snddrsp ? 0x10a0000L : 0x10b0000L);
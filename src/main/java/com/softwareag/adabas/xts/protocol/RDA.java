@@ -11,6 +11,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 import java.util.Vector;
 
@@ -19,6 +20,7 @@ import com.softwareag.adabas.xts.XTS;
 import com.softwareag.adabas.xts.XTStrace;
 import com.softwareag.adabas.xts.XTSurl;
 import com.softwareag.adabas.xts.XTSversion;
+import com.softwareag.adabas.xts.helpers.ContextTable;
 import com.softwareag.adabas.xts.interfaces.IConnectCallback;
 import com.softwareag.adabas.xts.interfaces.IDriver;
 import com.softwareag.adabas.xts.network.IPtransport;
@@ -180,6 +182,22 @@ class RDA extends IPtransport {
 			} catch (Exception e) {
 			}
 		}
+		st = url.getValue("ctxttl"); // time to live of a saved context
+		if (st != null) {
+			try {
+				t.ctxInfo.setTtl(Long.parseLong(st));
+			} catch (Exception e) {
+			}
+		}
+		st = url.getValue("ctxmax"); // saved contexts per connection
+		if (st != null) {
+			try {
+				t.ctxInfo.setMax(Integer.parseInt(st));
+			} catch (Exception e) {
+			}
+		}
+		tx.status.contexts = t.ctxInfo;
+
 		st = url.getValue("nodename");
 		if (st != null) {
 			t.nodename = ((st + "        ").toUpperCase().substring(0, 8)).getBytes("8859_1");
@@ -222,7 +240,7 @@ class RDA extends IPtransport {
 		}
 
 		synchronized (tx) {
-			tx.token = t; // chicken and egg problem
+			tx.setToken(t); // chicken and egg problem
 			if (listener) {
 				tx.doze("wait conreq"); // wait for connect request
 				tx.dos.writeLong(0x101080000L); // connect response
@@ -317,10 +335,11 @@ class RDA extends IPtransport {
 				case 2: // destroy context
 					// **********q=Message.newMessage(0);*****************************
 					// [0015]
-					q = p.cloneMessage(); // Create a copy of message
-					q.reset();
-					q.skip(3); // point to flags byte
-					q.put((byte) 0x82); // Set Reply destroy context
+					p.unshare(); // the reply takes over the body
+					p.reset();
+					p.skip(3); // point to flags byte
+					p.put((byte) 0x82); // Set Reply destroy context
+					q = p.share(); // no copy, p is done with it
 					q.target = XTS.ROUTE_RETURN; // via route return
 					q.route = p.route; // Send message back.
 					q.ttl = 16;
@@ -340,82 +359,27 @@ class RDA extends IPtransport {
 		// byte[] ctxSave=new byte[8];
 		// System.arraycopy(p.body,CTX,ctxSave,0,8);
 		// t.ctxInfo.put(new Integer(p.route), ctxSave);
-		byte[] SaveCtxUBBinBout = new byte[12];
+		byte[] SaveCtxUBBinBout = t.save;
 		System.arraycopy(p.body, CTX, SaveCtxUBBinBout, 0, 8);
 		SaveCtxUBBinBout[8] = p.body[UBBIN];
 		SaveCtxUBBinBout[9] = p.body[UBBOUT];
 		System.arraycopy(p.body, 20, SaveCtxUBBinBout, 10, 2); // SV FNR
-		t.ctxInfo.put(Integer.valueOf(p.route), SaveCtxUBBinBout);
-
-		tx.dos.writeShort(p.length - HDR_LEN + 0x40);
-		tx.dos.writeLong(0x0000010e00004200L);
-		tx.dos.writeShort(0x0041);
-		tx.dos.writeShort(p.target);
-		tx.dos.writeShort((ebcdic ? 0x0004 : 0x0028) | (bigend ? 0 : 1));
-		tx.dos.write(p.body, UBBIN, 4); // CQE
-		tx.dos.writeInt(p.route); // SEQNR
-		tx.dos.write(t.nodename);
-		tx.dos.write(t.pnodename);
-		// Make rdas1_prio2 x01 vs x40 to eliminate rsp 146 for adaesi [0019]
-		// tx.dos.writeInt(0x10400000 | (binbout(p.body[UBBIN])<<8) |
-		// binbout(p.body[UBBOUT]));
-		tx.dos.writeInt(0x10010000 | (binbout(p.body[UBBIN]) << 8)
-				| binbout(p.body[UBBOUT]));
-
-		// Convert nodeid to string and place it in the rdaTID field [0006]
-		String s = Integer.toString(t.node); // [0006]
-		// String s=Integer.toString((t.node<<16) [0006]
-		// | ((p.body[CTX+2]&0xff)<<8) | (p.body[CTX+3]&0xff)); [0006]
-		tx.dos.write((s + "        ").substring(0, 8).getBytes());
-		// tx.dos.write(p.body,CTX,8);
-
-		int fbl;
-		int rbl;
-		int sbl;
-		int vbl;
-		int ibl;
+		t.ctxInfo.put(p.route, SaveCtxUBBinBout, 0);
 
 		int b = p.body[UBBIN];
-		if (bigend) {
-			fbl = ((b & 0x10) == 0) ? 0 : ((p.body[HDR_LEN + 24] & 0xff) << 8)
-					| (p.body[HDR_LEN + 25] & 0xff);
-			rbl = ((b & 0x08) == 0) ? 0 : ((p.body[HDR_LEN + 26] & 0xff) << 8)
-					| (p.body[HDR_LEN + 27] & 0xff);
-			sbl = ((b & 0x04) == 0) ? 0 : ((p.body[HDR_LEN + 28] & 0xff) << 8)
-					| (p.body[HDR_LEN + 29] & 0xff);
-			vbl = ((b & 0x02) == 0) ? 0 : ((p.body[HDR_LEN + 30] & 0xff) << 8)
-					| (p.body[HDR_LEN + 31] & 0xff);
-			ibl = ((b & 0x01) == 0) ? 0 : ((p.body[HDR_LEN + 32] & 0xff) << 8)
-					| (p.body[HDR_LEN + 33] & 0xff);
-		} else {
-			fbl = ((b & 0x10) == 0) ? 0 : ((p.body[HDR_LEN + 25] & 0xff) << 8)
-					| (p.body[HDR_LEN + 24] & 0xff);
-			rbl = ((b & 0x08) == 0) ? 0 : ((p.body[HDR_LEN + 27] & 0xff) << 8)
-					| (p.body[HDR_LEN + 26] & 0xff);
-			sbl = ((b & 0x04) == 0) ? 0 : ((p.body[HDR_LEN + 29] & 0xff) << 8)
-					| (p.body[HDR_LEN + 28] & 0xff);
-			vbl = ((b & 0x02) == 0) ? 0 : ((p.body[HDR_LEN + 31] & 0xff) << 8)
-					| (p.body[HDR_LEN + 30] & 0xff);
-			ibl = ((b & 0x01) == 0) ? 0 : ((p.body[HDR_LEN + 33] & 0xff) << 8)
-					| (p.body[HDR_LEN + 32] & 0xff);
+		int fbl = ((b & 0x10) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.FB, bigend);
+		int rbl = ((b & 0x08) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.RB, bigend);
+		int sbl = ((b & 0x04) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.SB, bigend);
+		int vbl = ((b & 0x02) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.VB, bigend);
+		int ibl = ((b & 0x01) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.IB, bigend);
+
+		FrameTemplate f = t.frame;
+		if (f == null) {
+			f = FrameTemplate.forRDA(t.node, t.nodename);
+			t.frame = f;
 		}
-
-		tx.dos.writeInt(fbl + sbl + vbl + 0x40); // offset of acb
-		// tx.dos.writeInt(p.body[CTX]); // store context ID in RDA PID [0006]
-		if (bigend) {
-			tx.dos.write(p.body, CTX, 4); // store context ID in RDA PID [0007]
-		} else {// store Context ID in RDA PID [0008]
-
-			tx.dos.write(p.body, CTX + 3, 1); // byte swapped format [0008]
-			tx.dos.write(p.body, CTX + 2, 1); // byte swapped format [0008]
-			tx.dos.write(p.body, CTX + 1, 1); // byte swapped format [0008]
-			tx.dos.write(p.body, CTX, 1); // byte swapped format [0008]
-		}
-		// tx.dos.writeLong(p.length+0x40-HDR_LEN);// length of message
-		// [0006]
-		tx.dos.writeInt(p.length + 0x40 - HDR_LEN);// length of message 4 bytes
-		// [0006]
-		tx.dos.writeLong(0); // spare
+		f.encodeRDA(t.pnodename, p, bigend, ebcdic, (binbout(p.body[UBBIN]) << 8) | binbout(p.body[UBBOUT]), fbl + sbl + vbl + 0x40);
+		tx.dos.write(f.header, 0, f.length);
 		if (fbl > 0) {
 			tx.dos.write(p.body, 80 + HDR_LEN, fbl);
 		}
@@ -457,6 +421,7 @@ class RDA extends IPtransport {
 		// else (targetid and fnr must be less than 256) [0011]
 		// if acb type field != X'30' and [0011]
 		// set the target id in the acb based on endian format [0011]
+		p.unshare(); // the control block is edited for this target
 		if (!t.isEBCDIC) {
 			if (p.target > 255 || fnr_DBID > 255
 					|| (p.body[HDR_LEN] & 0x30) == 0x30) {
@@ -586,18 +551,8 @@ class RDA extends IPtransport {
 		byte[] ph = new byte[8];
 		int rsp; // rsp 207,209 check
 		// byte[] ctxSave=new byte[8];
-		byte[] SaveCtxBinBout = new byte[12];
-		RDAtoken t = null;
-		for (;;) {
-			t = (RDAtoken) rx.twin.token;
-			if (t != null) {
-				break;
-			}
-			try {
-				sleep(100);
-			} catch (InterruptedException ie) {
-			}
-		}
+		RDAtoken t = (RDAtoken) rx.twin.awaitToken();
+		byte[] SaveCtxBinBout = t.restore;
 		forloop: for (;;) {
 			rx.dis.readFully(ph); // get protocol header
 			XTStrace.dump("Received header", "receive", ph, 8, true);
@@ -622,7 +577,7 @@ class RDA extends IPtransport {
 				}
 			}
 
-			Message p = Message.newMessage(len);
+			Message p = Message.newMessage(len, Message.ZERO_DIRTY);
 			rx.dis.readFully(p.body, 0, len); // get whole lot
 			XTStrace.dump("RDA Payload", "receive", p.body, len, true);
 
@@ -674,9 +629,7 @@ class RDA extends IPtransport {
 				}
 			}
 
-			SaveCtxBinBout = (byte[]) t.ctxInfo
-					.remove(Integer.valueOf(p.route));
-			if (SaveCtxBinBout != null) {
+			if (t.ctxInfo.remove(p.route, SaveCtxBinBout, 0)) {
 				System.arraycopy(SaveCtxBinBout, 0, p.body, CTX, 8);
 				p.body[UBBIN] = SaveCtxBinBout[8];
 				p.body[UBBOUT] = SaveCtxBinBout[9];
@@ -727,7 +680,10 @@ class RDA extends IPtransport {
 		Hashtable<String, String> security; // security context
 		byte[] preserve = new byte[8]; // preserve
 		boolean isEBCDIC = false; // is EBCDIC
-		Hashtable<Integer, byte[]> ctxInfo = new Hashtable<Integer, byte[]>(); // create Hashtable for context save
+		final ContextTable ctxInfo = new ContextTable(12); // context, ubbin/ubbout and FNR by route
+		final byte[] save = new byte[12]; // transmit side context save
+		final byte[] restore = new byte[12]; // receive side context save
+		FrameTemplate frame; // frame header, built on the first message
 	}
 
 	private final boolean rda_control(final Message p, final IPrx rx) {
@@ -870,7 +826,26 @@ class RDA extends IPtransport {
 		q.body[33] = (byte) (rsp >>> 16);
 		q.body[34] = (byte) (rsp >>> 8);
 		q.body[35] = (byte) rsp;
-		rx.twin.send(q, null, status); // send it
+		if (rx.twin.send(q, null, status)) { // send it
+			q.freeMessage("RDA response");
+		}
+	}
+
+	// -----------------------------------------------------------------------
+	// Frames are an 8 byte protocol header carrying the payload length.
+	// -----------------------------------------------------------------------
+	protected final int frameLength(final ByteBuffer b) {
+		if (b.remaining() < 8) {
+			return -1;
+		}
+		return 8 + (b.getShort(b.position()) & 0xffff);
+	}
+
+	// -----------------------------------------------------------------------
+	// The connect handshake waits for the partner.
+	// -----------------------------------------------------------------------
+	protected final boolean isBlockingHandshake() {
+		return true;
 	}
 
 	protected final void shut(final IPtx tx) throws IOException {
@@ -10,6 +10,7 @@ package com.softwareag.adabas.xts.protocol;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.KeyStore;
@@ -17,13 +18,16 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
+import java.util.List;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
@@ -251,6 +255,17 @@ public class SSL extends TCPIP {
 	 * /*End of parameter configuration constants
 	 */
 
+	// SESSION_CACHE=the number of sessions kept for resumption
+	static final String SESSION_CACHE = "SESSION_CACHE";
+	// SESSION_TIMEOUT=the time in seconds a session can be resumed
+	static final String SESSION_TIMEOUT = "SESSION_TIMEOUT";
+	/*
+	 * The SSL context, and with it the session cache, is shared by all
+	 * connections with the same keystore, truststore, VERSION= and JCIPHER=
+	 * parameters. Reconnects to the same host and port resume a cached session
+	 * until it times out. JSSE defaults apply if the parameters are not given.
+	 */
+
 	static final String SUNX509_KEYMANAGER = "SunX509";
 	static final String SUNX509_TRUSTMANAGER = "SunX509";
 	static final String DEFAULT_PROVIDER_STRING = "SunJSSE";
@@ -418,51 +433,26 @@ public class SSL extends TCPIP {
 	 */
 	protected ServerSocket createServerSocket() throws IOException {
 		String fingerprint = className + ", CreateServerSocket";
-		String fileName = null;
 		SSLServerSocket serverSocket = null;
 		// Socket clientSocket = null;
-		char[] keyStorePasswd = null;
-		char[] trustStorePasswd = null;
 		SSLContext ctx = null;
-		KeyManagerFactory kmf = null;
-		KeyManager[] keyManagers = null;
-		TrustManagerFactory tmf = null;
-		TrustManager[] trustManagers = null;
-		KeyStore keyStore = null;
-		KeyStore trustStore = null;
 		String[] cipherSuites = null;
-		String verify = null;
 		int i = 0;
 
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose(fingerprint + " " + url.toString(true));
 		try {
-			keyStore = getKeyStoreInstance(OPTION_KEYSTORE);
-			keyStorePasswd = getPasswd(KEYSTORE_PASSWD);
-			fileName = loadKeyStore(keyStore, keyStorePasswd);
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose(fingerprint + " loaded keystore " + fileName);
-
-			kmf = KeyManagerFactory.getInstance(SUNX509_KEYMANAGER, DEFAULT_PROVIDER_STRING);
-			kmf.init(keyStore, keyStorePasswd);
-			keyManagers = kmf.getKeyManagers();
-
-			trustStore = getKeyStoreInstance(OPTION_TRUSTSTORE);
-			trustStorePasswd = getPasswd(TRUSTSTORE_PASSWD);
-			fileName = loadTrustStore(trustStore, trustStorePasswd);
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose(fingerprint + " loaded truststore " + fileName);
-
-			tmf = TrustManagerFactory.getInstance(SUNX509_TRUSTMANAGER, DEFAULT_PROVIDER_STRING);
-			tmf.init(trustStore);
-			trustManagers = tmf.getTrustManagers();
-
-			ctx = getSSLContext();
-			ctx.init(keyManagers, trustManagers, null);
+			ctx = getCachedContext(fingerprint, true);
+			if (nio) {
+				needClientAuth(); // validate now, the engines are created per connection
+				return super.createServerSocket();
+			}
 
 			SSLServerSocketFactory ssf = ctx.getServerSocketFactory();
 
-			serverSocket = (SSLServerSocket) ssf.createServerSocket(url.getPort());
+			serverSocket = (SSLServerSocket) ssf.createServerSocket();
+			options.beforeBind(serverSocket);
+			serverSocket.bind(new InetSocketAddress(url.getPort()), options.getBacklog());
 			if (XTStrace.bGlobalVerboseEnabled) {
 				XTStrace.verbose(fingerprint + " SSLServerSocket has been created as " + serverSocket);
 				cipherSuites = serverSocket.getSupportedCipherSuites();
@@ -480,15 +470,10 @@ public class SSL extends TCPIP {
 				}
 			}
 
-			verify = url.getValue(VERIFY);
-			if (verify != null) {
-				if (0 == FORCE_PEER_VERIFICATION.compareTo(verify) || 0 == SAME_AS_FORCE_PEER_VERIFICATION.compareTo(verify)) {
-					serverSocket.setNeedClientAuth(true);
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose(fingerprint + " NeedClientAuth");
-				} else if (0 != NO_PEER_VERIFICATION.compareTo(verify) && 0 != LIGHT_PEER_VERIFICATION.compareTo(verify)) {
-					throw (new InvalidQualifierException("VERIFY= unsupported as it is in url " + url.toString(true)));
-				}
+			if (needClientAuth()) {
+				serverSocket.setNeedClientAuth(true);
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose(fingerprint + " NeedClientAuth");
 			}
 
 			return serverSocket;
@@ -513,45 +498,18 @@ public class SSL extends TCPIP {
 	 */
 	protected Socket createClientSocket() throws IOException {
 		String fingerprint = className + ", CreateClientSocket";
-		String fileName = null;
 		SSLSocket clientSocket = null;
-		char[] keyStorePasswd = null;
-		char[] trustStorePasswd = null;
 		SSLContext ctx = null;
-		KeyManagerFactory kmf = null;
-		KeyManager[] keyManagers = null;
-		TrustManagerFactory tmf = null;
-		TrustManager[] trustManagers = null;
-		KeyStore keyStore = null;
-		KeyStore trustStore = null;
 		String[] cipherSuites = null;
 		int i = 0;
 
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose(fingerprint + " " + url.toString(true));
 		try {
-			keyStore = getKeyStoreInstance(OPTION_KEYSTORE);
-			keyStorePasswd = getPasswd(KEYSTORE_PASSWD);
-			fileName = loadKeyStore(keyStore, keyStorePasswd);
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose(fingerprint + " loaded keystore " + fileName);
-
-			kmf = KeyManagerFactory.getInstance(SUNX509_KEYMANAGER);
-			kmf.init(keyStore, keyStorePasswd);
-			keyManagers = kmf.getKeyManagers();
-
-			trustStore = getKeyStoreInstance(OPTION_TRUSTSTORE);
-			trustStorePasswd = getPasswd(TRUSTSTORE_PASSWD);
-			fileName = loadTrustStore(trustStore, trustStorePasswd);
-			if (XTStrace.bGlobalVerboseEnabled) 
-				XTStrace.verbose(fingerprint + " loaded truststore " + fileName);
-
-			tmf = TrustManagerFactory.getInstance(SUNX509_TRUSTMANAGER);
-			tmf.init(trustStore);
-			trustManagers = tmf.getTrustManagers();
-
-			ctx = getSSLContext();
-			ctx.init(keyManagers, trustManagers, null);
+			if (nio) { // the engine takes the context, see createEngine
+				return super.createClientSocket();
+			}
+			ctx = getCachedContext(fingerprint, false);
 
 			SSLSocketFactory ssf = ctx.getSocketFactory();
 
@@ -573,10 +531,17 @@ public class SSL extends TCPIP {
 				}
 			}
 
+			long started = System.currentTimeMillis();
+			long start = System.nanoTime();
 			clientSocket.startHandshake();
+			SSLSession sslSession = clientSocket.getSession();
+			// A session created by an earlier handshake. This detects TLS 1.2
+			// session resumption; a TLS 1.3 session resumed through a ticket
+			// may be a new session object and count as a full handshake.
+			boolean resumed = sslSession.getCreationTime() < started;
+			SSLContextCache.handshake(System.nanoTime() - start, resumed);
 			if (XTStrace.bGlobalVerboseEnabled) {
-				SSLSession sslSession = clientSocket.getSession();
-				XTStrace.verbose(fingerprint + " " + sslSession.getCipherSuite() + " has been imposed by Server");
+				XTStrace.verbose(fingerprint + " " + sslSession.getCipherSuite() + " has been imposed by Server" + (resumed ? ", session resumed" : ""));
 			}
 
 			return clientSocket;
@@ -591,6 +556,156 @@ public class SSL extends TCPIP {
 
 	}
 
+	/**
+	 * Get the SSL context for the url from the context cache. The context is
+	 * keyed by the configured stores, their types, the parameters and a
+	 * salted digest of the passwords; the stores are loaded, which checks
+	 * the passwords, only when the context is built, that is if there is
+	 * none for the key yet or a store file has changed.
+	 * 
+	 * @param fingerprint
+	 *            the trace prefix of the caller.
+	 * @param server
+	 *            true for a server socket.
+	 * @return an initialized SSLContext.
+	 * @exception Exception
+	 *                any exception of loading the stores or initializing the
+	 *                context.
+	 */
+	private SSLContext getCachedContext(final String fingerprint, final boolean server) throws Exception {
+		final char[] keyStorePasswd = getPasswd(KEYSTORE_PASSWD);
+		final char[] trustStorePasswd = getPasswd(TRUSTSTORE_PASSWD);
+		String key = (server ? "server" : "client")
+				+ "|" + getValue(KEYSTORE, KEYSTORE_PROPERTY) + "|" + getValue(KEYSTORE_TYPE, KEYSTORE_TYPE_PROPERTY)
+				+ "|" + getValue(TRUSTSTORE, TRUSTSTORE_PROPERTY) + "|" + getValue(TRUSTSTORE_TYPE, TRUSTSTORE_TYPE_PROPERTY)
+				+ "|" + SSLContextCache.credentials(keyStorePasswd, trustStorePasswd)
+				+ "|" + url.getValue(VERSION_PARM) + "|" + url.getValue(JCIPHER)
+				+ "|" + url.getValue(SESSION_CACHE) + "|" + url.getValue(SESSION_TIMEOUT);
+		return SSLContextCache.get(key, new SSLContextCache.Loader() {
+			public SSLContext load(final List<String> files) throws Exception {
+				KeyStore keyStore = getKeyStoreInstance(OPTION_KEYSTORE);
+				String fileName = loadKeyStore(keyStore, keyStorePasswd);
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose(fingerprint + " loaded keystore " + fileName);
+				if (fileName != null) {
+					files.add(fileName);
+				}
+
+				KeyManagerFactory kmf = server ? KeyManagerFactory.getInstance(SUNX509_KEYMANAGER, DEFAULT_PROVIDER_STRING)
+						: KeyManagerFactory.getInstance(SUNX509_KEYMANAGER);
+				kmf.init(keyStore, keyStorePasswd);
+				KeyManager[] keyManagers = kmf.getKeyManagers();
+
+				KeyStore trustStore = getKeyStoreInstance(OPTION_TRUSTSTORE);
+				fileName = loadTrustStore(trustStore, trustStorePasswd);
+				if (XTStrace.bGlobalVerboseEnabled) 
+					XTStrace.verbose(fingerprint + " loaded truststore " + fileName);
+				if (fileName != null) {
+					files.add(fileName);
+				}
+
+				TrustManagerFactory tmf = server ? TrustManagerFactory.getInstance(SUNX509_TRUSTMANAGER, DEFAULT_PROVIDER_STRING)
+						: TrustManagerFactory.getInstance(SUNX509_TRUSTMANAGER);
+				tmf.init(trustStore);
+				TrustManager[] trustManagers = tmf.getTrustManagers();
+
+				SSLContext ctx = getSSLContext();
+				ctx.init(keyManagers, trustManagers, null);
+
+				SSLSessionContext sessions = server ? ctx.getServerSessionContext() : ctx.getClientSessionContext();
+				try {
+					sessions.setSessionCacheSize(Integer.parseInt(url.getValue(SESSION_CACHE)));
+				} catch (Exception e) {
+				}
+				try {
+					sessions.setSessionTimeout(Integer.parseInt(url.getValue(SESSION_TIMEOUT)));
+				} catch (Exception e) {
+				}
+				return ctx;
+			}
+		});
+	}
+
+	// Value of a url parameter, or of the system property if not given.
+	private String getValue(final String keyword, final String property) {
+		String s = url.getValue(keyword);
+		return (s != null) ? s : System.getProperty(property);
+	}
+
+	/**
+	 * Create the SSLEngine of a connection on the NIO engine (URL qualifier
+	 * <i>engine=nio</i>), where the TLS handshake, wrap and unwrap run on the
+	 * event loop instead of blocking SSLSocket streams. The engine takes the
+	 * same KEYSTORE=, TRUSTSTORE=, VERIFY= and JCIPHER= parameters.
+	 * 
+	 * @param s
+	 *            the connected socket.
+	 * @return the engine, in client mode for a connector.
+	 * @exception IOException
+	 *                if the engine could not be created.
+	 */
+	protected SSLEngine createEngine(final Socket s) throws IOException {
+		String fingerprint = className + ", CreateEngine";
+		try {
+			SSLContext ctx = getCachedContext(fingerprint, listener);
+			SSLEngine engine;
+			if (listener) {
+				engine = ctx.createSSLEngine();
+				engine.setUseClientMode(false);
+				if (needClientAuth()) {
+					engine.setNeedClientAuth(true);
+				}
+			} else {
+				engine = ctx.createSSLEngine(url.getHost(), url.getPort()); // host and port for resumption
+				engine.setUseClientMode(true);
+			}
+			String[] enable = selectCipherSuites(engine.getSupportedCipherSuites());
+			if (enable != null) {
+				engine.setEnabledCipherSuites(enable);
+			}
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose(fingerprint + " SSLEngine has been created for " + s);
+			return engine;
+		} catch (Exception e) {
+			if (XTStrace.bGlobalErrorEnabled) {
+				System.err.println(fingerprint + ", " + e.getMessage());
+			}
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose(fingerprint, e);
+			throw new IOException(fingerprint + " failed");
+		}
+	}
+
+	/**
+	 * Record the handshake of a connection on the NIO engine.
+	 */
+	protected void handshakeCompleted(final SSLEngine engine, final long nanos, final boolean resumed) {
+		if (!listener) {
+			SSLContextCache.handshake(nanos, resumed);
+		}
+		if (XTStrace.bGlobalVerboseEnabled) 
+			XTStrace.verbose(className + " " + engine.getSession().getCipherSuite() + " has been negotiated" + (resumed ? ", session resumed" : ""));
+	}
+
+	/**
+	 * This method retrieves the XTS SSL VERIFY= parameter from the url.
+	 * 
+	 * @return true if the server must request client certificates.
+	 * @exception InvalidQualifierException
+	 *                thrown if VERIFY= has an unsupported value.
+	 */
+	private boolean needClientAuth() throws InvalidQualifierException {
+		String verify = url.getValue(VERIFY);
+		if (verify != null) {
+			if (0 == FORCE_PEER_VERIFICATION.compareTo(verify) || 0 == SAME_AS_FORCE_PEER_VERIFICATION.compareTo(verify)) {
+				return true;
+			} else if (0 != NO_PEER_VERIFICATION.compareTo(verify) && 0 != LIGHT_PEER_VERIFICATION.compareTo(verify)) {
+				throw (new InvalidQualifierException("VERIFY= unsupported as it is in url " + url.toString(true)));
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * This method should only be entered if SSLServerSocket is not null, XOR
 	 * the SSLSocket is not null. Thus this call must be for a serverSocket or a
@@ -606,7 +721,39 @@ public class SSL extends TCPIP {
 	 *                be unsupported.
 	 */
 	private void setCipherSuite(final SSLServerSocket serverSocket, final SSLSocket clientSocket) throws InvalidQualifierException {
-		String[] supportedCipherSuite = null; // Currently supported by default
+		String[] enableCipherSuite = null; // What will really be enabled
+
+		if (null == serverSocket && null == clientSocket || null != serverSocket && null != clientSocket) {
+			throw (new InvalidQualifierException("XTS Internal error in setCipherSuite due to Bad Parameters combination"));
+		}
+
+		if (null != clientSocket) {
+			enableCipherSuite = selectCipherSuites(clientSocket.getSupportedCipherSuites());
+		} else {
+			enableCipherSuite = selectCipherSuites(serverSocket.getSupportedCipherSuites());
+		}
+
+		if (null != enableCipherSuite) {
+			if (null != clientSocket) {
+				clientSocket.setEnabledCipherSuites(enableCipherSuite);
+			} else {
+				serverSocket.setEnabledCipherSuites(enableCipherSuite);
+			}
+		}
+	}
+
+	/**
+	 * This method retrieves the XTS SSL JCIPHER= parameter from the url and
+	 * selects the presented cipher suite(s) among the supported ones.
+	 * 
+	 * @param supportedCipherSuite
+	 *            the cipher suites supported by the socket or engine.
+	 * @return the cipher suites to enable, null to keep the defaults.
+	 * @exception InvalidQualifierException
+	 *                thrown if any one of the named CIPHER suites happened to
+	 *                be unsupported.
+	 */
+	private String[] selectCipherSuites(final String[] supportedCipherSuite) throws InvalidQualifierException {
 		String[] wantToEnableCipherSuite = null; // The Cipher Suites that one may want to enable
 		// int wantToEnableCipherSuiteLength = 0; //The taken from
 		// supportedCipherSuite.length
@@ -620,24 +767,15 @@ public class SSL extends TCPIP {
 		int j = 0;
 		boolean isCipherSuiteSupported = false;
 
-		if (null == serverSocket && null == clientSocket || null != serverSocket && null != clientSocket) {
-			throw (new InvalidQualifierException("XTS Internal error in setCipherSuite due to Bad Parameters combination"));
-		}
-
 		// Get xxx from JCIPHER=xxx if JCIPHER= is present in the url.
 		requestCipher = url.getValue(JCIPHER); // [0001]
 
 		// Default cipher suite?
 		if (null == requestCipher) {
-			return; // Yes, we are done
+			return null; // Yes, we are done
 		}
 		// We have some cipher suite request, but how many? Take the maximum
 		// possible
-		if (null != clientSocket) {
-			supportedCipherSuite = clientSocket.getSupportedCipherSuites();
-		} else {
-			supportedCipherSuite = serverSocket.getSupportedCipherSuites();
-		}
 		wantToEnableCipherSuite = new String[supportedCipherSuite.length];
 
 		// Multiple Cipher Suites request or only one?
@@ -683,13 +821,8 @@ public class SSL extends TCPIP {
 			for (i = 0; i < j; i++) {
 				enableCipherSuite[i] = wantToEnableCipherSuite[i];
 			}
-
-			if (null != clientSocket) {
-				clientSocket.setEnabledCipherSuites(enableCipherSuite);
-			} else {
-				serverSocket.setEnabledCipherSuites(enableCipherSuite);
-			}
 		}
+		return enableCipherSuite;
 	}
 
 	/**
@@ -882,13 +1015,13 @@ public class SSL extends TCPIP {
 					jreLibSecurity = javaHome + fileSeparator + "lib" + fileSeparator + "security" + fileSeparator;
 					defaultTrustStore = jreLibSecurity + "jssecacerts";
 					try {
-						ksFileInputStream = new FileInputStream(defaultTrustStore);
+						new FileInputStream(defaultTrustStore).close();
 						trustStoreFile = defaultTrustStore;
 					} catch (FileNotFoundException e) {
 						/* Attempt java-home/lib/security/cacerts */
 						defaultTrustStore = jreLibSecurity + "cacerts";
 						try {
-							ksFileInputStream = new FileInputStream(defaultTrustStore);
+							new FileInputStream(defaultTrustStore).close();
 							trustStoreFile = defaultTrustStore;
 						} catch (FileNotFoundException e2) { /* No possible default */
 						}
@@ -902,7 +1035,13 @@ public class SSL extends TCPIP {
 			ksFileInputStream = new FileInputStream(trustStoreFile);
 		}
 		// May throw IOException, NoSuchAlgorithmException, CertificateException
-		ks.load(ksFileInputStream, passwd);
+		try {
+			ks.load(ksFileInputStream, passwd);
+		} finally {
+			if (ksFileInputStream != null) {
+				ksFileInputStream.close();
+			}
+		}
 
 		return trustStoreFile;
 	}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.protocol;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.net.ssl.SSLContext;
+
+import com.softwareag.adabas.xts.XTStrace;
+import com.softwareag.adabas.xts.XTSversion;
+
+//-----------------------------------------------------------------------
+/**
+ * The SSL contexts of the SSL driver, one per combination of keystore,
+ * truststore, version and cipher parameters. Loading the stores and
+ * initializing a context is done once; the context is rebuilt only when a
+ * store file has been changed. As a context keeps its session cache,
+ * reconnects to the same host and port resume the session with an
+ * abbreviated handshake.
+ **
+ * The handshake counters are kept here as well.
+ **/
+//   Maintenance:
+//   SSL context cache
+// -----------------------------------------------------------------------
+public final class SSLContextCache {
+	public static final String VERSION = XTSversion.VERSION;
+	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
+
+	/** The number of contexts built. **/
+	public static volatile long contextLoads = 0;
+	/** The number of contexts taken from the cache. **/
+	public static volatile long contextHits = 0;
+	/** The number of client handshakes. **/
+	public static volatile long handshakes = 0;
+	/**
+	 * The number of client handshakes which resumed a session, seen as a
+	 * session created before the handshake started. That holds for TLS 1.2;
+	 * TLS 1.3 resumption may not be counted, its sessions can be new objects.
+	 **/
+	public static volatile long resumed = 0;
+	/** The total time of the client handshakes, in nanoseconds. **/
+	public static volatile long handshakeNanos = 0;
+	/** The longest client handshake, in nanoseconds. **/
+	public static volatile long maxHandshakeNanos = 0;
+
+	private static final ConcurrentHashMap<String, Entry> contexts = new ConcurrentHashMap<String, Entry>();
+	private static final byte[] salt = new byte[16]; // for this process only
+	static {
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/** Builds a context, noting the store files it read. **/
+	interface Loader {
+		SSLContext load(List<String> files) throws Exception;
+	}
+
+	// A context and the state of the files it was built from.
+	private static final class Entry {
+		final SSLContext ctx;
+		final String[] files;
+		final long[] stamps;
+
+		Entry(final SSLContext ctx, final List<String> files) {
+			this.ctx = ctx;
+			this.files = files.toArray(new String[files.size()]);
+			stamps = new long[this.files.length];
+			for (int i = 0; i < stamps.length; i++) {
+				stamps[i] = stamp(this.files[i]);
+			}
+		}
+
+		boolean isCurrent() {
+			for (int i = 0; i < stamps.length; i++) {
+				if (stamp(files[i]) != stamps[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private SSLContextCache() {
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Get the context for a key, building it if there is none or a store
+	 * file has changed since.
+	 **
+	 * @param key
+	 *            the parameters the context depends on.
+	 ** @param loader
+	 *            builds the context.
+	 ** @return the context.
+	 **/
+	// -----------------------------------------------------------------------
+	static SSLContext get(final String key, final Loader loader) throws Exception {
+		Entry e = contexts.get(key);
+		if (e != null && e.isCurrent()) {
+			contextHits++;
+			return e.ctx;
+		}
+		synchronized (contexts) { // one build at a time during reconnect storms
+			e = contexts.get(key);
+			if (e != null && e.isCurrent()) {
+				contextHits++;
+				return e.ctx;
+			}
+			if (e != null && XTStrace.bGlobalVerboseEnabled)
+				XTStrace.verbose("SSL store changed, reload context");
+			List<String> files = new ArrayList<String>();
+			SSLContext ctx = loader.load(files);
+			contexts.put(key, new Entry(ctx, files));
+			contextLoads++;
+			return ctx;
+		}
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Return an identifier of the passwords for a cache key. It is a SHA-256
+	 * digest salted with a random value which is kept in memory only, so it
+	 * cannot be looked up and does not outlive the process.
+	 **
+	 * @param passwords
+	 *            the passwords, entries may be null.
+	 ** @return the identifier.
+	 **/
+	// -----------------------------------------------------------------------
+	static String credentials(final char[]... passwords) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(salt);
+		for (char[] pw : passwords) {
+			if (pw == null) {
+				md.update((byte) 0);
+				continue;
+			}
+			md.update((byte) 1);
+			ByteBuffer b = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pw));
+			byte[] a = new byte[b.remaining()];
+			b.get(a);
+			md.update(a);
+			md.update((byte) 0);
+			Arrays.fill(a, (byte) 0);
+			if (b.hasArray()) {
+				Arrays.fill(b.array(), (byte) 0);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte x : md.digest()) {
+			sb.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+		}
+		return sb.toString();
+	}
+
+	// -----------------------------------------------------------------------
+	/**
+	 * Record a client handshake.
+	 **
+	 * @param nanos
+	 *            the time it took.
+	 ** @param isResumed
+	 *            true if a cached session was resumed.
+	 **/
+	// -----------------------------------------------------------------------
+	static synchronized void handshake(final long nanos, final boolean isResumed) {
+		handshakes++;
+		if (isResumed) {
+			resumed++;
+		}
+		handshakeNanos += nanos;
+		if (nanos > maxHandshakeNanos) {
+			maxHandshakeNanos = nanos;
+		}
+	}
+
+	/** Drop all contexts, so that the stores are read again. **/
+	public static void clear() {
+		contexts.clear();
+	}
+
+	/** Return the context and handshake statistics. **/
+	public static String getStatistics() {
+		long n = handshakes;
+		return "SSL contexts=" + contexts.size() + " loads=" + contextLoads + " hits=" + contextHits
+				+ " handshakes=" + n + " resumed=" + resumed
+				+ " avgHandshakeUs=" + (n > 0 ? handshakeNanos / n / 1000 : 0) + " maxHandshakeUs=" + maxHandshakeNanos / 1000;
+	}
+
+	// Modification time and length of a file, 0 if there is none.
+	private static long stamp(final String file) {
+		File f = new File(file);
+		return f.lastModified() * 31 + f.length();
+	}
+}
@@ -8,6 +8,7 @@
 package com.softwareag.adabas.xts.protocol;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 import com.softwareag.adabas.xts.Message;
@@ -19,6 +20,7 @@ import com.softwareag.adabas.xts.XTSurl;
 import com.softwareag.adabas.xts.XTSversion;
 import com.softwareag.adabas.xts.interfaces.IConnectCallback;
 import com.softwareag.adabas.xts.interfaces.IDriver;
+import com.softwareag.adabas.xts.network.Compression;
 import com.softwareag.adabas.xts.network.IPtransport;
 
 //-----------------------------------------------------------------------
@@ -33,6 +35,8 @@ public class TCPIP extends IPtransport {
 	public static final String VERSION = XTSversion.VERSION;
 	public static final String COPYRIGHT = XTSversion.COPYRIGHT;
 	static final Vector<Thread> tvec = new Vector<Thread>(); // contains connections
+	private int rawBuffer = 4096; // largest RAW chunk
+	private boolean adiExt = false; // ADI frames with a four byte length
 
 	public TCPIP() {
 		super(tvec);
@@ -43,6 +47,7 @@ public class TCPIP extends IPtransport {
 			final long retry_interval, final int retry_count,
 			final boolean reconnect, final int connTo) {
 		super(tvec, url, listen, callback, userval, retry_interval, retry_count, reconnect, connTo);
+		setModes(url);
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Init TCPIP " + callback);
 	}
@@ -52,9 +57,31 @@ public class TCPIP extends IPtransport {
 			final long retry_interval, final int retry_count,
 			final boolean reconnect) {
 		super(tvec, url, listen, callback, userval, retry_interval, retry_count, reconnect);
+		setModes(url);
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Init TCPIP " + callback);
 	}
+
+	// -----------------------------------------------------------------------
+	// RAW and ADI options: rawbuffer=n is the largest chunk delivered, adi=ext
+	// selects frames with a four byte length. XTS framing may be compressed.
+	// -----------------------------------------------------------------------
+	private void setModes(final XTSurl url) {
+		if (MsgType == 0) {
+			compression = Compression.forUrl(url);
+		}
+		String st = url.getValue("rawbuffer");
+		if (st != null) {
+			try {
+				rawBuffer = Math.max(Integer.parseInt(st), 1);
+			} catch (Exception e) {
+			}
+		}
+		st = url.getValue("adi");
+		if (st != null) {
+			adiExt = st.equalsIgnoreCase("ext");
+		}
+	}
 	
 	/**
 	 * Listen for an incoming connection.
@@ -145,20 +172,24 @@ public class TCPIP extends IPtransport {
 		return null;
 	}
 
+	protected final boolean writesOffHeap() {
+		return true;
+	}
+
 	protected final void transmit(final Message p, final IPtx tx) throws IOException {
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Transmit length=" + p.length + " Message=" + p);
 		if (MsgType == 0) {		// XTS type 
-			p.putMessage(tx.dos);
+			tx.writeMessage(p);
 		} else if (MsgType == 1) {	// ADI type
 			if (p.length > 0) {
-				tx.dos.write(p.body, 0, p.length);
+				p.putBody(tx.dos);
 				tx.dos.flush();
 			}
 
 		} else if (MsgType == 2) {	// RAW type
 			if (p.length > 0) {
-				tx.dos.write(p.body, 0, p.length);
+				p.putBody(tx.dos);
 				tx.dos.flush();
 			}
 		}		
@@ -198,56 +229,84 @@ public class TCPIP extends IPtransport {
 		Message p;
 
 		if (MsgType == 0) {		// XTS type 
-			p = Message.getMessage(rx.dis);
+			p = rx.readMessage();
 			if (XTStrace.bGlobalVerboseEnabled) 
 				XTStrace.verbose("Received lenght=" + p.length + " Message=" + p);
 			return p;
 		} else if (MsgType == 1) {	// ADI type
-			short len;
-			len = rx.dis.readShort();
+			int hl = adiExt ? 4 : 2; // the length includes itself
+			int len = adiExt ? rx.dis.readInt() : rx.dis.readUnsignedShort();
 			if (XTStrace.bGlobalVerboseEnabled) {
 				XTStrace.verbose("ADI message length:" + len);
 			}
-			if (len < 2) {
+			if (len < hl || len > XTS.maxmsglength) {
 				if (XTStrace.bGlobalVerboseEnabled) 
 					XTStrace.verbose("ADI Invalid message length:" + len + " " + XTS.hexof(len));
 				throw new XTSException("ADI Message getMessage : Invalid message length received=" + len, XTSException.XTS_INVALID_GETMSG_LEN);
 			}
-			p = Message.newMessage(len);
+			p = Message.newMessage(len, Message.ZERO_DIRTY);
 			p.target = XTS.ADI_MESSAGE;
 			p.route = XTS.ADI_MESSAGE;
-			rx.dis.readFully(p.body, 2, len - 2);
-			p.body[0] = (byte) (len >> 8);
-			p.body[1] = (byte) len;
+			try {
+				rx.dis.readFully(p.body, hl, len - hl);
+			} catch (IOException e) {
+				p.freeMessage("ADI receive");
+				throw e;
+			}
+			for (int i = 0; i < hl; i++) {
+				p.body[i] = (byte) (len >> ((hl - 1 - i) << 3));
+			}
 			return p;
 		} else if (MsgType == 2) {	// RAW type
-			byte[] b = new byte[4096];
+			p = Message.newMessage(rawBuffer, Message.ZERO_DIRTY); // read straight into the body
 			int i;
-			for (;;) {
-				i = rx.dis.read(b);
-				if (i < 0) {
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.error("RAW Received error=" + i);
-					throw new EOFException("Ended");
-				}
-				if (i > 0) {
-					if (XTStrace.bGlobalVerboseEnabled) 
-						XTStrace.verbose("RAW Received lenght=" + i);
-					break;
+			try {
+				for (;;) {
+					i = rx.dis.read(p.body, 0, rawBuffer);
+					if (i < 0) {
+						if (XTStrace.bGlobalVerboseEnabled) 
+							XTStrace.error("RAW Received error=" + i);
+						throw new EOFException("Ended");
+					}
+					if (i > 0) {
+						break;
+					}
 				}
+			} catch (IOException e) {
+				p.freeMessage("RAW receive");
+				throw e;
 			}
-			p = Message.newMessage(i);
+			if (XTStrace.bGlobalVerboseEnabled) 
+				XTStrace.verbose("RAW Received lenght=" + i);
+			p.length = i;
 			p.target = XTS.RAW_MESSAGE;
 			p.route = XTS.RAW_MESSAGE;
-			System.arraycopy(b, 0, p.body, 0, i);
 			return p;
 		}		
-		p = Message.getMessage(rx.dis);
+		p = rx.readMessage();
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("Received lenght=" + p.length);
 		return p;
 	}
 
+	// -----------------------------------------------------------------------
+	// ADI frames carry an unsigned two byte length including itself, four
+	// bytes with adi=ext. RAW data has no framing at all.
+	// -----------------------------------------------------------------------
+	protected final int frameLength(final ByteBuffer b) {
+		if (MsgType == 1) {
+			int hl = adiExt ? 4 : 2;
+			if (b.remaining() < hl) {
+				return -1;
+			}
+			int len = adiExt ? b.getInt(b.position()) : b.getShort(b.position()) & 0xffff;
+			return (len < hl || len > XTS.maxmsglength) ? hl : len; // let receive report the error
+		} else if (MsgType == 2) {
+			return b.hasRemaining() ? b.remaining() : -1;
+		}
+		return super.frameLength(b);
+	}
+
 	protected final void shut(final IPtx tx) {
 		if (XTStrace.bGlobalVerboseEnabled) 
 			XTStrace.verbose("shut " + callback);
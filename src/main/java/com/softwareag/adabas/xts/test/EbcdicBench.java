@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+
+import com.softwareag.adabas.xts.helpers.Cp037;
+import com.softwareag.adabas.xts.helpers.EbcdicCodec;
+
+//-----------------------------------------------------------------------
+/**
+ * Benchmark of the EBCDIC conversions: Cp037, the bulk methods of
+ * EbcdicCodec, its charset and the charsets of the JDK, decoding and
+ * encoding a buffer of the given size. The tables of every code page are
+ * compared with the JDK's first, apart from NEL and line feed.
+ **
+ * usage: java EbcdicBench [size [iterations [rounds]]]
+ **/
+// -----------------------------------------------------------------------
+final class EbcdicBench {
+	private static final String[][] pages = { { "037", "IBM037" }, { "1140", "IBM01140" }, { "500", "IBM500" }, { "273", "IBM273" } };
+
+	public static void main(final String[] arg) throws Exception {
+		int size = (arg.length > 0) ? Integer.parseInt(arg[0]) : 256;
+		int n = (arg.length > 1) ? Integer.parseInt(arg[1]) : 200000;
+		int rounds = (arg.length > 2) ? Integer.parseInt(arg[2]) : 3;
+		for (String[] cp : pages) {
+			if (!check(EbcdicCodec.forName(cp[0]), Charset.forName(cp[1]))) {
+				System.exit(1);
+			}
+		}
+		byte[] b = new byte[size];
+		for (int i = 0; i < size; i++) {
+			b[i] = (byte) (0x81 + i % 9); // lower case letters
+		}
+		char[] c = new char[size];
+		byte[] out = new byte[size];
+		String s = EbcdicCodec.CP037.decode(b, 0, size);
+		Cp037 cp037 = new Cp037();
+		for (int r = 0; r < rounds; r++) {
+			System.out.println("size " + size + " round " + r);
+			long t0 = System.nanoTime();
+			long a0 = allocated();
+			for (int i = 0; i < n; i++) {
+				cp037.getString(b, 0, size);
+			}
+			report("Cp037 getString         ", n, t0, a0);
+			t0 = System.nanoTime();
+			a0 = allocated();
+			for (int i = 0; i < n; i++) {
+				cp037.getBytes(s);
+			}
+			report("Cp037 getBytes          ", n, t0, a0);
+			for (String[] cp : pages) {
+				EbcdicCodec codec = EbcdicCodec.forName(cp[0]);
+				Charset jdk = Charset.forName(cp[1]);
+				t0 = System.nanoTime();
+				a0 = allocated();
+				for (int i = 0; i < n; i++) {
+					codec.decode(b, 0, size, c, 0);
+				}
+				report(pad(codec + " decode bulk"), n, t0, a0);
+				t0 = System.nanoTime();
+				a0 = allocated();
+				for (int i = 0; i < n; i++) {
+					codec.encode(c, 0, size, out, 0);
+				}
+				report(pad(codec + " encode bulk"), n, t0, a0);
+				decoder(pad(codec + " decoder"), codec.charset().newDecoder(), b, c, n);
+				decoder(pad(cp[1] + " decoder"), jdk.newDecoder(), b, c, n);
+				encoder(pad(codec + " encoder"), codec.charset().newEncoder(), c, out, n);
+				encoder(pad(cp[1] + " encoder"), jdk.newEncoder(), c, out, n);
+				t0 = System.nanoTime();
+				a0 = allocated();
+				for (int i = 0; i < n; i++) {
+					new String(b, jdk);
+				}
+				report(pad(cp[1] + " new String"), n, t0, a0);
+				t0 = System.nanoTime();
+				a0 = allocated();
+				for (int i = 0; i < n; i++) {
+					s.getBytes(jdk);
+				}
+				report(pad(cp[1] + " getBytes"), n, t0, a0);
+			}
+		}
+	}
+
+	// Compare the tables with a JDK charset, both directions.
+	private static boolean check(final EbcdicCodec codec, final Charset jdk) {
+		byte[] all = new byte[256];
+		for (int i = 0; i < 256; i++) {
+			all[i] = (byte) i;
+		}
+		char[] c = new char[256];
+		codec.decode(all, 0, 256, c, 0);
+		String s = new String(all, jdk);
+		for (int i = 0; i < 256; i++) {
+			if (i != 0x15 && c[i] != s.charAt(i)) {
+				System.out.println(codec + " decodes " + Integer.toHexString(i) + " to " + Integer.toHexString(c[i]) + ", " + jdk + " to "
+						+ Integer.toHexString(s.charAt(i)));
+				return false;
+			}
+		}
+		CharsetEncoder e = jdk.newEncoder();
+		for (char ch = 0; ch < 0xffff; ch++) {
+			if (ch == '\n' || ch == 0x85 || Character.isSurrogate(ch)) {
+				continue;
+			}
+			boolean can = e.canEncode(ch);
+			if (can != codec.canEncode(ch) || (can && String.valueOf(ch).getBytes(jdk)[0] != codec.toByte(ch))) {
+				System.out.println(codec + " encodes " + Integer.toHexString(ch) + " differently from " + jdk);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void decoder(final String s, final CharsetDecoder d, final byte[] b, final char[] c, final int n) {
+		ByteBuffer in = ByteBuffer.wrap(b);
+		CharBuffer out = CharBuffer.wrap(c);
+		long t0 = System.nanoTime();
+		long a0 = allocated();
+		for (int i = 0; i < n; i++) {
+			in.clear();
+			out.clear();
+			d.reset();
+			d.decode(in, out, true);
+		}
+		report(s, n, t0, a0);
+	}
+
+	private static void encoder(final String s, final CharsetEncoder e, final char[] c, final byte[] b, final int n) {
+		CharBuffer in = CharBuffer.wrap(c);
+		ByteBuffer out = ByteBuffer.wrap(b);
+		long t0 = System.nanoTime();
+		long a0 = allocated();
+		for (int i = 0; i < n; i++) {
+			in.clear();
+			out.clear();
+			e.reset();
+			e.encode(in, out, true);
+		}
+		report(s, n, t0, a0);
+	}
+
+	private static String pad(final String s) {
+		return (s + "                        ").substring(0, 24);
+	}
+
+	private static void report(final String s, final int n, final long t0, final long a0) {
+		long ns = System.nanoTime() - t0;
+		long bytes = allocated() - a0;
+		System.out.println(s + " " + (ns / n) + " ns/call " + (bytes / n) + " bytes allocated/call");
+	}
+
+	private static long allocated() {
+		java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+		if (b instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) b).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import com.softwareag.adabas.xts.Message;
+import com.softwareag.adabas.xts.XTSoutputStream;
+import com.softwareag.adabas.xts.helpers.Cp037;
+import com.softwareag.adabas.xts.protocol.FrameTemplate;
+
+//-----------------------------------------------------------------------
+/**
+ * Benchmark of the MHDR and RDA frame encoding: the stream of writeShort,
+ * writeInt and writeLong calls MHDR and RDA used before, against the header
+ * templates. Both write to a stream which discards the data; the output of
+ * both is compared first.
+ **
+ * usage: java FrameBench [iterations [rounds]]
+ **/
+// -----------------------------------------------------------------------
+final class FrameBench {
+	private static final int HDR_LEN = 12;
+	private static final int UBBIN = 2;
+	private static final int UBBOUT = 3;
+	private static final int CTX = 4;
+	private static final int NODE = 8765;
+	private static final int PNODE = 4711;
+	private static final Cp037 cp037 = new Cp037();
+	private static final byte[] nodename = cp037.getBytes("XTSNODE ");
+	private static final byte[] rdanodename = "XTSNODE ".getBytes();
+	private static final byte[] pnodename = "PARTNER ".getBytes();
+	private static final byte[] mhdr = { 0, 0, 0, 0, 1, 14, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 9, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xd4,
+			(byte) 0xc8, (byte) 0xc4, (byte) 0xd9, 0, 0, 0, 0 };
+
+	private static final OutputStream sink = new OutputStream() {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public static void main(final String[] arg) throws Exception {
+		int n = (arg.length > 0) ? Integer.parseInt(arg[0]) : 2000000;
+		int rounds = (arg.length > 1) ? Integer.parseInt(arg[1]) : 5;
+		Message big = call(true);
+		Message little = call(false);
+		if (!check(big) || !check(little)) {
+			System.out.println("Encodings differ");
+			System.exit(1);
+		}
+		FrameTemplate mt = FrameTemplate.forMHDR(NODE, PNODE, nodename);
+		FrameTemplate rt = FrameTemplate.forRDA(NODE, rdanodename);
+		XTSoutputStream dos = new XTSoutputStream(sink, 4096);
+		for (int r = 0; r < rounds; r++) {
+			long t0 = System.nanoTime();
+			long a0 = allocated();
+			for (int i = 0; i < n; i++) {
+				legacyMHDR(dos, (i & 1) == 0 ? big : little);
+				dos.flush();
+			}
+			report("MHDR legacy  ", n, t0, a0);
+			t0 = System.nanoTime();
+			a0 = allocated();
+			for (int i = 0; i < n; i++) {
+				templateMHDR(dos, mt, (i & 1) == 0 ? big : little);
+				dos.flush();
+			}
+			report("MHDR template", n, t0, a0);
+			t0 = System.nanoTime();
+			a0 = allocated();
+			for (int i = 0; i < n; i++) {
+				legacyRDA(dos, (i & 1) == 0 ? big : little);
+				dos.flush();
+			}
+			report("RDA legacy   ", n, t0, a0);
+			t0 = System.nanoTime();
+			a0 = allocated();
+			for (int i = 0; i < n; i++) {
+				templateRDA(dos, rt, (i & 1) == 0 ? big : little);
+				dos.flush();
+			}
+			report("RDA template ", n, t0, a0);
+		}
+	}
+
+	// An Adabas call with format, record, search and value buffer.
+	private static Message call(final boolean bigend) {
+		int[] len = { 20, 100, 10, 30, 0 };
+		int total = HDR_LEN + 80 + 160;
+		Message p = Message.newMessage(total);
+		p.length = total;
+		p.target = 12;
+		p.route = 0x01020304;
+		p.body[UBBIN] = 0x1e;
+		p.body[UBBOUT] = 0x08;
+		p.body[CTX] = 0x11;
+		p.body[CTX + 1] = 0x22;
+		p.body[CTX + 2] = 0x33;
+		p.body[CTX + 3] = (byte) (bigend ? 0x44 : 0x45);
+		for (int i = 0; i < len.length; i++) {
+			int o = HDR_LEN + 0x18 + 2 * i;
+			p.body[o + (bigend ? 0 : 1)] = (byte) (len[i] >> 8);
+			p.body[o + (bigend ? 1 : 0)] = (byte) len[i];
+		}
+		return p;
+	}
+
+	private static boolean check(final Message p) throws Exception {
+		ByteArrayOutputStream a = new ByteArrayOutputStream();
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		XTSoutputStream da = new XTSoutputStream(a, 4096);
+		XTSoutputStream db = new XTSoutputStream(b, 4096);
+		legacyMHDR(da, p);
+		templateMHDR(db, FrameTemplate.forMHDR(NODE, PNODE, nodename), p);
+		legacyRDA(da, p);
+		templateRDA(db, FrameTemplate.forRDA(NODE, rdanodename), p);
+		da.flush();
+		db.flush();
+		return Arrays.equals(a.toByteArray(), b.toByteArray());
+	}
+
+	private static void report(final String s, final int n, final long t0, final long a0) {
+		long ns = System.nanoTime() - t0;
+		long bytes = allocated() - a0;
+		System.out.println(s + " " + (ns / n) + " ns/frame " + (bytes / n) + " bytes allocated/frame");
+	}
+
+	private static long allocated() {
+		java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+		if (b instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) b).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private static void templateMHDR(final XTSoutputStream dos, final FrameTemplate f, final Message p) {
+		boolean bigend = (p.body[CTX + 3] & 0x01) == 0;
+		boolean ebcdic = (p.body[CTX + 3] & 0x02) == 0;
+		f.encodeMHDR(mhdr, p, bigend, ebcdic);
+		dos.write(f.header, 0, f.length);
+		dos.write(p.body, HDR_LEN, p.length - HDR_LEN);
+	}
+
+	private static void templateRDA(final XTSoutputStream dos, final FrameTemplate f, final Message p) {
+		boolean bigend = (p.body[CTX + 3] & 0x01) == 0;
+		boolean ebcdic = (p.body[CTX + 3] & 0x02) == 0;
+		int b = p.body[UBBIN];
+		int fbl = ((b & 0x10) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.FB, bigend);
+		int sbl = ((b & 0x04) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.SB, bigend);
+		int vbl = ((b & 0x02) == 0) ? 0 : FrameTemplate.bufferLength(p.body, FrameTemplate.VB, bigend);
+		f.encodeRDA(pnodename, p, bigend, ebcdic, (binbout(p.body[UBBIN]) << 8) | binbout(p.body[UBBOUT]), fbl + sbl + vbl + 0x40);
+		dos.write(f.header, 0, f.length);
+	}
+
+	// -----------------------------------------------------------------------
+	// The frame headers as MHDR and RDA wrote them before the templates.
+	// -----------------------------------------------------------------------
+	private static void legacyMHDR(final XTSoutputStream dos, final Message p) {
+		boolean bigend = (p.body[CTX + 3] & 0x01) == 0;
+		boolean ebcdic = (p.body[CTX + 3] & 0x02) == 0;
+		int tlen = p.length + 0xc0 - HDR_LEN;
+		mhdr[0] = (byte) (tlen >> 8);
+		mhdr[1] = (byte) tlen;
+		mhdr[14] = mhdr[0];
+		mhdr[15] = mhdr[1];
+		mhdr[24] = (byte) 0xf2;
+		dos.write(mhdr);
+		dos.writeShort(PNODE);
+		dos.writeShort(p.target);
+		dos.writeInt(p.route);
+		dos.writeLong(0);
+		dos.writeLong(0x4000080002L);
+		dos.writeLong(((long) NODE) << 48);
+		dos.writeShort(0);
+		dos.write(p.body, UBBIN, 2);
+		dos.writeLong(0x01000000L);
+		dos.writeInt(p.target << 16);
+		int tbuf = 0x6c;
+		byte b = (byte) (p.body[UBBIN] | p.body[UBBOUT]);
+		for (int i = 0; i < 5; i++) {
+			if ((b & (0x10 >> i)) != 0) {
+				tbuf += length(p.body, i, bigend);
+			}
+		}
+		dos.writeInt(0xcd000000 | tbuf);
+		dos.writeLong(0x64L);
+		dos.writeInt(0);
+		dos.write(nodename);
+		dos.writeLong(0x1000000000000000L);
+		dos.writeLong(0x4800000000L);
+		dos.writeLong(0);
+		dos.writeLong(0);
+		dos.writeShort((ebcdic ? 0x0104 : 0x0120) | (bigend ? 0 : 1));
+		dos.writeShort(0);
+		dos.writeInt(0);
+		dos.write(nodename);
+		context(dos, p, bigend);
+		String s = Integer.toString(NODE);
+		dos.write(cp037.getBytes((s + "        ").substring(0, 8)));
+		dos.writeInt(0x80);
+		dos.writeInt(0xd0);
+		tbuf = 0xd0;
+		b = p.body[UBBIN];
+		for (int i = 0; i < 4; i++) {
+			if ((b & (0x10 >> i)) != 0) {
+				tbuf += length(p.body, i, bigend);
+			}
+			dos.writeInt(tbuf);
+		}
+		dos.writeInt(0);
+		dos.write(p.body, HDR_LEN, p.length - HDR_LEN);
+	}
+
+	private static void legacyRDA(final XTSoutputStream dos, final Message p) {
+		boolean bigend = (p.body[CTX + 3] & 0x01) == 0;
+		boolean ebcdic = (p.body[CTX + 3] & 0x02) == 0;
+		dos.writeShort(p.length - HDR_LEN + 0x40);
+		dos.writeLong(0x0000010e00004200L);
+		dos.writeShort(0x0041);
+		dos.writeShort(p.target);
+		dos.writeShort((ebcdic ? 0x0004 : 0x0028) | (bigend ? 0 : 1));
+		dos.write(p.body, UBBIN, 4);
+		dos.writeInt(p.route);
+		dos.write(rdanodename);
+		dos.write(pnodename);
+		dos.writeInt(0x10010000 | (binbout(p.body[UBBIN]) << 8) | binbout(p.body[UBBOUT]));
+		String s = Integer.toString(NODE);
+		dos.write((s + "        ").substring(0, 8).getBytes());
+		int b = p.body[UBBIN];
+		int fbl = ((b & 0x10) == 0) ? 0 : length(p.body, 0, bigend);
+		int sbl = ((b & 0x04) == 0) ? 0 : length(p.body, 2, bigend);
+		int vbl = ((b & 0x02) == 0) ? 0 : length(p.body, 3, bigend);
+		dos.writeInt(fbl + sbl + vbl + 0x40);
+		context(dos, p, bigend);
+		dos.writeInt(p.length + 0x40 - HDR_LEN);
+		dos.writeLong(0);
+	}
+
+	private static int length(final byte[] body, final int i, final boolean bigend) {
+		int o = HDR_LEN + 0x18 + 2 * i;
+		if (bigend) {
+			return ((body[o] & 0xff) << 8) + (body[o + 1] & 0xff);
+		}
+		return ((body[o + 1] & 0xff) << 8) + (body[o] & 0xff);
+	}
+
+	private static void context(final XTSoutputStream dos, final Message p, final boolean bigend) {
+		if (bigend) {
+			dos.write(p.body, CTX, 4);
+		} else {
+			dos.write(p.body, CTX + 3, 1);
+			dos.write(p.body, CTX + 2, 1);
+			dos.write(p.body, CTX + 1, 1);
+			dos.write(p.body, CTX, 1);
+		}
+	}
+
+	private static int binbout(final byte b) {
+		return ((b & 0x10) >> 4) | ((b & 0x08) >> 2) | (b & 0x04) | ((b & 0x02) << 2) | ((b & 0x01) << 4);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.test;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.softwareag.adabas.xts.Message;
+import com.softwareag.adabas.xts.MessagePool;
+
+//-----------------------------------------------------------------------
+/**
+ * Contention benchmark of the message pool at 1 to 64 threads. Each thread
+ * takes and frees messages of mixed sizes, either itself or handing them to
+ * a partner thread which frees them, as receive and user threads do. The
+ * same runs against the single locked first fit list the pool used before.
+ **
+ * usage: java PoolBench [operations per thread [max threads]]
+ **/
+// -----------------------------------------------------------------------
+final class PoolBench {
+	private static final int[] sizes = { 100, 200, 1500, 4000, 100, 16000, 300, 64000 };
+
+	public static void main(final String[] arg) throws Exception {
+		int n = (arg.length > 0) ? Integer.parseInt(arg[0]) : 200000;
+		int max = (arg.length > 1) ? Integer.parseInt(arg[1]) : 64;
+		for (int i = 0; i < 4; i++) { // warm up
+			run(2, n, (i & 1) != 0, (i & 2) != 0);
+		}
+		for (int threads = 1; threads <= max; threads <<= 1) {
+			report("pool   local  ", threads, n, run(threads, n, false, false));
+			report("legacy local  ", threads, n, run(threads, n, false, true));
+			if (threads > 1) {
+				report("pool   handoff", threads, n, run(threads, n, true, false));
+				report("legacy handoff", threads, n, run(threads, n, true, true));
+			}
+		}
+		System.out.println(MessagePool.getStatistics());
+	}
+
+	private static void report(final String s, final int threads, final int n, final long ns) {
+		long ops = (long) threads * n;
+		System.out.println(s + " threads=" + threads + " " + (ops * 1000000000L / Math.max(ns, 1)) + " ops/s");
+	}
+
+	// Time for all threads to do n operations each.
+	private static long run(final int threads, final int n, final boolean handoff, final boolean legacy) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t += handoff ? 2 : 1) {
+			final ArrayBlockingQueue<Object> q = handoff ? new ArrayBlockingQueue<Object>(64) : null;
+			final int seed = t;
+			new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < n; i++) {
+							int len = sizes[(i + seed) & 7];
+							Object p = legacy ? Legacy.get(len) : Message.newMessage(len);
+							if (q != null) {
+								q.put(p);
+							} else if (legacy) {
+								Legacy.free((Legacy) p);
+							} else {
+								((Message) p).freeMessage("bench");
+							}
+						}
+					} catch (InterruptedException e) {
+					}
+					done.countDown();
+				}
+			}.start();
+			if (handoff) {
+				new Thread() {
+					public void run() {
+						try {
+							start.await();
+							for (int i = 0; i < n; i++) {
+								Object p = q.take();
+								if (legacy) {
+									Legacy.free((Legacy) p);
+								} else {
+									((Message) p).freeMessage("bench");
+								}
+							}
+						} catch (InterruptedException e) {
+						}
+						done.countDown();
+					}
+				}.start();
+			}
+		}
+		long t0 = System.nanoTime();
+		start.countDown();
+		done.await();
+		return System.nanoTime() - t0;
+	}
+
+	// The pool as it was: one list under one lock, searched first fit.
+	private static final class Legacy {
+		private static final ReentrantLock lock = new ReentrantLock();
+		private static Legacy list = null;
+		final byte[] body;
+		Legacy next;
+
+		Legacy(final int len) {
+			body = new byte[(len / 1024) * 1024 + 1024];
+		}
+
+		static Legacy get(final int len) {
+			Legacy p = null;
+			lock.lock();
+			try {
+				Legacy prev = null;
+				for (Legacy c = list; c != null; prev = c, c = c.next) {
+					if (c.body.length >= len) {
+						if (prev == null) {
+							list = c.next;
+						} else {
+							prev.next = c.next;
+						}
+						p = c;
+						break;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (p == null) {
+				p = new Legacy(len);
+			}
+			Arrays.fill(p.body, (byte) 0);
+			return p;
+		}
+
+		static void free(final Legacy p) {
+			lock.lock();
+			try {
+				p.next = list;
+				list = p;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
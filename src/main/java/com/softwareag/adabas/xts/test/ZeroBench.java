@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA,
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer,
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.test;
+
+import java.util.Arrays;
+
+import com.softwareag.adabas.xts.Message;
+
+//-----------------------------------------------------------------------
+/**
+ * Benchmark of the body clearing policies of Message.newMessage across body
+ * sizes. Each operation takes a message from the pool, writes into it and
+ * frees it, writing either a 16 byte header only or the whole length. The
+ * pooled body is the next power of two above the length, so clearing it
+ * fully costs up to twice the length.
+ **
+ * usage: java ZeroBench [milliseconds per case]
+ **/
+// -----------------------------------------------------------------------
+final class ZeroBench {
+	private static final int[] sizes = { 64, 200, 1000, 4000, 16000, 64000, 600000, 1000000 };
+	private static final String[] modes = { "FULL     ", "DIRTY    ", "REQUESTED", "NONE     " };
+
+	public static void main(final String[] arg) throws Exception {
+		long ms = (arg.length > 0) ? Long.parseLong(arg[0]) : 500;
+		for (int size : sizes) { // warm up
+			for (int mode = 0; mode < modes.length; mode++) {
+				run(size, mode, true, ms / 5);
+			}
+		}
+		for (int size : sizes) {
+			for (int mode = 0; mode < modes.length; mode++) {
+				System.out.println("size=" + pad(size) + " " + modes[mode] + " header " + pad(run(size, mode, false, ms)) + " ns/op   whole "
+						+ pad(run(size, mode, true, ms)) + " ns/op");
+			}
+		}
+	}
+
+	private static String pad(final long n) {
+		String s = "        " + n;
+		return s.substring(s.length() - 8);
+	}
+
+	// Nanoseconds per operation.
+	private static long run(final int size, final int mode, final boolean whole, final long ms) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte) 1);
+		long n = 0;
+		long t0 = System.nanoTime();
+		long end = t0 + ms * 1000000L;
+		long t;
+		do {
+			for (int i = 0; i < 64; i++) {
+				Message p = Message.newMessage(size, mode);
+				if (whole) {
+					p.putBytes(data);
+				} else {
+					p.putLong(n);
+					p.putLong(i);
+				}
+				p.freeMessage("bench");
+			}
+			n += 64;
+		} while ((t = System.nanoTime()) < end);
+		return (t - t0) / n;
+	}
+}
@@ -0,0 +1,33 @@
+/* 
+ * Copyright (c) 1998-2016 Software AG, Darmstadt, Germany and/or Software AG USA Inc., Reston, VA, USA, 
+ * and/or its subsidiaries and/or its affiliates and/or their licensors. Use, reproduction, transfer, 
+ * publication or disclosure is prohibited except as specifically provided for in your License Agreement 
+ * with Software AG.
+ */
+
+package com.softwareag.adabas.xts.helpers;
+
+//----------------------------------------------------------------------
+/**
+ * Access to virtual threads, Java 21 variant. Packaged under
+ * META-INF/versions/21 of the Multi-Release JAR.
+ ** 
+ **/
+//   Maintenance:
+//   Virtual thread support
+// ----------------------------------------------------------------------
+final class VirtualThreads {
+
+	private VirtualThreads() {
+	}
+
+	/** Return true if virtual threads can be created. **/
+	static boolean isSupported() {
+		return true;
+	}
+
+	/** Create an unstarted virtual thread. **/
+	static Thread unstarted(final String name, final Runnable r) {
+		return Thread.ofVirtual().name(name).unstarted(r);
+	}
+}